@@ -0,0 +1,102 @@
+package com.github.qfusion.fakeclient;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link AbstractColoredTokensParser} parsing methods on a realistic console lines sample.
+ * A single benchmark invocation parses all sample lines.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ColoredTokensParserBenchmark {
+    /**
+     * Just sums token properties, so results can not be eliminated as a dead code.
+     */
+    static final class SummingParser extends AbstractColoredTokensParser {
+        int sum;
+
+        @Override
+        protected void addWrappedToken(CharSequence underlying, int startIndex, int length, byte colorNum) {
+            sum += startIndex + length + colorNum;
+        }
+
+        @Override
+        protected void addWrappedToken(String underlying, int startIndex, int length, byte colorNum) {
+            sum += startIndex + length + colorNum;
+        }
+
+        @Override
+        protected void addWrappedToken(CharArrayView underlying, int startIndex, int length, byte colorNum) {
+            sum += startIndex + length + colorNum;
+        }
+    }
+
+    private final SummingParser parser = new SummingParser();
+
+    private String[] strings;
+    private CharSequence[] charSequences;
+    private char[][] lineChars;
+    private char[] scratchChars;
+    private final CharArrayView scratchView = new CharArrayView();
+
+    @Setup
+    public void setUp() {
+        String[] lines = ConsoleLines.LINES;
+        strings = new String[lines.length];
+        charSequences = new CharSequence[lines.length];
+        lineChars = new char[lines.length][];
+        int maxLength = 0;
+        for (int i = 0; i < lines.length; ++i) {
+            strings[i] = lines[i];
+            charSequences[i] = new StringBuilder(lines[i]);
+            lineChars[i] = lines[i].toCharArray();
+            maxLength = Math.max(maxLength, lines[i].length());
+        }
+        scratchChars = new char[maxLength];
+    }
+
+    @Benchmark
+    public int parseString() {
+        parser.sum = 0;
+        for (String s: strings) {
+            parser.parse(s);
+        }
+        return parser.sum;
+    }
+
+    @Benchmark
+    public int parseCharSequence() {
+        parser.sum = 0;
+        for (CharSequence cs: charSequences) {
+            parser.parse(cs);
+        }
+        return parser.sum;
+    }
+
+    /**
+     * Note that this benchmark includes the cost of restoring the input,
+     * since {@link AbstractColoredTokensParser#parseRemovingColors(CharArrayView)} modifies it.
+     */
+    @Benchmark
+    public int parseRemovingColors() {
+        parser.sum = 0;
+        CharArrayView view = scratchView;
+        for (char[] chars: lineChars) {
+            java.lang.System.arraycopy(chars, 0, scratchChars, 0, chars.length);
+            view.arrayRef = scratchChars;
+            view.arrayOffset = 0;
+            view.length = chars.length;
+            parser.parseRemovingColors(view);
+        }
+        return parser.sum;
+    }
+}
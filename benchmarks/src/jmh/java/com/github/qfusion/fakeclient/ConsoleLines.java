@@ -0,0 +1,30 @@
+package com.github.qfusion.fakeclient;
+
+/**
+ * A realistic console traffic sample used by benchmarks.
+ * Lines are similar to ones printed by a Qfusion server during a match:
+ * plain log lines, colored player names, chat messages and occasional escaped circumflex characters.
+ */
+final class ConsoleLines {
+    static final String[] LINES = {
+        "Connecting to 188.226.221.185:44400...",
+        "^7Player^2 Sm0ke^7 entered the game",
+        "^2Sm0ke^7: ^2gg wp",
+        "^7[^3SPEC^7] ^5Ny^4an^7 joined the spectators",
+        "Requesting configstrings...",
+        "^1Warning: ^7 server is running in the ^3warmup^7 mode",
+        "^4vitalik^7 was ^1railed^7 by ^2Sm0ke",
+        "^3(v) Good game!^7",
+        "Map: wca1, gametype: ca, timelimit: 0, scorelimit: 11",
+        "^2Sm0ke^7 ^^ teehee ^^ ^7(^3+1^7)",
+        "ALPHA ^13^7 : ^45^7 BETA",
+        "^5[TV] ^7Some spectator from a TV server says: ^2what a rocket jump! nice one",
+        "Lorem ipsum dolor sit amet, consectetur adipiscing elit, " +
+            "sed do eiusmod tempor incididunt ut labore et dolore magna aliqua.",
+        "",
+        "^8Enjoy! ^5And thanks again!^7",
+        "Malformed ^escape sequence at the end^"
+    };
+
+    private ConsoleLines() {}
+}
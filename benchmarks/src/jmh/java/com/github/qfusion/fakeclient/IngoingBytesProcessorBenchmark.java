@@ -0,0 +1,68 @@
+package com.github.qfusion.fakeclient;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures ingestion of native console output chunks by a {@link RingBufferConsole.IngoingBytesProcessor}.
+ * A chunk contains all {@link ConsoleLines} lines and is stored in a direct buffer like the native io buffer is.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class IngoingBytesProcessorBenchmark {
+    @Param({"1024"})
+    int capacity;
+
+    /**
+     * If true, a non-ASCII word is added to every line so the decoder fallback is measured.
+     */
+    @Param({"false", "true"})
+    boolean hasNonAsciiChars;
+
+    private RingBufferConsole.IngoingBytesProcessor processor;
+    private ByteBuffer chunk;
+
+    @Setup
+    public void setUp() {
+        RingLinesBuffer buffer = new RingLinesBuffer(capacity);
+        processor = new RingBufferConsole.IngoingBytesProcessor(buffer);
+        // Avoid logging of a missing listener for every line
+        processor.listener = new RingBufferConsole.Listener() {
+            @Override
+            public void onAboutToRemoveBackLine() {}
+
+            @Override
+            public void onNewLine() {}
+        };
+
+        StringBuilder sb = new StringBuilder();
+        for (String line: ConsoleLines.LINES) {
+            sb.append(line);
+            if (hasNonAsciiChars) {
+                sb.append(" \u043f\u0440\u0438\u0432\u0435\u0442");
+            }
+            sb.append('\n');
+        }
+        byte[] bytes = sb.toString().getBytes(Charset.forName("UTF-8"));
+        chunk = ByteBuffer.allocateDirect(bytes.length);
+        chunk.put(bytes);
+    }
+
+    @Benchmark
+    public int ingestChunk() {
+        chunk.clear();
+        processor.onNewBufferData(chunk);
+        return chunk.position();
+    }
+}
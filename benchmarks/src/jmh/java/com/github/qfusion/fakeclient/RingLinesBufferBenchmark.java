@@ -0,0 +1,119 @@
+package com.github.qfusion.fakeclient;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures building of console lines in a {@link RingLinesBuffer}.
+ * The buffer is small enough to be filled during warmup, so back lines eviction is measured too.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RingLinesBufferBenchmark {
+    @Param({"256", "16384"})
+    int capacity;
+
+    /**
+     * A number of parts a line is split in (an emulation of native console chunks boundaries)
+     */
+    @Param({"1", "4"})
+    int partsPerLine;
+
+    /**
+     * Either "arrays" (per-line heap arrays), "lazyArrays" (per-line heap arrays with lazy tokens parsing),
+     * "heap" (heap slabs of a store) or "direct" (a direct store)
+     */
+    @Param({"arrays", "lazyArrays", "heap", "direct"})
+    String storage;
+
+    private RingLinesBuffer buffer;
+    private int lineNum;
+
+    @Setup
+    public void setUp() {
+        // Let a store keep lines of 64 chars and 4 tokens on average without eviction by size
+        if ("heap".equals(storage)) {
+            buffer = new RingLinesBuffer(RingLinesStore.allocateHeap(capacity, 64 * capacity, 8 * capacity));
+        } else if ("direct".equals(storage)) {
+            buffer = new RingLinesBuffer(RingLinesStore.allocateDirect(capacity, 64 * capacity, 8 * capacity));
+        } else {
+            buffer = new RingLinesBuffer(capacity);
+            buffer.setTokensParsingLazy("lazyArrays".equals(storage));
+        }
+        lineNum = 0;
+    }
+
+    @Benchmark
+    public boolean appendAndCompleteLine() {
+        String line = ConsoleLines.LINES[lineNum];
+        lineNum = (lineNum + 1) % ConsoleLines.LINES.length;
+
+        int length = line.length();
+        int partLength = length / partsPerLine;
+        int offset = 0;
+        for (int i = 0; i < partsPerLine - 1; ++i) {
+            buffer.appendLinePart(line, offset, partLength);
+            offset += partLength;
+        }
+        buffer.appendLinePart(line, offset, length - offset);
+        return buffer.completeLineBuilding();
+    }
+
+    @Benchmark
+    public int iterateAllLines() {
+        // Make sure there is something to iterate over
+        if (buffer.isEmpty()) {
+            for (String line: ConsoleLines.LINES) {
+                buffer.appendLinePart(line);
+                buffer.completeLineBuilding();
+            }
+        }
+
+        int totalLength = 0;
+        RingLinesBuffer.OptimizedIterator iterator = buffer.optimizedIterator();
+        CharArrayView charsView = this.charsView;
+        BufferLineTokensView tokensView = this.tokensView;
+        while (iterator.hasNext()) {
+            iterator.next(charsView, tokensView);
+            totalLength += charsView.getLength() + tokensView.getLength();
+        }
+        return totalLength;
+    }
+
+    /**
+     * Emulates scrolling of a virtualized list view that shows 50 lines to an arbitrary position.
+     */
+    @Benchmark
+    public int getVisibleWindow() {
+        if (buffer.isEmpty()) {
+            for (String line: ConsoleLines.LINES) {
+                buffer.appendLinePart(line);
+                buffer.completeLineBuilding();
+            }
+        }
+
+        final int windowSize = Math.min(50, buffer.size());
+        windowStart = (windowStart + 7919) % (buffer.size() - windowSize + 1);
+        int totalLength = 0;
+        CharArrayView charsView = this.charsView;
+        BufferLineTokensView tokensView = this.tokensView;
+        for (int i = windowStart; i < windowStart + windowSize; ++i) {
+            buffer.get(i, charsView, tokensView);
+            totalLength += charsView.getLength() + tokensView.getLength();
+        }
+        return totalLength;
+    }
+
+    private int windowStart;
+    private final CharArrayView charsView = new CharArrayView();
+    private final BufferLineTokensView tokensView = new BufferLineTokensView();
+}
@@ -0,0 +1,104 @@
+package com.github.qfusion.fakeclient;
+
+import static com.github.qfusion.fakeclient.ScoreboardData.*;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures encoding of a typical scoreboard delta on the network thread side
+ * and decoding of it on the UI thread side.
+ * A typical delta is a match time update along with pings and scores updates of few players.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ScoreboardCodecsBenchmark {
+    @Param({"0", "8", "32"})
+    int numPlayers;
+
+    private ScoreboardUpdatesDeltaEncoder encoder;
+    private ScoreboardUpdatesDeltaDecoder decoder;
+    private ScoreboardData scoreboardData;
+    private DeltaUpdateMessage message;
+    private final DeltaUpdateMessagesPool pool = new DeltaUpdateMessagesPool(1);
+    private int updateMask;
+
+    @Setup
+    public void setUp() {
+        // Allocate the buffer the same way NativeBridgeServerListListener does
+        ByteBuffer byteBuffer = ByteBuffer.allocateDirect(MAX_SCOREBOARD_DATA_SIZE * 2);
+        byteBuffer.order(ByteOrder.nativeOrder());
+        CharBuffer charBuffer = byteBuffer.asCharBuffer();
+        ServerInfoBufferWriter writer = new ServerInfoBufferWriter(byteBuffer, charBuffer);
+
+        boolean hasPlayerInfo = numPlayers > 0;
+        writer.writeFullServerInfo(numPlayers, hasPlayerInfo);
+
+        byte[] allFieldsSetMask = new byte[MAX_PLAYERS];
+        Arrays.fill(allFieldsSetMask, PLAYERINFO_ALL_FIELDS_MASK);
+        scoreboardData = new ScoreboardData();
+        scoreboardData.wrapBuffers(writer.readFullData(numPlayers, hasPlayerInfo), allFieldsSetMask);
+
+        updateMask = UPDATE_FLAG_TIME_SECONDS;
+        writer.writeShortAsBytesAndString(TIME_SECONDS_OFFSET, (short)43);
+        for (int i = 0; i < numPlayers; ++i) {
+            writer.writePlayerUpdateFlags(i, 0);
+        }
+        // Update every fourth player ping and every eighth player score
+        for (int i = 0; i < numPlayers; i += 4) {
+            int flags = PLAYERINFO_UPDATE_FLAG_PING;
+            writer.writePlayerPing(i, 50 + i);
+            if (i % 8 == 0) {
+                flags |= PLAYERINFO_UPDATE_FLAG_SCORE;
+                writer.writePlayerScore(i, 10 + i);
+            }
+            writer.writePlayerUpdateFlags(i, flags);
+            updateMask |= UPDATE_FLAG_WERE_PLAYER_INFO_UPDATES;
+        }
+
+        encoder = new ScoreboardUpdatesDeltaEncoder(byteBuffer, charBuffer);
+        decoder = new ScoreboardUpdatesDeltaDecoder();
+        message = encoder.tryBuildDeltaMessage(updateMask);
+        if (message == null) {
+            throw new AssertionError("A delta message is expected to be built");
+        }
+    }
+
+    @Benchmark
+    public DeltaUpdateMessage encodeDelta() {
+        return encoder.tryBuildDeltaMessage(updateMask);
+    }
+
+    /**
+     * Emulates a steady state of a pooled messages flow (a message is returned to the pool after being applied).
+     */
+    @Benchmark
+    public DeltaUpdateMessage encodeDeltaPooled() {
+        DeltaUpdateMessage pooledMessage = encoder.tryBuildDeltaMessage(updateMask, pool);
+        pooledMessage.recycle();
+        return pooledMessage;
+    }
+
+    /**
+     * The same message is decoded on every invocation.
+     * This is correct since applying the same delta is idempotent.
+     */
+    @Benchmark
+    public ScoreboardData decodeDelta() {
+        decoder.decodeUpdateDelta(scoreboardData, updateMask, message);
+        return scoreboardData;
+    }
+}
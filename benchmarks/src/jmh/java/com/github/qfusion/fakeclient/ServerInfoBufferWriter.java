@@ -0,0 +1,137 @@
+package com.github.qfusion.fakeclient;
+
+import static com.github.qfusion.fakeclient.ScoreboardData.*;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+
+/**
+ * Fills a server list io buffer the same way the native ServerInfoWriter does,
+ * so scoreboard codecs can be benchmarked without the native library.
+ * @see ScoreboardUpdatesCodecsTest for the origin of these helpers.
+ */
+final class ServerInfoBufferWriter {
+    private final ByteBuffer byteBuffer;
+    private final CharBuffer charBuffer;
+
+    ServerInfoBufferWriter(ByteBuffer byteBuffer, CharBuffer charBuffer) {
+        this.byteBuffer = byteBuffer;
+        this.charBuffer = charBuffer;
+    }
+
+    void writeStringAndLength(int offset, String value) {
+        charBuffer.position(0);
+        charBuffer.put(offset, (char)value.length());
+        charBuffer.position(offset + 1);
+        charBuffer.put(value.toCharArray());
+    }
+
+    void writeIntAsBytesAndString(int offset, int value) {
+        writeInt(offset, value);
+        writeStringAndLength(offset + 2, "" + value);
+    }
+
+    void writeShortAsBytesAndString(int offset, short value) {
+        writeShort(offset, value);
+        writeStringAndLength(offset + 1, "" + value);
+    }
+
+    void writeInt(int offset, int value) {
+        charBuffer.position(0);
+        charBuffer.put(offset + 0, (char)((value >> 16) & 0xFFFF));
+        charBuffer.put(offset + 1, (char)((value >> 00) & 0xFFFF));
+    }
+
+    void writeShort(int offset, short value) {
+        charBuffer.position(0);
+        charBuffer.put(offset, (char)value);
+    }
+
+    /**
+     * Writes a complete server info and player info (if any) as for a newly added server.
+     */
+    void writeFullServerInfo(int numPlayers, boolean hasPlayerInfo) {
+        writeShort(HAS_PLAYER_INFO_OFFSET, (short)(hasPlayerInfo ? 1 : 0));
+        writeStringAndLength(ADDRESS_OFFSET, "188.226.221.185:44400");
+        writeStringAndLength(SERVER_NAME_OFFSET, "^2Warsow ^7Clan Arena ^3#1");
+        writeStringAndLength(MODNAME_OFFSET, "basewsw");
+        writeStringAndLength(GAMETYPE_OFFSET, "ca");
+        writeStringAndLength(MAPNAME_OFFSET, "wca1");
+        writeIntAsBytesAndString(TIME_MINUTES_OFFSET, 7);
+        writeIntAsBytesAndString(LIMIT_MINUTES_OFFSET, 0);
+        writeShortAsBytesAndString(TIME_SECONDS_OFFSET, (short)42);
+        writeShortAsBytesAndString(LIMIT_SECONDS_OFFSET, (short)0);
+        writeShort(TIME_FLAGS_OFFSET, (short)0);
+        writeStringAndLength(ALPHA_NAME_OFFSET, "^1ALPHA");
+        writeIntAsBytesAndString(ALPHA_SCORE_OFFSET, 3);
+        writeStringAndLength(BETA_NAME_OFFSET, "^4BETA");
+        writeIntAsBytesAndString(BETA_SCORE_OFFSET, 5);
+        writeShortAsBytesAndString(MAX_CLIENTS_OFFSET, (short)MAX_PLAYERS);
+        writeShortAsBytesAndString(NUM_CLIENTS_OFFSET, (short)numPlayers);
+        writeShortAsBytesAndString(NUM_BOTS_OFFSET, (short)0);
+        writeStringAndLength(NEED_PASSWORD_OFFSET, "no");
+
+        if (hasPlayerInfo) {
+            for (int i = 0; i < numPlayers; ++i) {
+                writePlayerPing(i, 40 + i);
+                writePlayerScore(i, i % 7);
+                writePlayerName(i, "^" + (i % 10) + "Player^7(" + i + ")");
+                writePlayerTeam(i, i % 2 + 1);
+                writePlayerUpdateFlags(i, PLAYERINFO_ALL_FIELDS_MASK);
+            }
+        }
+
+        setUpdatesSizeForPlayersCount(hasPlayerInfo ? numPlayers : 0);
+        setReadFullDataHint(false);
+    }
+
+    void writePlayerPing(int playerNum, int ping) {
+        int offset = PLAYERS_DATA_OFFSET + playerNum * PLAYER_DATA_STRIDE + PLAYER_PING_RELATIVE_OFFSET;
+        writeShortAsBytesAndString(offset, (short)ping);
+    }
+
+    void writePlayerName(int playerNum, String name) {
+        int offset = PLAYERS_DATA_OFFSET + playerNum * PLAYER_DATA_STRIDE + PLAYER_NAME_RELATIVE_OFFSET;
+        writeStringAndLength(offset, name);
+    }
+
+    void writePlayerScore(int playerNum, int score) {
+        int offset = PLAYERS_DATA_OFFSET + playerNum * PLAYER_DATA_STRIDE + PLAYER_SCORE_RELATIVE_OFFSET;
+        writeIntAsBytesAndString(offset, score);
+    }
+
+    void writePlayerTeam(int playerNum, int team) {
+        int offset = PLAYERS_DATA_OFFSET + playerNum * PLAYER_DATA_STRIDE + PLAYER_TEAM_RELATIVE_OFFSET;
+        writeShort(offset, (short)team);
+    }
+
+    void writePlayerUpdateFlags(int playerNum, int flags) {
+        byteBuffer.position(PLAYERS_UPDATE_MASK_OFFSET * 2 + playerNum);
+        byteBuffer.put((byte)flags);
+    }
+
+    void setUpdatesSizeForPlayersCount(int playersCount) {
+        // Use the maximal feasible value
+        int numChars = PLAYERS_DATA_OFFSET - SCOREBOARD_DATA_OFFSET + playersCount * PLAYER_DATA_STRIDE;
+        writeInt(UPDATE_CHARS_WRITTEN_OFFSET, numChars);
+    }
+
+    void setReadFullDataHint(boolean readFullData) {
+        writeShort(UPDATE_HINT_READ_FULL_DATA_OFFSET, (short)(readFullData ? 1 : 0));
+    }
+
+    /**
+     * Reads the scoreboard data part of the buffer the same way
+     * {@link FeedingUiThreadServerListListener} does for a newly added server.
+     */
+    char[] readFullData(int numPlayers, boolean hasPlayerInfo) {
+        int arraySize = PLAYERS_DATA_OFFSET - SCOREBOARD_DATA_OFFSET;
+        if (hasPlayerInfo) {
+            arraySize += numPlayers * PLAYER_DATA_STRIDE;
+        }
+        char[] chars = new char[arraySize];
+        charBuffer.position(SCOREBOARD_DATA_OFFSET);
+        charBuffer.get(chars);
+        return chars;
+    }
+}
@@ -6,7 +6,13 @@
 #include <stdlib.h>
 #include <stdio.h>
 #include <string.h>
+#include <stdarg.h>
+
+#include <mutex>
+
+#ifdef __ANDROID__
 #include <android/log.h>
+#endif
 
 inline void LogWarning( const char *tag, const char *format, ... ) __attribute__( ( format( printf, 2, 3 ) ) );
 
@@ -14,7 +20,13 @@ inline void LogWarning( const char *tag, const char *format, ... ) {
 	va_list va;
 
 	va_start( va, format );
+#ifdef __ANDROID__
 	__android_log_vprint( ANDROID_LOG_WARN, tag, format, va );
+#else
+	fprintf( stderr, "W/%s: ", tag );
+	vfprintf( stderr, format, va );
+	fputc( '\n', stderr );
+#endif
 	va_end( va );
 }
 
@@ -24,14 +36,25 @@ inline void LogError( const char *tag, const char *format, ... ) {
 	va_list va;
 
 	va_start( va, format );
+#ifdef __ANDROID__
 	__android_log_vprint( ANDROID_LOG_ERROR, tag, format, va );
+#else
+	fprintf( stderr, "E/%s: ", tag );
+	vfprintf( stderr, format, va );
+	fputc( '\n', stderr );
+#endif
 	va_end( va );
 }
 
 inline void FailWith( const char *tag, const char *message ) __attribute__( ( noreturn ) );
 
 inline void FailWith( const char *tag, const char *message ) {
+#ifdef __ANDROID__
 	__android_log_assert( "A fatal error occurred, aborting...", tag, "%s", message );
+#else
+	fprintf( stderr, "F/%s: A fatal error occurred, aborting... %s\n", tag, message );
+	abort();
+#endif
 }
 
 static inline System *HandleToSystem( jlong handle ) {
@@ -304,8 +327,11 @@ static ClassHolder outOfMemoryException_Class( "java/lang/OutOfMemoryError" );
 static ClassHolder console_Class( "com/github/qfusion/fakeclient/NativeBridgeConsole" );
 
 static FieldHolder console_ioBuffer_Field( &console_Class, "ioBuffer", "Ljava/nio/ByteBuffer;" );
+static FieldHolder console_isOutputBuffered_Field( &console_Class, "isOutputBuffered", "Z" );
+static FieldHolder console_maxIoBufferSize_Field( &console_Class, "maxIoBufferSize", "I" );
 
 static MethodHolder console_onNewBufferData_Method( &console_Class, "onNewBufferData", "(II)V" );
+static MethodHolder console_growIoBuffer_Method( &console_Class, "growIoBuffer", "(I)Ljava/nio/ByteBuffer;" );
 
 static ClassHolder clientListener_Class( "com/github/qfusion/fakeclient/NativeBridgeClientListener" );
 
@@ -344,24 +370,93 @@ class JavaConsole : public Console
 
 	StringBuffer stringBuffer;
 
+	// A buffered console accumulates an output in the Java buffer and transfers it on Flush() calls
+	const bool isBuffered;
+	size_t numBufferedBytes { 0 };
+
+	// Guards the string buffer, the Java buffer and the number of buffered bytes.
+	// A console might print from a thread other than the frame thread (e.g. while executing a command),
+	// so an output and Java calls of a console are serialized by this mutex.
+	// The mutex is recursive since the Java code might print to the same console while handling an output.
+	std::recursive_mutex bufferMutex;
+
+	// A max buffer size the growth has been refused for.
+	// Growth is not requested again until the Java code changes the max size.
+	jint growthRefusedForMaxSize { -1 };
+	// Links in the list of buffered consoles
+	JavaConsole *prevBuffered { nullptr };
+	JavaConsole *nextBuffered { nullptr };
+
+	// The mutex is recursive since Java code that handles a flushed output might create new consoles.
+	// Note that consoles must not be deleted while handling a flushed output.
+	static JavaConsole *bufferedListHead;
+	static std::recursive_mutex bufferedListMutex;
+
 	bool CallOnNewBufferData( JNIEnv *env, ssize_t numBytes );
+	bool TryGrowBuffer( JNIEnv *env, size_t requiredSize );
+	void DumpInChunks( JNIEnv *env, const uint8_t *stringData, size_t numBytes );
 
 public:
-	JavaConsole( jobject globalConsoleRef_, jbyte *bufferBytes_, size_t bufferCapacity_ ) {
+	JavaConsole( jobject globalConsoleRef_, jbyte *bufferBytes_, size_t bufferCapacity_, bool isBuffered_ )
+		: isBuffered( isBuffered_ ) {
 		this->globalConsoleRef = globalConsoleRef_;
 		this->javaBufferBytes = bufferBytes_;
 		this->javaBufferCapacity = bufferCapacity_;
+
+		if( isBuffered ) {
+			std::lock_guard<std::recursive_mutex> guard( bufferedListMutex );
+			nextBuffered = bufferedListHead;
+			if( bufferedListHead ) {
+				bufferedListHead->prevBuffered = this;
+			}
+			bufferedListHead = this;
+		}
 	}
 
 	~JavaConsole() override {
+		if( isBuffered ) {
+			std::lock_guard<std::recursive_mutex> guard( bufferedListMutex );
+			if( prevBuffered ) {
+				prevBuffered->nextBuffered = nextBuffered;
+			} else {
+				bufferedListHead = nextBuffered;
+			}
+			if( nextBuffered ) {
+				nextBuffered->prevBuffered = prevBuffered;
+			}
+		}
+
 		if( auto env = GetJNIEnv() ) {
+			// Do not lose an output that has not been transferred yet.
+			// The console is no longer in the buffered list, but a thread might still be printing to it.
+			{
+				std::lock_guard<std::recursive_mutex> bufferGuard( bufferMutex );
+				Flush( env );
+			}
 			env->DeleteGlobalRef( globalConsoleRef );
 		}
 	}
 
 	void VPrintf( const char *format, va_list va ) override;
+
+	/**
+	 * Transfers an accumulated output of a buffered console (if any).
+	 * The buffer mutex must be held by the caller.
+	 */
+	void Flush( JNIEnv *env );
+
+	/**
+	 * Transfers accumulated outputs of all buffered consoles. Called at the end of every frame.
+	 */
+	static void FlushAllBuffered( JNIEnv *env );
 };
 
+JavaConsole *JavaConsole::bufferedListHead = nullptr;
+std::recursive_mutex JavaConsole::bufferedListMutex;
+
+/**
+ * Returns true if there was an exception (it is logged and cleared in this case).
+ */
 static bool CheckForException( JNIEnv *env, const char *function ) {
 	if( !env->ExceptionOccurred() ) {
 		return false;
@@ -369,7 +464,7 @@ static bool CheckForException( JNIEnv *env, const char *function ) {
 	LogError( function, "An exception occurred while calling Java code from %s\n", function );
 	env->ExceptionDescribe();
 	env->ExceptionClear();
-	return false;
+	return true;
 }
 
 bool JavaConsole::CallOnNewBufferData( JNIEnv *env, ssize_t numBytes ) {
@@ -377,10 +472,70 @@ bool JavaConsole::CallOnNewBufferData( JNIEnv *env, ssize_t numBytes ) {
 
 	assert( method && globalConsoleRef );
 	env->CallVoidMethod( globalConsoleRef, method, (jint)0, (jint)numBytes );
-	return CheckForException( env, "JavaConsole::CallOnNewBufferData()" );
+	return !CheckForException( env, "JavaConsole::CallOnNewBufferData()" );
+}
+
+bool JavaConsole::TryGrowBuffer( JNIEnv *env, size_t requiredSize ) {
+	constexpr const char *tag = "JavaConsole::TryGrowBuffer()";
+	jmethodID method = console_growIoBuffer_Method.Get();
+
+	assert( method && globalConsoleRef );
+	assert( !numBufferedBytes );
+	// Avoid an upcall for every oversized output if the buffer can't grow.
+	// Reading a field does not execute Java code.
+	const jint maxSize = env->GetIntField( globalConsoleRef, console_maxIoBufferSize_Field.Get() );
+	if( maxSize <= 0 || (size_t)maxSize <= javaBufferCapacity || maxSize == growthRefusedForMaxSize ) {
+		return false;
+	}
+
+	jobject newBuffer = env->CallObjectMethod( globalConsoleRef, method, (jint)requiredSize );
+	if( CheckForException( env, tag ) || !newBuffer ) {
+		growthRefusedForMaxSize = maxSize;
+		return false;
+	}
+
+	void *address = env->GetDirectBufferAddress( newBuffer );
+	jlong capacity = env->GetDirectBufferCapacity( newBuffer );
+	env->DeleteLocalRef( newBuffer );
+	if( !address || capacity <= 0 ) {
+		LogError( tag, "Can't get an address of the new io buffer\n" );
+		growthRefusedForMaxSize = maxSize;
+		return false;
+	}
+
+	// The Java object keeps a reference to the new buffer, so the address remains valid
+	javaBufferBytes = (jbyte *)address;
+	javaBufferCapacity = (size_t)capacity;
+	return true;
+}
+
+void JavaConsole::Flush( JNIEnv *env ) {
+	if( !numBufferedBytes ) {
+		return;
+	}
+
+	const size_t numBytes = numBufferedBytes;
+	// Reset it first, the Java code might print something while handling the data
+	numBufferedBytes = 0;
+	CallOnNewBufferData( env, numBytes );
+}
+
+void JavaConsole::FlushAllBuffered( JNIEnv *env ) {
+	std::lock_guard<std::recursive_mutex> guard( bufferedListMutex );
+	for( JavaConsole *console = bufferedListHead; console; console = console->nextBuffered ) {
+		// Do not wait for a console that is being printed to by another thread.
+		// Its output is transferred on the next frame (or by the printing thread if the buffer gets full).
+		// This also prevents a lock order inversion if the printing thread creates a console in Java code.
+		std::unique_lock<std::recursive_mutex> bufferLock( console->bufferMutex, std::try_to_lock );
+		if( bufferLock.owns_lock() ) {
+			console->Flush( env );
+		}
+	}
 }
 
 void JavaConsole::VPrintf( const char *format, va_list va ) {
+	std::lock_guard<std::recursive_mutex> bufferGuard( bufferMutex );
+
 	stringBuffer.VPrintf( format, va );
 
 	if( stringBuffer.WentOutOfMemory() ) {
@@ -395,14 +550,40 @@ void JavaConsole::VPrintf( const char *format, va_list va ) {
 		FailWith( "JavaConsole::VPrintf()", "Can't get the current JNI environment\n" );
 	}
 
-	size_t bytesLeft = stringBuffer.Length();
+	size_t numBytes = stringBuffer.Length();
 	static_assert( sizeof( char ) == sizeof( uint8_t ), "" );
-	uint8_t *stringData = (uint8_t*)stringBuffer.Buffer();
+	const uint8_t *stringData = (const uint8_t*)stringBuffer.Buffer();
 	// Skip the last zero byte
-	if( bytesLeft && !stringData[bytesLeft - 1] ) {
-		bytesLeft--;
+	if( numBytes && !stringData[numBytes - 1] ) {
+		numBytes--;
+	}
+
+	if( numBytes > javaBufferCapacity ) {
+		// An accumulated output resides in the current buffer
+		Flush( env );
+		// Transfer the data in a single call if the Java code allows growing the buffer
+		TryGrowBuffer( env, numBytes );
 	}
 
+	if( isBuffered ) {
+		// Flush the buffer if the data does not fit it
+		if( numBufferedBytes + numBytes > javaBufferCapacity ) {
+			Flush( env );
+		}
+		// Transfer the data later if it fits the buffer
+		if( numBytes <= javaBufferCapacity ) {
+			memcpy( javaBufferBytes + numBufferedBytes, stringData, numBytes );
+			numBufferedBytes += numBytes;
+			stringBuffer.Clear();
+			return;
+		}
+	}
+
+	DumpInChunks( env, stringData, numBytes );
+	stringBuffer.Clear();
+}
+
+void JavaConsole::DumpInChunks( JNIEnv *env, const uint8_t *stringData, size_t bytesLeft ) {
 	// Dump data in chunks (the java code cares about newlines)
 	while( bytesLeft > 0 ) {
 		// Dump data in chunks
@@ -448,8 +629,6 @@ void JavaConsole::VPrintf( const char *format, va_list va ) {
 		}
 		bytesLeft -= ( stringData - chunkStart );
 	}
-
-	stringBuffer.Clear();
 }
 
 static JavaConsole *CreateConsole( JNIEnv *env, jobject javaConsole ) {
@@ -486,7 +665,8 @@ static JavaConsole *CreateConsole( JNIEnv *env, jobject javaConsole ) {
 		return nullptr;
 	}
 
-	return new(mem)JavaConsole( globalConsoleRef, (jbyte *)address, (size_t)capacity );
+	const bool isBuffered = env->GetBooleanField( javaConsole, console_isOutputBuffered_Field.Get() ) != JNI_FALSE;
+	return new(mem)JavaConsole( globalConsoleRef, (jbyte *)address, (size_t)capacity, isBuffered );
 }
 
 class JavaClientListener : public ClientListener
@@ -701,14 +881,119 @@ extern "C" JNIEXPORT void JNICALL Java_com_github_qfusion_fakeclient_System_nati
 	HandleToSystem( nativeSystem )->DeleteClient( HandleToClient( nativeClient ) );
 }
 
+/*
+ * Class:     com_github_qfusion_fakeclient_System
+ * Method:    nativeNewClients
+ * Signature: (J[Lcom/github/qfusion/fakeclient/NativeBridgeConsole;[J)I
+ */
+extern "C" JNIEXPORT jint JNICALL Java_com_github_qfusion_fakeclient_System_nativeNewClients
+	( JNIEnv *env, jclass, jlong nativeSystem, jobjectArray javaConsoles, jlongArray nativeClients ) {
+
+	System *system = HandleToSystem( nativeSystem );
+	const jsize numConsoles = env->GetArrayLength( javaConsoles );
+	jlong *handles = env->GetLongArrayElements( nativeClients, nullptr );
+	if( !handles ) {
+		ThrowCheckingPending( env, outOfMemoryException_Class, "Can't get elements of the native clients array" );
+		return 0;
+	}
+
+	jint numClients = 0;
+	for( jsize i = 0; i < numConsoles; ++i ) {
+		jobject javaConsole = env->GetObjectArrayElement( javaConsoles, i );
+		auto *console = CreateConsole( env, javaConsole );
+		env->DeleteLocalRef( javaConsole );
+		if( !console ) {
+			break;
+		}
+		auto *client = system->NewClient( console );
+		if( !client ) {
+			console->~JavaConsole();
+			free( console );
+			break;
+		}
+		handles[numClients++] = ClientToHandle( client );
+	}
+
+	// The Java side never gets handles of created clients if the call throws, so they would leak.
+	if( jthrowable exception = env->ExceptionOccurred() ) {
+		// Deletion of clients might call Java methods (e.g. flush consoles) that are illegal while it is pending
+		env->ExceptionClear();
+		for( jint i = 0; i < numClients; ++i ) {
+			system->DeleteClient( HandleToClient( handles[i] ) );
+		}
+		numClients = 0;
+		env->Throw( exception );
+		env->DeleteLocalRef( exception );
+	}
+
+	env->ReleaseLongArrayElements( nativeClients, handles, 0 );
+	return numClients;
+}
+
+/*
+ * Class:     com_github_qfusion_fakeclient_System
+ * Method:    nativeDeleteClients
+ * Signature: (J[JI)V
+ */
+extern "C" JNIEXPORT void JNICALL Java_com_github_qfusion_fakeclient_System_nativeDeleteClients
+	( JNIEnv *env, jclass, jlong nativeSystem, jlongArray nativeClients, jint numClients ) {
+
+	System *system = HandleToSystem( nativeSystem );
+	jlong *handles = env->GetLongArrayElements( nativeClients, nullptr );
+	if( !handles ) {
+		ThrowCheckingPending( env, outOfMemoryException_Class, "Can't get elements of the native clients array" );
+		return;
+	}
+
+	for( jint i = 0; i < numClients; ++i ) {
+		system->DeleteClient( HandleToClient( handles[i] ) );
+	}
+
+	// Nothing has been modified
+	env->ReleaseLongArrayElements( nativeClients, handles, JNI_ABORT );
+}
+
+/*
+ * Class:     com_github_qfusion_fakeclient_System
+ * Method:    nativeExecuteCommands
+ * Signature: (JLjava/nio/ByteBuffer;I)V
+ */
+extern "C" JNIEXPORT void JNICALL Java_com_github_qfusion_fakeclient_System_nativeExecuteCommands
+	( JNIEnv *env, jclass, jlong, jobject commandsBuffer, jint numBytes ) {
+
+	const uint8_t *bytes = (const uint8_t *)env->GetDirectBufferAddress( commandsBuffer );
+	if( !bytes ) {
+		const char *message = "Can't get an underlying native address of the commands buffer";
+		ThrowCheckingPending( env, illegalArgumentException_Class, message );
+		return;
+	}
+
+	// See CommandBatch.java for the entries layout.
+	// Entries are not aligned, so integer parts are copied.
+	const uint8_t *ptr = bytes;
+	const uint8_t *const end = bytes + numBytes;
+	while( ptr < end ) {
+		jlong nativeClient;
+		int32_t length;
+		memcpy( &nativeClient, ptr, sizeof( jlong ) );
+		memcpy( &length, ptr + sizeof( jlong ), sizeof( int32_t ) );
+		const char *command = (const char *)( ptr + sizeof( jlong ) + sizeof( int32_t ) );
+		HandleToClient( nativeClient )->ExecuteCommand( command );
+		ptr += sizeof( jlong ) + sizeof( int32_t ) + length + 1;
+	}
+}
+
 /*
  * Class:     com_github_qfusion_fakeclient_System
  * Method:    nativeFrame
  * Signature: (JI)V
  */
 extern "C" JNIEXPORT void JNICALL Java_com_github_qfusion_fakeclient_System_nativeFrame
-	( JNIEnv *, jclass, jlong nativeSystem, jint maxMillis ) {
+	( JNIEnv *env, jclass, jlong nativeSystem, jint maxMillis ) {
 	HandleToSystem( nativeSystem )->Frame( (unsigned)maxMillis );
+
+	// Transfer console outputs accumulated during the frame
+	JavaConsole::FlushAllBuffered( env );
 }
 
 /*
@@ -758,30 +1043,25 @@ extern "C" JNIEXPORT void JNICALL Java_com_github_qfusion_fakeclient_Client_nati
 /*
  * Class:     com_github_qfusion_fakeclient_Client
  * Method:    nativeExecuteCommand
- * Signature: (J[B)V
+ * Signature: (JLjava/nio/ByteBuffer;I)V
  */
 extern "C" JNIEXPORT void JNICALL Java_com_github_qfusion_fakeclient_Client_nativeExecuteCommand
-	( JNIEnv *env, jclass, jlong nativeClient, jbyteArray byteArray ) {
-
-	Client *client = HandleToClient( nativeClient );
-	jint length = env->GetArrayLength( byteArray );
-	if( length <= 127 ) {
-		jbyte buffer[128];
-		env->GetByteArrayRegion( byteArray, 0, length, buffer );
-		buffer[length] = '\0';
-		client->ExecuteCommand( (const char *) buffer );
+	( JNIEnv *env, jclass, jlong nativeClient, jobject commandBuffer, jint length ) {
+
+	const char *command = (const char *)env->GetDirectBufferAddress( commandBuffer );
+	if( !command ) {
+		const char *message = "Can't get an underlying native address of the command buffer";
+		ThrowCheckingPending( env, illegalArgumentException_Class, message );
 		return;
 	}
 
-	jbyte *buffer = (jbyte *)malloc( length + 1 );
-	if( !buffer ) {
-		ThrowCheckingPending( env, outOfMemoryException_Class, "Can't allocate a buffer for command bytes" );
+	// The command bytes are followed by a zero byte written by the Java code, so they can be used in-place
+	if( command[length] != '\0' ) {
+		ThrowCheckingPending( env, illegalArgumentException_Class, "The command bytes are not zero-terminated" );
 		return;
 	}
-	env->GetByteArrayRegion( byteArray, 0, length, buffer );
-	buffer[length] = '\0';
-	client->ExecuteCommand( (const char *)buffer );
-	free( buffer );
+
+	HandleToClient( nativeClient )->ExecuteCommand( command );
 }
 
 // Make unqualified aliases for exported Java constants
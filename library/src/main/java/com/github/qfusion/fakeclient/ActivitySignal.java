@@ -0,0 +1,54 @@
+package com.github.qfusion.fakeclient;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A flag that is raised when there is a pending work for the native library
+ * (e.g. a command has been executed, a client has been created)
+ * and a thread that performs {@link System#frame(int)} calls may wait for.
+ */
+final class ActivitySignal {
+    /**
+     * Guarded by this object monitor
+     */
+    private boolean isSignaled;
+
+    synchronized void signal() {
+        if (!isSignaled) {
+            isSignaled = true;
+            notifyAll();
+        }
+    }
+
+    synchronized boolean isSignaled() {
+        return isSignaled;
+    }
+
+    synchronized void clear() {
+        isSignaled = false;
+    }
+
+    /**
+     * Waits until the signal is raised or the timeout expires and clears the signal.
+     * An interruption of the waiting thread stops waiting (the interruption status is kept).
+     * @return True if the signal has been raised.
+     */
+    synchronized boolean await(long timeoutNanos) {
+        final long deadline = java.lang.System.nanoTime() + timeoutNanos;
+        while (!isSignaled) {
+            long nanosLeft = deadline - java.lang.System.nanoTime();
+            if (nanosLeft <= 0) {
+                break;
+            }
+            try {
+                TimeUnit.NANOSECONDS.timedWait(this, nanosLeft);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        boolean result = isSignaled;
+        isSignaled = false;
+        return result;
+    }
+}
@@ -0,0 +1,79 @@
+package com.github.qfusion.fakeclient;
+
+import java.util.ArrayList;
+
+/**
+ * A {@link FeedingUiThreadServerListListener} that collects all events produced during a native frame
+ * and delivers them to the UI thread using a single {@link MessagePipe#post(Runnable)} call.
+ * {@link ServerListListenerPipeEndpoint#onUpdatesBatchEnd()} is called after a batch has been applied.
+ * This listener relies on {@link System#frame(int)} notifying it of native frame ends.
+ */
+public class BatchingUiThreadServerListListener extends FeedingUiThreadServerListListener {
+    /**
+     * A batch that is being filled by the frame thread.
+     */
+    private ServerListEventsBatch currBatch = new ServerListEventsBatch(this);
+    /**
+     * A batch that has been applied by the UI thread and can be reused (if any).
+     * Guarded by this object monitor.
+     */
+    private ServerListEventsBatch spareBatch;
+
+    public BatchingUiThreadServerListListener(MessagePipe uiThreadPipe, ServerListListenerPipeEndpoint pipeEndpoint) {
+        super(uiThreadPipe, pipeEndpoint);
+    }
+
+    public BatchingUiThreadServerListListener(MessagePipe uiThreadPipe,
+                                              ServerListListenerPipeEndpoint pipeEndpoint,
+                                              int pooledDeltaMessagesLimit,
+                                              int pooledScoreboardBuffersLimit) {
+        super(uiThreadPipe, pipeEndpoint, pooledDeltaMessagesLimit, pooledScoreboardBuffersLimit);
+    }
+
+    @Override
+    protected void postToUiThread(Runnable event) {
+        currBatch.events.add(event);
+    }
+
+    @Override
+    protected void onFrameEnd() {
+        if (currBatch.events.isEmpty()) {
+            return;
+        }
+
+        uiThreadPipe.post(currBatch);
+
+        ServerListEventsBatch nextBatch;
+        synchronized (this) {
+            nextBatch = spareBatch;
+            spareBatch = null;
+        }
+        currBatch = nextBatch != null ? nextBatch : new ServerListEventsBatch(this);
+    }
+
+    void recycleBatch(ServerListEventsBatch batch) {
+        synchronized (this) {
+            spareBatch = batch;
+        }
+    }
+}
+
+final class ServerListEventsBatch implements Runnable {
+    final ArrayList<Runnable> events = new ArrayList<Runnable>();
+    private final BatchingUiThreadServerListListener listener;
+
+    ServerListEventsBatch(BatchingUiThreadServerListListener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void run() {
+        final ArrayList<Runnable> events = this.events;
+        for (int i = 0, end = events.size(); i < end; ++i) {
+            events.get(i).run();
+        }
+        events.clear();
+        listener.getPipeEndpoint().onUpdatesBatchEnd();
+        listener.recycleBatch(this);
+    }
+}
@@ -0,0 +1,77 @@
+package com.github.qfusion.fakeclient;
+
+/**
+ * A bounded pool of reusable objects.
+ * Objects are usually acquired by a thread that posts messages and released by a thread that runs them.
+ * An object that gets released to a full pool is dropped.
+ * @param <T> A type of pooled objects. Only objects created by {@link BoundedObjectsPool#newObject()} are pooled.
+ */
+abstract class BoundedObjectsPool<T extends BoundedObjectsPool.PooledObject> {
+    /**
+     * A base class of objects that might be returned to a pool they have been created by.
+     */
+    static abstract class PooledObject {
+        /**
+         * A pool this object should be returned to after use (if any).
+         */
+        final BoundedObjectsPool<?> pool;
+        boolean isInPool;
+
+        PooledObject(BoundedObjectsPool<?> pool) {
+            this.pool = pool;
+        }
+    }
+
+    private final Object[] freeObjects;
+    private int numFreeObjects;
+
+    BoundedObjectsPool(int limit) {
+        this.freeObjects = new Object[limit];
+    }
+
+    /**
+     * Creates a new object that belongs to this pool.
+     */
+    protected abstract T newObject();
+
+    /**
+     * Returns a free pooled object or a new one if there is no free objects.
+     */
+    @SuppressWarnings("unchecked")
+    synchronized T acquire() {
+        if (numFreeObjects == 0) {
+            return newObject();
+        }
+
+        // Only objects created by this pool are released to it
+        T object = (T)freeObjects[--numFreeObjects];
+        freeObjects[numFreeObjects] = null;
+        object.isInPool = false;
+        return object;
+    }
+
+    /**
+     * Puts the object back to the pool. The object is dropped if the pool is full.
+     */
+    synchronized void release(PooledObject object) {
+        if (BuildConfig.DEBUG) {
+            if (object.pool != this) {
+                throw new AssertionError("The object does not belong to this pool");
+            }
+            if (object.isInPool) {
+                throw new AssertionError("The object has been already released");
+            }
+        }
+
+        if (numFreeObjects == freeObjects.length) {
+            return;
+        }
+
+        object.isInPool = true;
+        freeObjects[numFreeObjects++] = object;
+    }
+
+    synchronized int numFreeObjects() {
+        return numFreeObjects;
+    }
+}
@@ -23,6 +23,12 @@ public final class BufferLineTokensView {
      */
     final int[] intrinsicBuffer = new int[2];
 
+    /**
+     * A buffer owned by the view that is used by containers that can't expose their storage
+     * as an int array (like a {@link RingLinesStore}). Tokens are copied to this buffer in this case.
+     */
+    int[] ownBuffer;
+
     public final int[] getArray() {
         return arrayRef;
     }
@@ -11,6 +11,12 @@ public final class CharArrayView implements CharSequence {
     int length;
     private int hash;
 
+    /**
+     * A buffer owned by the view that is used by containers that can't expose their storage
+     * as a char array (like a {@link RingLinesStore}). Chars are copied to this buffer in this case.
+     */
+    char[] ownBuffer;
+
     CharArrayView() {}
 
     public CharArrayView(char[] arrayRef, int arrayOffset, int length) {
@@ -1,6 +1,13 @@
 package com.github.qfusion.fakeclient;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Represents a fake game client (a player that connects to a server).
@@ -18,26 +25,41 @@ public class Client {
     long nativeClient;
     private NativeBridgeConsole console;
     private NativeBridgeClientListener listener;
+    /**
+     * A signal of the {@link System} that has created the client
+     */
+    private final ActivitySignal activitySignal;
 
-    private Charset charset = Charset.forName("UTF-8");
+    /**
+     * A reused command buffer and its encoder. Guarded by the {@link Client#lock}. Allocated on demand.
+     */
+    private ByteBuffer commandBuffer;
+    private CommandEncoder commandEncoder;
 
-    Client(long nativeClient, NativeBridgeConsole console) {
+    Client(long nativeClient, NativeBridgeConsole console, ActivitySignal activitySignal) {
         this.nativeClient = nativeClient;
         this.console = console;
+        this.activitySignal = activitySignal;
     }
 
     public final NativeBridgeConsole getConsole() { return console; }
     public final NativeBridgeClientListener getListener() { return listener; }
 
     private static native void nativeSetListener(long nativeClient, NativeBridgeClientListener listener);
-    private static native void nativeExecuteCommand(long nativeClient, byte[] commandUtf8Bytes);
+    /**
+     * @param commandBuffer A direct buffer that contains UTF-8 command bytes at its start followed by a zero byte.
+     * @param length A length of the command bytes (not including the zero byte).
+     */
+    private static native void nativeExecuteCommand(long nativeClient, ByteBuffer commandBuffer, int length);
 
     /**
      * Clients are not intended to be used from multiple threads.
      * However protecting these native calls that are not thread-safe
      * and that could lead to very hard to find bugs is misused is a good idea.
+     * Each client has its own native object, so calls for different clients do not contend.
+     * A {@link ReentrantLock} is used so a {@link CommandBatch} can hold locks of multiple clients at once.
      */
-    private static final Object lock = new Object();
+    final ReentrantLock lock = new ReentrantLock();
 
     /**
      * Sets a {@link ClientListener} for the client.
@@ -46,8 +68,11 @@ public class Client {
      *                 A null listener is allowed.
      */
     public void setListener(NativeBridgeClientListener listener) {
-        synchronized (lock) {
+        lock.lock();
+        try {
             nativeSetListener(nativeClient, listener);
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -55,8 +80,108 @@ public class Client {
      * Executes a client command typed by a user (a player) in a console.
      */
     public void executeCommand(String command) {
-        synchronized (lock) {
-            nativeExecuteCommand(nativeClient, command.getBytes(charset));
+        executeCommand((CharSequence)command);
+    }
+
+    /**
+     * Executes a client command typed by a user (a player) in a console.
+     * The command is encoded in a reused native buffer, so this call does not allocate in a steady state.
+     */
+    public void executeCommand(CharSequence command) {
+        if (command == null) {
+            throw new IllegalArgumentException("The command is null");
+        }
+
+        lock.lock();
+        try {
+            if (commandEncoder == null) {
+                commandEncoder = new CommandEncoder();
+                commandBuffer = CommandEncoder.newBuffer(256);
+            }
+            commandBuffer.clear();
+            commandBuffer = commandEncoder.encode(command, commandBuffer);
+            // Do not count the trailing zero byte
+            nativeExecuteCommand(nativeClient, commandBuffer, commandBuffer.position() - 1);
+        } finally {
+            lock.unlock();
+        }
+        activitySignal.signal();
+    }
+}
+
+/**
+ * Encodes commands in UTF-8 to native buffers without allocations in a steady state.
+ * Not thread-safe.
+ */
+final class CommandEncoder {
+    private final CharsetEncoder encoder = Charset.forName("UTF-8").newEncoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    /**
+     * Command chars are copied here since wrapping an arbitrary char sequence allocates a buffer.
+     */
+    private CharBuffer chars = CharBuffer.allocate(128);
+
+    static ByteBuffer newBuffer(int capacity) {
+        return ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Returns the buffer itself if it has at least the specified number of free bytes after its position,
+     * or a new larger buffer that contains bytes of the buffer before its position.
+     */
+    static ByteBuffer ensureFreeBytes(ByteBuffer buffer, int numFreeBytes) {
+        if (buffer.remaining() >= numFreeBytes) {
+            return buffer;
         }
+        int newCapacity = Math.max(2 * buffer.capacity(), buffer.position() + numFreeBytes);
+        ByteBuffer newBuffer = newBuffer(newCapacity);
+        buffer.flip();
+        newBuffer.put(buffer);
+        return newBuffer;
+    }
+
+    /**
+     * Writes UTF-8 bytes of the command followed by a zero byte at the buffer position.
+     * @return The buffer or a new larger one (see {@link CommandEncoder#ensureFreeBytes(ByteBuffer, int)}).
+     *         The position of the returned buffer is set after the written zero byte.
+     */
+    ByteBuffer encode(CharSequence command, ByteBuffer buffer) {
+        final int length = command.length();
+        if (chars.capacity() < length) {
+            chars = CharBuffer.allocate(Math.max(length, 2 * chars.capacity()));
+        }
+        chars.clear();
+        final char[] charsArray = chars.array();
+        if (command instanceof String) {
+            ((String)command).getChars(0, length, charsArray, 0);
+        } else {
+            for (int i = 0; i < length; ++i) {
+                charsArray[i] = command.charAt(i);
+            }
+        }
+        chars.limit(length);
+
+        // Reserve room at least for an ASCII command, the buffer might grow further while encoding
+        buffer = ensureFreeBytes(buffer, length + 1);
+        encoder.reset();
+        for (;;) {
+            CoderResult result = encoder.encode(chars, buffer, true);
+            if (result.isOverflow()) {
+                buffer = ensureFreeBytes(buffer, Math.max(16, 3 * chars.remaining()) + 1);
+                continue;
+            }
+            result = encoder.flush(buffer);
+            if (result.isOverflow()) {
+                buffer = ensureFreeBytes(buffer, 16);
+                continue;
+            }
+            break;
+        }
+
+        buffer = ensureFreeBytes(buffer, 1);
+        buffer.put((byte)0);
+        return buffer;
     }
 }
@@ -0,0 +1,379 @@
+package com.github.qfusion.fakeclient;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import static com.github.qfusion.fakeclient.ScoreboardData.*;
+
+/**
+ * A {@link FeedingUiThreadServerListListener} that keeps only the latest pending state of each server
+ * until the UI thread applies it. Subsequent updates of a server are merged,
+ * an addition or an update followed by a removal is dropped.
+ * If the UI thread lags behind, it does work proportional to the number of servers
+ * rather than to the number of events.
+ * Pending states are applied by a single UI thread message that is posted only if there is no one pending.
+ * {@link ServerListListenerPipeEndpoint#onUpdatesBatchEnd()} is called after all pending states have been applied.
+ */
+public class CoalescingUiThreadServerListListener extends FeedingUiThreadServerListListener {
+    /**
+     * Pending server states in order of their first events. Guarded by this object monitor.
+     * A state that has been cancelled before it has been drained is replaced by null
+     * (see {@link PendingServerState#pendingIndex}), so cancelling does not require a linear search.
+     */
+    private ArrayList<PendingServerState> pendingStates = new ArrayList<PendingServerState>();
+    private ArrayList<PendingServerState> drainedStates = new ArrayList<PendingServerState>();
+    private final HashMap<Integer, PendingServerState> pendingStatesById = new HashMap<Integer, PendingServerState>();
+    private final ArrayList<PendingServerState> freeStates = new ArrayList<PendingServerState>();
+    private boolean isDrainScheduled;
+
+    final ScoreboardUpdatesDeltaMerger deltaMerger = new ScoreboardUpdatesDeltaMerger();
+
+    private final Runnable drainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            drainPendingStates();
+        }
+    };
+
+    public CoalescingUiThreadServerListListener(MessagePipe uiThreadPipe, ServerListListenerPipeEndpoint pipeEndpoint) {
+        super(uiThreadPipe, pipeEndpoint);
+    }
+
+    public CoalescingUiThreadServerListListener(MessagePipe uiThreadPipe,
+                                                ServerListListenerPipeEndpoint pipeEndpoint,
+                                                int pooledDeltaMessagesLimit,
+                                                int pooledScoreboardBuffersLimit) {
+        super(uiThreadPipe, pipeEndpoint, pooledDeltaMessagesLimit, pooledScoreboardBuffersLimit);
+    }
+
+    @Override
+    public void onServerAdded(int instanceId) {
+        char[] fullData = readFullBufferData();
+        synchronized (this) {
+            PendingServerState state = findOrNewState(instanceId);
+            if (state.fullData != null || state.deltaMessage != null) {
+                if (BuildConfig.DEBUG) {
+                    throw new AssertionError("A server " + instanceId + " has been added while it is present");
+                }
+                state.dropUpdates(scoreboardBuffersPool);
+            }
+            state.isAdded = true;
+            state.fullData = fullData;
+            scheduleDrainIfNeeded();
+        }
+    }
+
+    @Override
+    public void onServerUpdated(int instanceId, int serverInfoUpdateMask) {
+        DeltaUpdateMessage message = deltaEncoder.tryBuildDeltaMessage(serverInfoUpdateMask, deltaMessagesPool);
+        char[] fullData = message == null ? readFullBufferData() : null;
+        synchronized (this) {
+            PendingServerState state = findOrNewState(instanceId);
+            if (fullData != null) {
+                // A full data supersedes all pending updates.
+                // Report all fields that were mentioned by pending updates as updated.
+                if (state.deltaMessage != null) {
+                    state.fullDataUpdateMask |= state.deltaUpdateMask;
+                    state.deltaMessage.recycle();
+                    state.deltaMessage = null;
+                    state.deltaUpdateMask = 0;
+                }
+                state.recycleFullData(scoreboardBuffersPool);
+                state.fullData = fullData;
+                state.fullDataUpdateMask |= serverInfoUpdateMask;
+            } else if (state.deltaMessage != null) {
+                DeltaUpdateMessage merged = deltaMerger.tryMergeDeltas(state.deltaMessage, state.deltaUpdateMask,
+                                                                       message, serverInfoUpdateMask,
+                                                                       deltaMessagesPool);
+                state.deltaUpdateMask |= serverInfoUpdateMask;
+                state.deltaUpdateMask = deltaMerger.fixMergedUpdateMask(merged, state.deltaUpdateMask);
+                state.deltaMessage.recycle();
+                message.recycle();
+                state.deltaMessage = merged;
+            } else {
+                state.deltaMessage = message;
+                state.deltaUpdateMask = serverInfoUpdateMask;
+            }
+            scheduleDrainIfNeeded();
+        }
+    }
+
+    @Override
+    public void onServerRemoved(int instanceId) {
+        synchronized (this) {
+            PendingServerState state = findOrNewState(instanceId);
+            state.dropUpdates(scoreboardBuffersPool);
+            if (state.isAdded) {
+                // The addition has not been delivered yet, so just forget it
+                state.isAdded = false;
+                if (!state.isRemovedBefore) {
+                    pendingStatesById.remove(instanceId);
+                    pendingStates.set(state.pendingIndex, null);
+                    freeStates.add(state);
+                    return;
+                }
+            } else {
+                state.isRemovedBefore = true;
+            }
+            scheduleDrainIfNeeded();
+        }
+    }
+
+    private PendingServerState findOrNewState(int instanceId) {
+        PendingServerState state = pendingStatesById.get(instanceId);
+        if (state != null) {
+            return state;
+        }
+
+        int numFreeStates = freeStates.size();
+        state = numFreeStates > 0 ? freeStates.remove(numFreeStates - 1) : new PendingServerState();
+        state.instanceId = instanceId;
+        state.pendingIndex = pendingStates.size();
+        pendingStatesById.put(instanceId, state);
+        pendingStates.add(state);
+        return state;
+    }
+
+    private void scheduleDrainIfNeeded() {
+        if (!isDrainScheduled) {
+            isDrainScheduled = true;
+            postToUiThread(drainRunnable);
+        }
+    }
+
+    private void drainPendingStates() {
+        ArrayList<PendingServerState> states;
+        synchronized (this) {
+            states = pendingStates;
+            pendingStates = drainedStates;
+            drainedStates = states;
+            pendingStatesById.clear();
+            isDrainScheduled = false;
+        }
+
+        final ServerListListenerPipeEndpoint pipeEndpoint = this.pipeEndpoint;
+        for (int i = 0, end = states.size(); i < end; ++i) {
+            PendingServerState state = states.get(i);
+            if (state == null) {
+                continue;
+            }
+            int instanceId = state.instanceId;
+            if (state.isRemovedBefore) {
+                pipeEndpoint.removeServer(instanceId);
+            }
+            if (state.isAdded) {
+                pipeEndpoint.addServer(instanceId, state.fullData);
+            } else if (state.fullData != null) {
+                pipeEndpoint.updateServerWithFullData(instanceId, state.fullDataUpdateMask, state.fullData);
+            }
+            if (state.deltaMessage != null) {
+                // The message is recycled by the endpoint
+                pipeEndpoint.updateServerWithDelta(instanceId, state.deltaUpdateMask, state.deltaMessage);
+            }
+            state.clear();
+        }
+
+        synchronized (this) {
+            for (int i = 0, end = states.size(); i < end; ++i) {
+                PendingServerState state = states.get(i);
+                if (state != null) {
+                    freeStates.add(state);
+                }
+            }
+        }
+        states.clear();
+
+        pipeEndpoint.onUpdatesBatchEnd();
+    }
+}
+
+/**
+ * A pending state of a server that is waiting for being applied by the UI thread.
+ * A state is applied in this order: removal of an old server instance (if any),
+ * addition or update of a server by a full data (if any), update by a delta (if any).
+ */
+final class PendingServerState {
+    int instanceId;
+    /**
+     * An index of the state in the list of pending states
+     */
+    int pendingIndex;
+    boolean isRemovedBefore;
+    boolean isAdded;
+    char[] fullData;
+    int fullDataUpdateMask;
+    DeltaUpdateMessage deltaMessage;
+    int deltaUpdateMask;
+
+    /**
+     * @param pool A pool a dropped full data should be returned to (if any).
+     */
+    void dropUpdates(ScoreboardBuffersPool pool) {
+        recycleFullData(pool);
+        fullDataUpdateMask = 0;
+        if (deltaMessage != null) {
+            deltaMessage.recycle();
+            deltaMessage = null;
+        }
+        deltaUpdateMask = 0;
+    }
+
+    /**
+     * Returns a full data that has not been delivered to the UI thread to the pool (if any).
+     */
+    void recycleFullData(ScoreboardBuffersPool pool) {
+        if (fullData != null && pool != null) {
+            pool.release(fullData);
+        }
+        fullData = null;
+    }
+
+    void clear() {
+        isRemovedBefore = false;
+        isAdded = false;
+        fullData = null;
+        fullDataUpdateMask = 0;
+        deltaMessage = null;
+        deltaUpdateMask = 0;
+    }
+}
+
+/**
+ * Merges two subsequent delta update messages of a server.
+ * Applying the merged message has the same effect as applying the older and the newer ones in order
+ * (except that player slots beyond the newer players count are not touched).
+ */
+final class ScoreboardUpdatesDeltaMerger {
+    private final byte[] tmpPlayersUpdateBytes = new byte[MAX_PLAYERS];
+
+    /**
+     * @param pool A pool to acquire the result message from (if any).
+     * @return A new message that should be used instead of both supplied ones.
+     */
+    DeltaUpdateMessage tryMergeDeltas(DeltaUpdateMessage older, int olderMask,
+                                      DeltaUpdateMessage newer, int newerMask,
+                                      DeltaUpdateMessagesPool pool) {
+        DeltaUpdateMessage result = pool != null ? pool.acquire() : new DeltaUpdateMessage();
+        // The sum of used chars counts is an upper bound of merged chars count.
+        // (Capacities of arrays must not be summed up, otherwise arrays grow on every merge)
+        int maxDeltaLength = older.deltaLength + newer.deltaLength;
+        if (result.deltaChars == null || result.deltaChars.length < maxDeltaLength) {
+            result.deltaChars = new char[maxDeltaLength];
+        }
+
+        result.numClients = newer.numClients;
+        result.hasPlayerInfo = newer.hasPlayerInfo;
+
+        int[] ptrs = this.ptrs;
+        ptrs[0] = 0;
+        ptrs[1] = 0;
+        ptrs[2] = 0;
+        mergeServerInfo(older.deltaChars, olderMask, newer.deltaChars, newerMask, result.deltaChars, ptrs);
+        mergePlayersInfo(older, newer, result, ptrs);
+        result.deltaLength = ptrs[2];
+        return result;
+    }
+
+    /**
+     * Makes the "were player info updates" flag of a merged mask consistent with the merged message.
+     */
+    int fixMergedUpdateMask(DeltaUpdateMessage merged, int mergedMask) {
+        if (merged.werePlayerInfoUpdates) {
+            return mergedMask | UPDATE_FLAG_WERE_PLAYER_INFO_UPDATES;
+        }
+        return mergedMask & ~UPDATE_FLAG_WERE_PLAYER_INFO_UPDATES;
+    }
+
+    /**
+     * Pointers in older, newer and result delta chars respectively
+     */
+    private final int[] ptrs = new int[3];
+
+    private static void mergeServerInfo(char[] older, int olderMask, char[] newer, int newerMask,
+                                        char[] result, int[] ptrs) {
+        final int[] updatesFlags = STRING_UPDATES_FLAGS;
+        for (int i = 0; i < updatesFlags.length; ++i) {
+            int flag = updatesFlags[i];
+            mergeEntry(older, (olderMask & flag) != 0, newer, (newerMask & flag) != 0, result, ptrs, true, true);
+        }
+        // These entries are single chars
+        int flag = UPDATE_FLAG_TIME_FLAGS;
+        mergeEntry(older, (olderMask & flag) != 0, newer, (newerMask & flag) != 0, result, ptrs, false, true);
+        flag = UPDATE_FLAG_HAS_PLAYER_INFO;
+        mergeEntry(older, (olderMask & flag) != 0, newer, (newerMask & flag) != 0, result, ptrs, false, true);
+    }
+
+    private void mergePlayersInfo(DeltaUpdateMessage older, DeltaUpdateMessage newer,
+                                  DeltaUpdateMessage result, int[] ptrs) {
+        // Player entries are present only if these flags are set
+        final int olderNumClients = older.werePlayerInfoUpdates ? older.numClients : 0;
+        final int newerNumClients = newer.werePlayerInfoUpdates ? newer.numClients : 0;
+        // Player entries that do not fit the result players count are skipped
+        final int resultNumClients = result.hasPlayerInfo ? result.numClients : 0;
+        final byte[] resultUpdateBytes = this.tmpPlayersUpdateBytes;
+        final int[] playerInfoUpdatesFlags = PLAYERINFO_STRING_UPDATES_FLAGS;
+
+        int anyUpdatesFlags = 0;
+        int end = Math.max(resultNumClients, Math.max(olderNumClients, newerNumClients));
+        for (int clientNum = 0; clientNum < end; ++clientNum) {
+            int olderFlags = clientNum < olderNumClients ? older.playersUpdateBytes[clientNum] & 0xFF : 0;
+            int newerFlags = clientNum < newerNumClients ? newer.playersUpdateBytes[clientNum] & 0xFF : 0;
+            boolean keep = clientNum < resultNumClients;
+            for (int i = 0; i < playerInfoUpdatesFlags.length; ++i) {
+                int flag = playerInfoUpdatesFlags[i];
+                mergeEntry(older.deltaChars, (olderFlags & flag) != 0, newer.deltaChars, (newerFlags & flag) != 0,
+                           result.deltaChars, ptrs, true, keep);
+            }
+            int flag = PLAYERINFO_UPDATE_FLAG_TEAM;
+            mergeEntry(older.deltaChars, (olderFlags & flag) != 0, newer.deltaChars, (newerFlags & flag) != 0,
+                       result.deltaChars, ptrs, false, keep);
+            if (keep) {
+                resultUpdateBytes[clientNum] = (byte)(olderFlags | newerFlags);
+                anyUpdatesFlags |= olderFlags | newerFlags;
+            }
+        }
+
+        boolean wereUpdates = anyUpdatesFlags != 0;
+        if (wereUpdates) {
+            byte[] playersUpdateBytes = result.playersUpdateBytes;
+            if (playersUpdateBytes == null || playersUpdateBytes.length < resultNumClients) {
+                playersUpdateBytes = result.playersUpdateBytes = new byte[resultNumClients];
+            }
+            java.lang.System.arraycopy(resultUpdateBytes, 0, playersUpdateBytes, 0, resultNumClients);
+        }
+
+        result.werePlayerInfoUpdates = wereUpdates;
+        result.werePlayerNameUpdates = (anyUpdatesFlags & PLAYERINFO_UPDATE_FLAG_NAME) != 0;
+    }
+
+    /**
+     * Copies an entry of the newer delta if it is present, otherwise an entry of the older delta if it is present.
+     * Advances pointers of deltas that have the entry.
+     * @param hasLength Whether an entry is prefixed by its length (otherwise it is a single char).
+     * @param keep Whether a present entry should be written to the result.
+     */
+    private static void mergeEntry(char[] older, boolean inOlder, char[] newer, boolean inNewer,
+                                   char[] result, int[] ptrs, boolean hasLength, boolean keep) {
+        int olderLength = 0;
+        if (inOlder) {
+            olderLength = hasLength ? older[ptrs[0]] + 1 : 1;
+        }
+        int newerLength = 0;
+        if (inNewer) {
+            newerLength = hasLength ? newer[ptrs[1]] + 1 : 1;
+        }
+
+        if (keep) {
+            if (inNewer) {
+                java.lang.System.arraycopy(newer, ptrs[1], result, ptrs[2], newerLength);
+                ptrs[2] += newerLength;
+            } else if (inOlder) {
+                java.lang.System.arraycopy(older, ptrs[0], result, ptrs[2], olderLength);
+                ptrs[2] += olderLength;
+            }
+        }
+
+        ptrs[0] += olderLength;
+        ptrs[1] += newerLength;
+    }
+}
@@ -0,0 +1,152 @@
+package com.github.qfusion.fakeclient;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A batch of client commands that is submitted to the native library by a single
+ * {@link System#executeCommands(CommandBatch)} call.
+ * Commands are encoded in UTF-8 directly to a native buffer, so adding a command does not allocate.
+ * A batch is not thread-safe. It might be reused after submission by {@link CommandBatch#clear()} call.
+ */
+public class CommandBatch {
+    /**
+     * An entry layout: a native client handle (8 bytes), a length of command bytes (4 bytes),
+     * command bytes followed by a zero byte. Integers are in native byte order.
+     */
+    static final int ENTRY_HEADER_SIZE = 8 + 4;
+
+    private static final int DEFAULT_INITIAL_CAPACITY = 4096;
+
+    private final CommandEncoder encoder = new CommandEncoder();
+
+    ByteBuffer buffer;
+    private int numCommands;
+
+    /**
+     * Clients of added commands (a client per command, null for commands added by a native handle in tests).
+     */
+    private Client[] clients = new Client[16];
+    /**
+     * A reused array for clients sorted by native handles without duplicates
+     */
+    private Client[] distinctClients = new Client[16];
+    private int numDistinctClients;
+
+    private static final Comparator<Client> NATIVE_HANDLE_ORDER = new Comparator<Client>() {
+        @Override
+        public int compare(Client o1, Client o2) {
+            // Client handles are compared just as opaque values
+            return o1.nativeClient < o2.nativeClient ? -1 : (o1.nativeClient == o2.nativeClient ? 0 : +1);
+        }
+    };
+
+    public CommandBatch() {
+        this(DEFAULT_INITIAL_CAPACITY);
+    }
+
+    /**
+     * @param initialCapacity An initial capacity of the native buffer in bytes. The buffer grows if needed.
+     */
+    public CommandBatch(int initialCapacity) {
+        if (initialCapacity < ENTRY_HEADER_SIZE + 1) {
+            throw new IllegalArgumentException("The initialCapacity = " + initialCapacity + " is too small");
+        }
+        this.buffer = CommandEncoder.newBuffer(initialCapacity);
+    }
+
+    public final int size() {
+        return numCommands;
+    }
+
+    /**
+     * @return A number of used bytes of the native buffer.
+     */
+    final int numBytes() {
+        return buffer.position();
+    }
+
+    public void clear() {
+        buffer.clear();
+        Arrays.fill(clients, 0, numCommands, null);
+        Arrays.fill(distinctClients, 0, numDistinctClients, null);
+        numCommands = 0;
+        numDistinctClients = 0;
+    }
+
+    /**
+     * Adds a command that should be executed by the client.
+     * The client must not be deleted until the batch is submitted.
+     */
+    public void add(Client client, CharSequence command) {
+        if (client == null) {
+            throw new IllegalArgumentException("The client is null");
+        }
+        add(client.nativeClient, command);
+        clients[numCommands - 1] = client;
+    }
+
+    void add(long nativeClient, CharSequence command) {
+        if (command == null) {
+            throw new IllegalArgumentException("The command is null");
+        }
+
+        final int entryStart = buffer.position();
+        buffer = CommandEncoder.ensureFreeBytes(buffer, ENTRY_HEADER_SIZE);
+        buffer.putLong(nativeClient);
+        final int lengthPosition = buffer.position();
+        buffer.putInt(0);
+
+        final int bytesStart = buffer.position();
+        buffer = encoder.encode(command, buffer);
+        // Do not count the trailing zero byte
+        final int bytesLength = buffer.position() - bytesStart - 1;
+        buffer.putInt(lengthPosition, bytesLength);
+
+        if (BuildConfig.DEBUG) {
+            if (buffer.position() - entryStart != ENTRY_HEADER_SIZE + bytesLength + 1) {
+                throw new AssertionError("Illegal entry size " + (buffer.position() - entryStart));
+            }
+        }
+
+        if (numCommands == clients.length) {
+            clients = Arrays.copyOf(clients, 2 * clients.length);
+        }
+        numCommands++;
+    }
+
+    /**
+     * Builds an array of clients of added commands sorted by native handles without duplicates.
+     * The array is reused and is valid until the batch is modified.
+     * @return An array that contains {@link CommandBatch#numDistinctClients()} clients at its start.
+     */
+    final Client[] sortedDistinctClients() {
+        if (distinctClients.length < numCommands) {
+            distinctClients = new Client[clients.length];
+        }
+        int numClients = 0;
+        for (int i = 0; i < numCommands; ++i) {
+            if (clients[i] != null) {
+                distinctClients[numClients++] = clients[i];
+            }
+        }
+        if (numClients > 1) {
+            Arrays.sort(distinctClients, 0, numClients, NATIVE_HANDLE_ORDER);
+            int numUniqueClients = 1;
+            for (int i = 1; i < numClients; ++i) {
+                if (distinctClients[i] != distinctClients[numUniqueClients - 1]) {
+                    distinctClients[numUniqueClients++] = distinctClients[i];
+                }
+            }
+            Arrays.fill(distinctClients, numUniqueClients, numClients, null);
+            numClients = numUniqueClients;
+        }
+        numDistinctClients = numClients;
+        return distinctClients;
+    }
+
+    final int numDistinctClients() {
+        return numDistinctClients;
+    }
+}
@@ -0,0 +1,78 @@
+package com.github.qfusion.fakeclient;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An off-heap arena for io buffers of {@link NativeBridgeConsole} instances.
+ * It is intended for deployments with many (thousands of) clients where a direct buffer per console is too expensive.
+ * Each console gets its own slice of a large direct block, so a separate direct allocation per console is avoided.
+ * Slices are never shared, since a native output might be done by multiple threads concurrently
+ * (e.g. by {@link Client#executeCommand(String)} calls), and are never returned to the arena.
+ */
+public class ConsoleIoBuffersArena {
+    public static final int DEFAULT_SLICE_SIZE = 1024;
+    public static final int DEFAULT_SLICES_PER_BLOCK = 64;
+
+    private final int sliceSize;
+    private final int slicesPerBlock;
+
+    /**
+     * Guarded by this object monitor
+     */
+    private ByteBuffer currBlock;
+    private int numBlockSlicesUsed;
+    private int numBlocks;
+
+    public ConsoleIoBuffersArena() {
+        this(DEFAULT_SLICE_SIZE, DEFAULT_SLICES_PER_BLOCK);
+    }
+
+    /**
+     * @param sliceSize A size of every slice in bytes.
+     * @param slicesPerBlock A number of slices in a single direct block.
+     */
+    public ConsoleIoBuffersArena(int sliceSize, int slicesPerBlock) {
+        if (sliceSize < 64) {
+            throw new IllegalArgumentException("The sliceSize = " + sliceSize + " is too small");
+        }
+        if (slicesPerBlock <= 0) {
+            throw new IllegalArgumentException("The slicesPerBlock = " + slicesPerBlock + " is not positive");
+        }
+        if ((long)sliceSize * slicesPerBlock > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("A block of " + slicesPerBlock + " slices of " + sliceSize + " is too large");
+        }
+        this.sliceSize = sliceSize;
+        this.slicesPerBlock = slicesPerBlock;
+    }
+
+    public final int getSliceSize() {
+        return sliceSize;
+    }
+
+    /**
+     * @return A total number of allocated direct blocks.
+     */
+    public synchronized int getNumBlocks() {
+        return numBlocks;
+    }
+
+    /**
+     * @return A new slice of a direct block for a console.
+     */
+    synchronized ByteBuffer allocateSlice() {
+        if (currBlock == null || numBlockSlicesUsed == slicesPerBlock) {
+            currBlock = ByteBuffer.allocateDirect(sliceSize * slicesPerBlock);
+            numBlockSlicesUsed = 0;
+            numBlocks++;
+        }
+
+        int offset = numBlockSlicesUsed * sliceSize;
+        currBlock.limit(offset + sliceSize);
+        currBlock.position(offset);
+        // A slice of a direct buffer is direct too and has an address the native code can use
+        ByteBuffer slice = currBlock.slice();
+        currBlock.clear();
+        numBlockSlicesUsed++;
+        return slice;
+    }
+}
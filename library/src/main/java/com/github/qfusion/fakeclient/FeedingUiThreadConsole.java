@@ -1,36 +1,100 @@
 package com.github.qfusion.fakeclient;
 
-import android.os.Looper;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static java.lang.System.arraycopy;
 
 public class FeedingUiThreadConsole extends RingBufferConsole {
 
     MessagePipe uiThreadPipe;
 
+    /**
+     * If true, lines are built in the thread that receives native output
+     * and only completed lines are posted to the UI thread.
+     */
+    final boolean buildsLinesOffUiThread;
+
     public FeedingUiThreadConsole(MessagePipe uiThreadPipe, int capacity) {
         super(capacity);
         this.uiThreadPipe = uiThreadPipe;
+        this.buildsLinesOffUiThread = false;
+    }
+
+    /**
+     * @param ioBufferSize See {@link NativeBridgeConsole#NativeBridgeConsole(int, boolean)}
+     * @param bufferNativeOutput See {@link NativeBridgeConsole#NativeBridgeConsole(int, boolean)}.
+     *                           A single message per frame is posted to the UI thread in this mode.
+     */
+    public FeedingUiThreadConsole(MessagePipe uiThreadPipe, int capacity, int ioBufferSize, boolean bufferNativeOutput) {
+        this(uiThreadPipe, capacity, ioBufferSize, bufferNativeOutput, false);
+    }
+
+    /**
+     * @param ioBufferSize See {@link NativeBridgeConsole#NativeBridgeConsole(int, boolean)}
+     * @param bufferNativeOutput See {@link NativeBridgeConsole#NativeBridgeConsole(int, boolean)}.
+     * @param buildLinesOffUiThread If true, decoding, splitting and colored tokens parsing of native output
+     *                              is done in the thread that receives it (the frame thread).
+     *                              Only batches of completed lines are posted to the UI thread.
+     *                              A line becomes visible only when it is completed in this mode.
+     */
+    public FeedingUiThreadConsole(MessagePipe uiThreadPipe, int capacity, int ioBufferSize,
+                                  boolean bufferNativeOutput, boolean buildLinesOffUiThread) {
+        super(capacity, ioBufferSize, bufferNativeOutput);
+        this.uiThreadPipe = uiThreadPipe;
+        this.buildsLinesOffUiThread = buildLinesOffUiThread;
+    }
+
+    /**
+     * @param arena See {@link ConsoleIoBuffersArena}
+     * @param bufferNativeOutput See {@link NativeBridgeConsole#NativeBridgeConsole(int, boolean)}
+     */
+    public FeedingUiThreadConsole(MessagePipe uiThreadPipe, int capacity,
+                                  ConsoleIoBuffersArena arena, boolean bufferNativeOutput) {
+        super(capacity, arena, bufferNativeOutput);
+        this.uiThreadPipe = uiThreadPipe;
+        this.buildsLinesOffUiThread = false;
+    }
+
+    /**
+     * @param linesStore See {@link RingBufferConsole#RingBufferConsole(RingLinesStore)}
+     */
+    public FeedingUiThreadConsole(MessagePipe uiThreadPipe, RingLinesStore linesStore) {
+        super(linesStore);
+        this.uiThreadPipe = uiThreadPipe;
+        this.buildsLinesOffUiThread = false;
     }
 
     private void expectUiThread() {
-        if (Looper.getMainLooper().getThread() != Thread.currentThread()) {
+        if (!UiThreadProxy.isCurrentThreadUiThread()) {
             throw new AssertionError("This call is expected to be done in an UI thread");
         }
     }
 
     public class FeedingUiThreadIngoingBytesProcessor extends IngoingBytesProcessor {
+        /**
+         * Builds lines in the thread that receives native output (if lines are built off the UI thread)
+         */
+        private final LinesBatchingProcessor batchingProcessor;
 
         public FeedingUiThreadIngoingBytesProcessor(RingLinesBuffer buffer) {
             super(buffer);
+            batchingProcessor = buildsLinesOffUiThread ? new LinesBatchingProcessor() : null;
         }
 
         @Override
-        protected byte[] newBufferArray(int length) {
-            return new byte[length];
-        }
+        protected void onNewBufferData(ByteBuffer buffer) {
+            if (batchingProcessor != null) {
+                batchingProcessor.onNewBufferData(buffer);
+                batchingProcessor.postBatch();
+                return;
+            }
 
-        @Override
-        protected void onNewBufferData(byte[] bytes, int offset, int length) {
-            uiThreadPipe.post(new UiThreadNewBufferDataCaller(bytes, offset, length));
+            // The io buffer is reused by the native code, so a copy is posted to the UI thread
+            int length = buffer.remaining();
+            byte[] bytes = new byte[length];
+            buffer.get(bytes, 0, length);
+            uiThreadPipe.post(new UiThreadNewBufferDataCaller(bytes, 0, length));
         }
 
         private void uiThreadOnNewBufferData(byte[] bytes, int offset, int length) {
@@ -41,11 +105,11 @@ public class FeedingUiThreadConsole extends RingBufferConsole {
         }
 
         @Override
-        protected void appendLinePart(String bufferString, int offset, int length) {
+        protected void appendLinePart(ByteBuffer bytes) {
             if (BuildConfig.DEBUG) {
                 expectUiThread();
             }
-            super.appendLinePart(bufferString, offset, length);
+            super.appendLinePart(bytes);
         }
 
         @Override
@@ -56,6 +120,54 @@ public class FeedingUiThreadConsole extends RingBufferConsole {
             super.completeLineBuilding();
         }
 
+        void uiThreadApplyBatch(ConsoleLinesBatch batch) {
+            if (BuildConfig.DEBUG) {
+                expectUiThread();
+            }
+            final int[] lineBounds = batch.lineBounds;
+            for (int i = 0; i < batch.numLines; ++i) {
+                final int bounds = 4 * i;
+                buffer.appendParsedLine(batch.chars, lineBounds[bounds + 0], lineBounds[bounds + 1],
+                                        batch.tokens, lineBounds[bounds + 2], lineBounds[bounds + 3]);
+                completeLineBuilding();
+            }
+            batch.recycle();
+        }
+
+        /**
+         * Decodes and parses lines using an own small buffer and puts completed lines to batches.
+         * This is done in the thread that receives native output.
+         */
+        class LinesBatchingProcessor extends IngoingBytesProcessor {
+            private final CharArrayView charsView = new CharArrayView();
+            private final BufferLineTokensView tokensView = new BufferLineTokensView();
+            private final ConsoleLinesBatchesPool batchesPool = new ConsoleLinesBatchesPool(4);
+            private ConsoleLinesBatch batch;
+
+            LinesBatchingProcessor() {
+                // Lines are copied to a batch right after their completion, so the buffer might be tiny
+                super(new RingLinesBuffer(2));
+            }
+
+            @Override
+            protected void completeLineBuilding() {
+                buffer.completeLineBuilding();
+                buffer.front(charsView, tokensView);
+                if (batch == null) {
+                    batch = batchesPool.acquire();
+                }
+                batch.addLine(charsView, tokensView);
+            }
+
+            void postBatch() {
+                if (batch != null) {
+                    batch.target = FeedingUiThreadIngoingBytesProcessor.this;
+                    uiThreadPipe.post(batch);
+                    batch = null;
+                }
+            }
+        }
+
         class UiThreadNewBufferDataCaller implements Runnable {
             byte[] bytes;
             int offset;
@@ -78,3 +190,107 @@ public class FeedingUiThreadConsole extends RingBufferConsole {
         return new FeedingUiThreadIngoingBytesProcessor(buffer);
     }
 }
+
+/**
+ * Completed console lines that have been built off the UI thread.
+ * A batch is not modified since it has been posted to the UI thread until it is recycled.
+ */
+final class ConsoleLinesBatch extends BoundedObjectsPool.PooledObject implements Runnable {
+    private static final int DEFAULT_CHARS_LENGTH = 1024;
+    private static final int DEFAULT_TOKENS_LENGTH = 64;
+    private static final int DEFAULT_LINE_BOUNDS_LENGTH = 4 * 16;
+    /**
+     * Arrays that have grown larger than this (e.g. for a burst of output) are not retained by a pooled batch
+     */
+    static final int MAX_POOLED_ARRAYS_GROWTH = 8;
+
+    char[] chars = new char[DEFAULT_CHARS_LENGTH];
+    int charsLength;
+    int[] tokens = new int[DEFAULT_TOKENS_LENGTH];
+    int tokensLength;
+    /**
+     * 4 ints per line: an offset and a length of line chars, an offset and a length of line tokens
+     */
+    int[] lineBounds = new int[DEFAULT_LINE_BOUNDS_LENGTH];
+    int numLines;
+
+    /**
+     * Set before the batch is posted to the UI thread
+     */
+    FeedingUiThreadConsole.FeedingUiThreadIngoingBytesProcessor target;
+
+    ConsoleLinesBatch() {
+        super(null);
+    }
+
+    ConsoleLinesBatch(ConsoleLinesBatchesPool pool) {
+        super(pool);
+    }
+
+    void addLine(CharArrayView charsView, BufferLineTokensView tokensView) {
+        final int charsLength = charsView.getLength();
+        final int tokensLength = tokensView.getLength();
+        if (this.charsLength + charsLength > chars.length) {
+            chars = Arrays.copyOf(chars, Math.max(2 * chars.length, this.charsLength + charsLength));
+        }
+        if (this.tokensLength + tokensLength > tokens.length) {
+            tokens = Arrays.copyOf(tokens, Math.max(2 * tokens.length, this.tokensLength + tokensLength));
+        }
+        if (4 * numLines + 4 > lineBounds.length) {
+            lineBounds = Arrays.copyOf(lineBounds, 2 * lineBounds.length);
+        }
+
+        arraycopy(charsView.getArray(), charsView.getArrayOffset(), chars, this.charsLength, charsLength);
+        arraycopy(tokensView.getArray(), tokensView.getArrayOffset(), tokens, this.tokensLength, tokensLength);
+        final int bounds = 4 * numLines;
+        lineBounds[bounds + 0] = this.charsLength;
+        lineBounds[bounds + 1] = charsLength;
+        lineBounds[bounds + 2] = this.tokensLength;
+        lineBounds[bounds + 3] = tokensLength;
+        this.charsLength += charsLength;
+        this.tokensLength += tokensLength;
+        numLines++;
+    }
+
+    @Override
+    public void run() {
+        target.uiThreadApplyBatch(this);
+    }
+
+    /**
+     * Returns the batch to its pool (if any). The batch must not be accessed after this call.
+     */
+    void recycle() {
+        target = null;
+        charsLength = 0;
+        tokensLength = 0;
+        numLines = 0;
+        if (pool != null) {
+            if (chars.length > MAX_POOLED_ARRAYS_GROWTH * DEFAULT_CHARS_LENGTH) {
+                chars = new char[DEFAULT_CHARS_LENGTH];
+            }
+            if (tokens.length > MAX_POOLED_ARRAYS_GROWTH * DEFAULT_TOKENS_LENGTH) {
+                tokens = new int[DEFAULT_TOKENS_LENGTH];
+            }
+            if (lineBounds.length > MAX_POOLED_ARRAYS_GROWTH * DEFAULT_LINE_BOUNDS_LENGTH) {
+                lineBounds = new int[DEFAULT_LINE_BOUNDS_LENGTH];
+            }
+            pool.release(this);
+        }
+    }
+}
+
+/**
+ * A bounded pool of {@link ConsoleLinesBatch} instances.
+ * Batches are acquired by a thread that receives native output and released by an UI thread.
+ */
+final class ConsoleLinesBatchesPool extends BoundedObjectsPool<ConsoleLinesBatch> {
+    ConsoleLinesBatchesPool(int limit) {
+        super(limit);
+    }
+
+    @Override
+    protected ConsoleLinesBatch newObject() {
+        return new ConsoleLinesBatch(this);
+    }
+}
@@ -10,18 +10,77 @@ public class FeedingUiThreadServerListListener extends NativeBridgeServerListLis
     final ServerListListenerPipeEndpoint pipeEndpoint;
 
     final ScoreboardUpdatesDeltaEncoder deltaEncoder = new ScoreboardUpdatesDeltaEncoder(byteIoBuffer, charIoBuffer);
+    final DeltaUpdateMessagesPool deltaMessagesPool;
+    final ScoreboardBuffersPool scoreboardBuffersPool;
+
+    /**
+     * A default limit of delta update messages kept for reuse.
+     */
+    public static final int DEFAULT_POOLED_DELTA_MESSAGES_LIMIT = 64;
 
     public FeedingUiThreadServerListListener(MessagePipe uiThreadPipe, ServerListListenerPipeEndpoint pipeEndpoint) {
+        this(uiThreadPipe, pipeEndpoint, DEFAULT_POOLED_DELTA_MESSAGES_LIMIT);
+    }
+
+    /**
+     * @param pooledDeltaMessagesLimit A maximal number of delta update messages kept for reuse.
+     *                                 Delta messages are returned to the pool by the pipe endpoint
+     *                                 after they have been applied. Pass 0 to disable pooling.
+     */
+    public FeedingUiThreadServerListListener(MessagePipe uiThreadPipe,
+                                             ServerListListenerPipeEndpoint pipeEndpoint,
+                                             int pooledDeltaMessagesLimit) {
+        this(uiThreadPipe, pipeEndpoint, pooledDeltaMessagesLimit, 0);
+    }
+
+    /**
+     * @param pooledScoreboardBuffersLimit A maximal number of spare scoreboard buffers kept for reuse.
+     *                                     If it is positive, a scoreboard buffer that has been replaced
+     *                                     by a full data update (or belonged to a removed server)
+     *                                     is handed back by the pipe endpoint and reused for reading
+     *                                     the next full data. Enable this mode only if views
+     *                                     of a scoreboard data are not retained across updates.
+     *                                     If the pipe endpoint already has a pool (e.g. it is fed
+     *                                     by multiple listeners), the existing pool is shared
+     *                                     and the limit is ignored.
+     */
+    public FeedingUiThreadServerListListener(MessagePipe uiThreadPipe,
+                                             ServerListListenerPipeEndpoint pipeEndpoint,
+                                             int pooledDeltaMessagesLimit,
+                                             int pooledScoreboardBuffersLimit) {
         this.uiThreadPipe = uiThreadPipe;
         this.pipeEndpoint = pipeEndpoint;
+        if (pooledDeltaMessagesLimit > 0) {
+            this.deltaMessagesPool = new DeltaUpdateMessagesPool(pooledDeltaMessagesLimit);
+        } else {
+            this.deltaMessagesPool = null;
+        }
+        if (pooledScoreboardBuffersLimit > 0) {
+            // Never replace a pool of the endpoint, buffers are returned to it by the endpoint
+            if (pipeEndpoint.scoreboardBuffersPool == null) {
+                pipeEndpoint.scoreboardBuffersPool = new ScoreboardBuffersPool(pooledScoreboardBuffersLimit);
+            }
+            this.scoreboardBuffersPool = pipeEndpoint.scoreboardBuffersPool;
+        } else {
+            // Leave the endpoint pool (if any) untouched, it might be used by other listeners
+            this.scoreboardBuffersPool = null;
+        }
     }
 
     public final ServerListListenerPipeEndpoint getPipeEndpoint() { return pipeEndpoint; }
 
+    /**
+     * Delivers an event to the UI thread. All events are delivered via this method.
+     * Subclasses might override it to defer, batch or coalesce events.
+     */
+    protected void postToUiThread(Runnable event) {
+        uiThreadPipe.post(event);
+    }
+
     @Override
     public void onServerAdded(final int instanceId) {
         final char[] fullData = readFullBufferData();
-        this.uiThreadPipe.post(new Runnable() {
+        postToUiThread(new Runnable() {
             @Override
             public void run() {
                 pipeEndpoint.addServer(instanceId, fullData);
@@ -31,10 +90,10 @@ public class FeedingUiThreadServerListListener extends NativeBridgeServerListLis
 
     @Override
     public void onServerUpdated(final int instanceId, final int serverInfoUpdateMask) {
-        final DeltaUpdateMessage message = deltaEncoder.tryBuildDeltaMessage(serverInfoUpdateMask);
+        DeltaUpdateMessage message = deltaEncoder.tryBuildDeltaMessage(serverInfoUpdateMask, deltaMessagesPool);
         if (message == null) {
             final char[] fullData = readFullBufferData();
-            this.uiThreadPipe.post(new Runnable() {
+            postToUiThread(new Runnable() {
                 @Override
                 public void run() {
                     pipeEndpoint.updateServerWithFullData(instanceId, serverInfoUpdateMask, fullData);
@@ -42,18 +101,16 @@ public class FeedingUiThreadServerListListener extends NativeBridgeServerListLis
             });
             return;
         }
-        // Make final reference copies to pass in the closure
-        this.uiThreadPipe.post(new Runnable() {
-            @Override
-            public void run() {
-                pipeEndpoint.updateServerWithDelta(instanceId, serverInfoUpdateMask, message);
-            }
-        });
+        // The message is a runnable itself, so posting it does not require allocation of a closure
+        message.instanceId = instanceId;
+        message.serverInfoUpdateMask = serverInfoUpdateMask;
+        message.pipeEndpoint = pipeEndpoint;
+        postToUiThread(message);
     }
 
     @Override
     public void onServerRemoved(final int instanceId) {
-        this.uiThreadPipe.post(new Runnable() {
+        postToUiThread(new Runnable() {
             @Override
             public void run() {
                 pipeEndpoint.removeServer(instanceId);
@@ -61,7 +118,7 @@ public class FeedingUiThreadServerListListener extends NativeBridgeServerListLis
         });
     }
 
-    private char[] readFullBufferData() {
+    final char[] readFullBufferData() {
         charIoBuffer.position(0);
         boolean hasPlayerInfo = charIoBuffer.get(HAS_PLAYER_INFO_OFFSET) != 0;
         int numClients = charIoBuffer.get(NUM_CLIENTS_OFFSET);
@@ -69,22 +126,74 @@ public class FeedingUiThreadServerListListener extends NativeBridgeServerListLis
         if (hasPlayerInfo) {
             arraySize += numClients * PLAYER_DATA_STRIDE;
         }
+        char[] chars = null;
+        if (scoreboardBuffersPool != null) {
+            // A reused buffer might be larger than it is needed, this is fine for the scoreboard data
+            chars = scoreboardBuffersPool.tryAcquire(hasPlayerInfo ? numClients : 0);
+        }
+        if (chars == null) {
+            chars = new char[arraySize];
+        }
         charIoBuffer.position(SCOREBOARD_DATA_OFFSET);
-        char[] chars = new char[arraySize];
-        charIoBuffer.get(chars);
+        charIoBuffer.get(chars, 0, arraySize);
         return chars;
     }
 }
 
-final class DeltaUpdateMessage {
+final class DeltaUpdateMessage extends BoundedObjectsPool.PooledObject implements Runnable {
     char[] deltaChars;
+    /**
+     * A number of chars of {@link DeltaUpdateMessage#deltaChars} that are actually used
+     */
+    int deltaLength;
     byte[] playersUpdateBytes;
     int numClients;
     boolean hasPlayerInfo;
     boolean werePlayerInfoUpdates;
     boolean werePlayerNameUpdates;
 
-    DeltaUpdateMessage() {}
+    // These fields are set before the message is posted to a pipe
+    int instanceId;
+    int serverInfoUpdateMask;
+    ServerListListenerPipeEndpoint pipeEndpoint;
+
+    DeltaUpdateMessage() {
+        super(null);
+    }
+
+    DeltaUpdateMessage(DeltaUpdateMessagesPool pool) {
+        super(pool);
+    }
+
+    @Override
+    public void run() {
+        pipeEndpoint.updateServerWithDelta(instanceId, serverInfoUpdateMask, this);
+    }
+
+    /**
+     * Returns the message to its pool (if any). The message must not be accessed after this call.
+     */
+    void recycle() {
+        pipeEndpoint = null;
+        if (pool != null) {
+            pool.release(this);
+        }
+    }
+}
+
+/**
+ * A bounded pool of {@link DeltaUpdateMessage} instances.
+ * Messages are acquired by a network thread and released by an UI thread.
+ */
+final class DeltaUpdateMessagesPool extends BoundedObjectsPool<DeltaUpdateMessage> {
+    DeltaUpdateMessagesPool(int limit) {
+        super(limit);
+    }
+
+    @Override
+    protected DeltaUpdateMessage newObject() {
+        return new DeltaUpdateMessage(this);
+    }
 }
 
 class ScoreboardUpdatesDeltaEncoder {
@@ -96,7 +205,10 @@ class ScoreboardUpdatesDeltaEncoder {
         this.charIoBuffer = charIoBuffer;
     }
 
-    private char[] newDeltaChars() {
+    /**
+     * @param reuse An existing delta chars array that should be reused if it has sufficient capacity (if any).
+     */
+    private char[] newDeltaChars(char[] reuse) {
         charIoBuffer.position(0);
         int size = 0;
         // Decode the integer parts
@@ -104,6 +216,9 @@ class ScoreboardUpdatesDeltaEncoder {
         size |= charIoBuffer.get(UPDATE_CHARS_WRITTEN_OFFSET + 1);
         // TODO: Discover why the native code gives an insufficient estimation so we have to add some extra bytes
         size += 32;
+        if (reuse != null && reuse.length >= size) {
+            return reuse;
+        }
         return new char[size];
     }
 
@@ -126,12 +241,22 @@ class ScoreboardUpdatesDeltaEncoder {
     }
 
     DeltaUpdateMessage tryBuildDeltaMessage(int serverInfoUpdateMask) {
+        return tryBuildDeltaMessage(serverInfoUpdateMask, null);
+    }
+
+    /**
+     * @param pool A pool to acquire a message from (if any). Arrays of a pooled message are reused if possible.
+     * @return A delta update message or null if a full data should be read instead.
+     */
+    DeltaUpdateMessage tryBuildDeltaMessage(int serverInfoUpdateMask, DeltaUpdateMessagesPool pool) {
         if (!shouldBuildDeltaMessage()) {
             return null;
         }
 
-        DeltaUpdateMessage message = new DeltaUpdateMessage();
-        message.deltaChars = newDeltaChars();
+        DeltaUpdateMessage message = pool != null ? pool.acquire() : new DeltaUpdateMessage();
+        message.deltaChars = newDeltaChars(message.deltaChars);
+        message.werePlayerInfoUpdates = false;
+        message.werePlayerNameUpdates = false;
 
         int updatesPtr = encodeServerInfo(message, serverInfoUpdateMask);
 
@@ -139,8 +264,9 @@ class ScoreboardUpdatesDeltaEncoder {
         boolean hasPlayerInfo = message.hasPlayerInfo = hasPlayerInfo();
         boolean expectUpdates = (serverInfoUpdateMask & UPDATE_FLAG_WERE_PLAYER_INFO_UPDATES) != 0;
         if (hasPlayerInfo && expectUpdates) {
-            encodePlayersInfo(message, updatesPtr, numClients);
+            updatesPtr = encodePlayersInfo(message, updatesPtr, numClients);
         }
+        message.deltaLength = updatesPtr;
 
         if (BuildConfig.DEBUG) {
             // This flag has been introduced for convenience of debugging
@@ -187,7 +313,10 @@ class ScoreboardUpdatesDeltaEncoder {
         return deltaPtr;
     }
 
-    private void encodePlayersInfo(DeltaUpdateMessage message, int deltaPtr, int numClients) {
+    /**
+     * @return An updates pointer (an offset in delta chars) after writing players info delta.
+     */
+    private int encodePlayersInfo(DeltaUpdateMessage message, int deltaPtr, int numClients) {
         // All scoreboard offsets are specified in chars, so we have to scale this offset twice
         byteIoBuffer.position(PLAYERS_UPDATE_MASK_OFFSET * 2);
         byteIoBuffer.get(tmpByteArray, 0, numClients);
@@ -223,15 +352,18 @@ class ScoreboardUpdatesDeltaEncoder {
         }
 
         boolean wereUpdates = anyUpdatesFlags != 0;
+        // Players update bytes are not read by a decoder if there were no updates
         if (wereUpdates) {
-            message.playersUpdateBytes = new byte[numClients];
-            java.lang.System.arraycopy(tmpByteArray, 0, message.playersUpdateBytes, 0, numClients);
-        } else {
-            message.playersUpdateBytes = noUpdatesByteArray;
+            byte[] playersUpdateBytes = message.playersUpdateBytes;
+            if (playersUpdateBytes == null || playersUpdateBytes.length < numClients) {
+                playersUpdateBytes = message.playersUpdateBytes = new byte[numClients];
+            }
+            java.lang.System.arraycopy(tmpByteArray, 0, playersUpdateBytes, 0, numClients);
         }
 
         message.werePlayerInfoUpdates = wereUpdates;
         message.werePlayerNameUpdates = (anyUpdatesFlags & PLAYERINFO_UPDATE_FLAG_NAME) != 0;
+        return deltaPtr;
     }
 
     /**
@@ -253,7 +385,6 @@ class ScoreboardUpdatesDeltaEncoder {
         return totalLength;
     }
 
-    private byte[] noUpdatesByteArray = new byte[MAX_PLAYERS];
     private byte[] tmpByteArray = new byte[MAX_PLAYERS];
 }
 
@@ -0,0 +1,294 @@
+package com.github.qfusion.fakeclient;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Owns a thread that repeatedly calls {@link System#frame(int)} so a library user does not have to write
+ * a polling loop with guessed {@link Thread#sleep} calls.
+ * An interval between frames is adapted to the time a native frame actually used:
+ * if a frame has been busy (there was a network activity) the next frame is run as soon as possible,
+ * otherwise the interval grows up to a maximal one, so an idle system consumes almost no CPU.
+ * The next frame is run immediately if there is a pending work (e.g. a command has been executed),
+ * see {@link System#signalActivity()} and {@link FrameDriver#wakeUp()}.
+ * Since {@link System#frame(int)} calls are pinned to a thread, a driver can be started only once
+ * and must be the only caller of {@link System#frame(int)}. Use {@link FrameDriver#pause()}
+ * and {@link FrameDriver#resume()} to temporarily suspend frames.
+ * An interruption of the frame thread is treated as a {@link FrameDriver#stop()} request.
+ */
+public class FrameDriver {
+    public static final int DEFAULT_FRAME_MAX_MILLIS = 16;
+    public static final int DEFAULT_MIN_INTERVAL_MILLIS = 4;
+    public static final int DEFAULT_MAX_INTERVAL_MILLIS = 100;
+
+    /**
+     * An abstraction of a {@link System#frame(int)} call (that requires the native library) for testing purposes.
+     */
+    interface FrameRunner {
+        void runFrame(int maxMillis);
+    }
+
+    private final FrameRunner frameRunner;
+    private final ActivitySignal activitySignal;
+    private final int frameMaxMillis;
+    private final long minIntervalNanos;
+    private final long maxIntervalNanos;
+    /**
+     * A frame that took at least this time is considered busy.
+     */
+    private final long busyFrameNanos;
+
+    private final Object lock = new Object();
+    /**
+     * Guarded by the {@link FrameDriver#lock}. Never reset to null once it has been set.
+     */
+    private volatile Thread thread;
+    private volatile boolean isRunning;
+    private volatile boolean isStopRequested;
+    private volatile boolean isPaused;
+
+    /**
+     * Modified only by the frame thread.
+     */
+    private volatile long numFrames;
+    private volatile long lastFrameNanos;
+    private volatile long averageFrameNanos;
+    private volatile long maxFrameNanos;
+    private volatile long currentIntervalNanos;
+
+    public FrameDriver(System system) {
+        this(system, DEFAULT_FRAME_MAX_MILLIS, DEFAULT_MIN_INTERVAL_MILLIS, DEFAULT_MAX_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @param frameMaxMillis A value passed to {@link System#frame(int)} calls.
+     * @param minIntervalMillis A minimal interval between starts of frames.
+     * @param maxIntervalMillis A maximal interval between starts of frames when the system is idle.
+     */
+    public FrameDriver(System system, int frameMaxMillis, int minIntervalMillis, int maxIntervalMillis) {
+        this(newSystemFrameRunner(system), system.activitySignal, frameMaxMillis, minIntervalMillis, maxIntervalMillis);
+    }
+
+    private static FrameRunner newSystemFrameRunner(final System system) {
+        if (system == null) {
+            throw new IllegalArgumentException("The system is null");
+        }
+        return new FrameRunner() {
+            @Override
+            public void runFrame(int maxMillis) {
+                system.frame(maxMillis);
+            }
+        };
+    }
+
+    FrameDriver(FrameRunner frameRunner, int frameMaxMillis, int minIntervalMillis, int maxIntervalMillis) {
+        this(frameRunner, new ActivitySignal(), frameMaxMillis, minIntervalMillis, maxIntervalMillis);
+    }
+
+    FrameDriver(FrameRunner frameRunner, ActivitySignal activitySignal,
+                int frameMaxMillis, int minIntervalMillis, int maxIntervalMillis) {
+        if (frameMaxMillis < 0 || frameMaxMillis > 10000) {
+            String message = "The frameMaxMillis = " + frameMaxMillis + " is outside of valid [0, 10000] bounds";
+            throw new IllegalArgumentException(message);
+        }
+        if (minIntervalMillis < 0) {
+            throw new IllegalArgumentException("The minIntervalMillis = " + minIntervalMillis + " is negative");
+        }
+        if (maxIntervalMillis < minIntervalMillis) {
+            String message = "The maxIntervalMillis = " + maxIntervalMillis +
+                " is less than the minIntervalMillis = " + minIntervalMillis;
+            throw new IllegalArgumentException(message);
+        }
+
+        this.frameRunner = frameRunner;
+        this.activitySignal = activitySignal;
+        this.frameMaxMillis = frameMaxMillis;
+        this.minIntervalNanos = TimeUnit.MILLISECONDS.toNanos(minIntervalMillis);
+        this.maxIntervalNanos = TimeUnit.MILLISECONDS.toNanos(maxIntervalMillis);
+        this.busyFrameNanos = TimeUnit.MILLISECONDS.toNanos(frameMaxMillis) / 2;
+        this.currentIntervalNanos = minIntervalNanos;
+    }
+
+    /**
+     * Starts the frame thread.
+     * @throws IllegalStateException if the driver has been already started (even if it has been stopped since).
+     */
+    public void start() {
+        synchronized (lock) {
+            if (thread != null) {
+                throw new IllegalStateException("The driver has been already started. It cannot be restarted");
+            }
+            Thread newThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runFrames();
+                }
+            }, "jqfakeclient-frame-driver");
+            newThread.setDaemon(true);
+            isRunning = true;
+            thread = newThread;
+            newThread.start();
+        }
+    }
+
+    /**
+     * Stops the frame thread and waits for its termination (if this call is not done in the frame thread itself).
+     */
+    public void stop() {
+        Thread frameThread;
+        synchronized (lock) {
+            isStopRequested = true;
+            frameThread = thread;
+            lock.notifyAll();
+        }
+        if (frameThread == null) {
+            return;
+        }
+        // Interrupt waiting for an activity
+        activitySignal.signal();
+        if (frameThread == Thread.currentThread()) {
+            return;
+        }
+
+        boolean wasInterrupted = false;
+        for (;;) {
+            try {
+                frameThread.join();
+                break;
+            } catch (InterruptedException e) {
+                wasInterrupted = true;
+            }
+        }
+        if (wasInterrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Suspends frames until {@link FrameDriver#resume()} call. A frame that is being run is completed.
+     */
+    public void pause() {
+        isPaused = true;
+    }
+
+    public void resume() {
+        synchronized (lock) {
+            isPaused = false;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Requests running the next frame as soon as possible. Safe to call from any thread.
+     */
+    public void wakeUp() {
+        activitySignal.signal();
+    }
+
+    public boolean isRunning() {
+        return isRunning;
+    }
+
+    public boolean isPaused() {
+        return isPaused;
+    }
+
+    public long getNumFrames() {
+        return numFrames;
+    }
+
+    public long getLastFrameTimeMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(lastFrameNanos);
+    }
+
+    /**
+     * @return An exponential moving average of frame times.
+     */
+    public long getAverageFrameTimeMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(averageFrameNanos);
+    }
+
+    public long getMaxFrameTimeMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(maxFrameNanos);
+    }
+
+    /**
+     * @return An interval between starts of frames the driver currently uses.
+     */
+    public long getCurrentIntervalMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(currentIntervalNanos);
+    }
+
+    private void runFrames() {
+        try {
+            long intervalNanos = minIntervalNanos;
+            for (;;) {
+                // Waiting for an activity returns immediately while the thread is interrupted
+                if (Thread.currentThread().isInterrupted()) {
+                    isStopRequested = true;
+                    return;
+                }
+                if (!awaitUnpaused()) {
+                    return;
+                }
+
+                // The frame is going to handle all work that has been put so far
+                activitySignal.clear();
+                final long frameStartTime = java.lang.System.nanoTime();
+                frameRunner.runFrame(frameMaxMillis);
+                final long frameNanos = java.lang.System.nanoTime() - frameStartTime;
+
+                updateStats(frameNanos);
+                intervalNanos = nextIntervalNanos(intervalNanos, frameNanos, activitySignal.isSignaled());
+                currentIntervalNanos = intervalNanos;
+
+                long nanosLeft = frameStartTime + intervalNanos - java.lang.System.nanoTime();
+                if (nanosLeft > 0 && !isStopRequested) {
+                    activitySignal.await(nanosLeft);
+                }
+            }
+        } finally {
+            isRunning = false;
+        }
+    }
+
+    /**
+     * @return False if the driver should be stopped.
+     */
+    private boolean awaitUnpaused() {
+        if (!isPaused) {
+            return !isStopRequested;
+        }
+        synchronized (lock) {
+            while (isPaused && !isStopRequested) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    isStopRequested = true;
+                    return false;
+                }
+            }
+            return !isStopRequested;
+        }
+    }
+
+    private void updateStats(long frameNanos) {
+        numFrames++;
+        lastFrameNanos = frameNanos;
+        if (frameNanos > maxFrameNanos) {
+            maxFrameNanos = frameNanos;
+        }
+        long average = averageFrameNanos;
+        averageFrameNanos = numFrames > 1 ? average + (frameNanos - average) / 8 : frameNanos;
+    }
+
+    /**
+     * Runs next frames as soon as possible while frames are busy, doubles the interval while frames are idle.
+     */
+    long nextIntervalNanos(long currIntervalNanos, long frameNanos, boolean hasPendingWork) {
+        if (hasPendingWork || frameNanos >= busyFrameNanos) {
+            return minIntervalNanos;
+        }
+        long grownIntervalNanos = currIntervalNanos > 0 ? 2 * currIntervalNanos : TimeUnit.MILLISECONDS.toNanos(1);
+        return Math.max(minIntervalNanos, Math.min(grownIntervalNanos, maxIntervalNanos));
+    }
+}
@@ -0,0 +1,264 @@
+package com.github.qfusion.fakeclient;
+
+import java.util.Arrays;
+
+import static java.lang.System.arraycopy;
+
+/**
+ * An incremental case-insensitive trigram index of {@link RingLinesBuffer} lines.
+ * <ul>
+ * <li>A trigram maps to an ascending list of sequence numbers of lines containing it.</li>
+ * <li>Lines are always added to the front and removed from the back of a lines buffer,
+ * so a line is added to the tail and removed from the head of these lists.</li>
+ * <li>Trigrams of a removed line are computed again, so the index does not keep per-line data.</li>
+ * </ul>
+ * The index yields candidate lines that contain all query trigrams. Candidates must be checked by a caller.
+ */
+final class LinesSearchIndex {
+    /**
+     * Marks a key as a present one (three zero chars would make a zero key otherwise)
+     */
+    private static final long KEY_PRESENCE_BIT = 1L << 48;
+
+    /**
+     * A list of ascending sequence numbers of lines containing a trigram
+     */
+    static final class Postings {
+        long[] sequenceNumbers = new long[4];
+        int head;
+        int size;
+
+        void add(long sequenceNumber) {
+            if (head + size == sequenceNumbers.length) {
+                // Compact the list if a half of it is occupied by removed numbers, grow it otherwise
+                if (head >= sequenceNumbers.length / 2) {
+                    arraycopy(sequenceNumbers, head, sequenceNumbers, 0, size);
+                } else {
+                    sequenceNumbers = Arrays.copyOf(sequenceNumbers, 2 * sequenceNumbers.length);
+                    arraycopy(sequenceNumbers, head, sequenceNumbers, 0, size);
+                }
+                head = 0;
+            }
+            sequenceNumbers[head + size] = sequenceNumber;
+            size++;
+        }
+
+        long first() {
+            return sequenceNumbers[head];
+        }
+
+        void removeFirst() {
+            head++;
+            size--;
+        }
+
+        long get(int i) {
+            return sequenceNumbers[head + i];
+        }
+
+        boolean contains(long sequenceNumber) {
+            return Arrays.binarySearch(sequenceNumbers, head, head + size, sequenceNumber) >= 0;
+        }
+    }
+
+    /**
+     * Keys of an open addressing hash table. A zero key marks an empty slot.
+     */
+    private long[] keys = new long[1024];
+    private Postings[] values = new Postings[1024];
+    private int numEntries;
+
+    private long[] lineTrigrams = new long[64];
+
+    void clear() {
+        Arrays.fill(keys, 0);
+        Arrays.fill(values, null);
+        numEntries = 0;
+    }
+
+    int numTrigrams() {
+        return numEntries;
+    }
+
+    void addLine(long sequenceNumber, char[] chars, int offset, int length) {
+        final int numTrigrams = collectLineTrigrams(chars, offset, length);
+        final long[] lineTrigrams = this.lineTrigrams;
+        for (int i = 0; i < numTrigrams; ++i) {
+            final long key = lineTrigrams[i];
+            int slot = findSlot(key);
+            Postings postings = values[slot];
+            if (postings == null) {
+                postings = new Postings();
+                keys[slot] = key;
+                values[slot] = postings;
+                if (++numEntries * 4 >= keys.length * 3) {
+                    rehash(2 * keys.length);
+                }
+            }
+            if (BuildConfig.DEBUG) {
+                if (postings.size > 0 && postings.get(postings.size - 1) >= sequenceNumber) {
+                    throw new AssertionError("Lines must be added in ascending sequence numbers order");
+                }
+            }
+            postings.add(sequenceNumber);
+        }
+    }
+
+    /**
+     * Removes a line that must be the oldest indexed one.
+     * Chars must be the same as ones that have been supplied on the line addition.
+     */
+    void removeLine(long sequenceNumber, char[] chars, int offset, int length) {
+        final int numTrigrams = collectLineTrigrams(chars, offset, length);
+        final long[] lineTrigrams = this.lineTrigrams;
+        for (int i = 0; i < numTrigrams; ++i) {
+            final int slot = findSlot(lineTrigrams[i]);
+            final Postings postings = values[slot];
+            if (BuildConfig.DEBUG) {
+                if (postings == null || postings.first() != sequenceNumber) {
+                    throw new AssertionError("The line " + sequenceNumber + " is not the oldest indexed one");
+                }
+            }
+            postings.removeFirst();
+            if (postings.size == 0) {
+                removeAt(slot);
+            }
+        }
+    }
+
+    /**
+     * @param lowerCaseQuery A query that has been converted to lower case by {@link Character#toLowerCase(char)}.
+     * @return Ascending sequence numbers of lines that contain all query trigrams.
+     * Null if the query is too short to contain trigrams (all lines are candidates in this case).
+     */
+    long[] findCandidates(CharSequence lowerCaseQuery) {
+        final int length = lowerCaseQuery.length();
+        if (length < 3) {
+            return null;
+        }
+
+        final Postings[] queryPostings = new Postings[length - 2];
+        int rarestIndex = 0;
+        for (int i = 0; i < queryPostings.length; ++i) {
+            long key = trigramKey(lowerCaseQuery.charAt(i), lowerCaseQuery.charAt(i + 1), lowerCaseQuery.charAt(i + 2));
+            Postings postings = values[findSlot(key)];
+            if (postings == null) {
+                return new long[0];
+            }
+            queryPostings[i] = postings;
+            if (postings.size < queryPostings[rarestIndex].size) {
+                rarestIndex = i;
+            }
+        }
+
+        final Postings rarest = queryPostings[rarestIndex];
+        long[] result = new long[rarest.size];
+        int numCandidates = 0;
+        for (int i = 0; i < rarest.size; ++i) {
+            final long sequenceNumber = rarest.get(i);
+            boolean isACandidate = true;
+            for (Postings postings: queryPostings) {
+                if (postings != rarest && !postings.contains(sequenceNumber)) {
+                    isACandidate = false;
+                    break;
+                }
+            }
+            if (isACandidate) {
+                result[numCandidates++] = sequenceNumber;
+            }
+        }
+        return numCandidates == result.length ? result : Arrays.copyOf(result, numCandidates);
+    }
+
+    private static long trigramKey(char c1, char c2, char c3) {
+        return KEY_PRESENCE_BIT | ((long)c1 << 32) | ((long)c2 << 16) | c3;
+    }
+
+    /**
+     * Puts distinct lower case trigrams of a line to {@link LinesSearchIndex#lineTrigrams}.
+     * @return A number of the trigrams.
+     */
+    private int collectLineTrigrams(char[] chars, int offset, int length) {
+        if (length < 3) {
+            return 0;
+        }
+
+        long[] lineTrigrams = this.lineTrigrams;
+        if (lineTrigrams.length < length - 2) {
+            lineTrigrams = this.lineTrigrams = new long[Math.max(length - 2, 2 * lineTrigrams.length)];
+        }
+
+        char c1 = Character.toLowerCase(chars[offset + 0]);
+        char c2 = Character.toLowerCase(chars[offset + 1]);
+        for (int i = offset + 2, end = offset + length; i < end; ++i) {
+            char c3 = Character.toLowerCase(chars[i]);
+            lineTrigrams[i - offset - 2] = trigramKey(c1, c2, c3);
+            c1 = c2;
+            c2 = c3;
+        }
+
+        final int numTrigrams = length - 2;
+        Arrays.sort(lineTrigrams, 0, numTrigrams);
+        int numDistinctTrigrams = 1;
+        for (int i = 1; i < numTrigrams; ++i) {
+            if (lineTrigrams[i] != lineTrigrams[numDistinctTrigrams - 1]) {
+                lineTrigrams[numDistinctTrigrams++] = lineTrigrams[i];
+            }
+        }
+        return numDistinctTrigrams;
+    }
+
+    private static int idealSlot(long key, int mask) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int)(hash ^ (hash >>> 32)) & mask;
+    }
+
+    /**
+     * @return A slot of the key if it is present or an empty slot where it should be put.
+     */
+    private int findSlot(long key) {
+        final long[] keys = this.keys;
+        final int mask = keys.length - 1;
+        int slot = idealSlot(key, mask);
+        for (;;) {
+            long slotKey = keys[slot];
+            if (slotKey == key || slotKey == 0) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private void removeAt(int slot) {
+        final long[] keys = this.keys;
+        final Postings[] values = this.values;
+        final int mask = keys.length - 1;
+        // Shift back entries that can't be found by linear probing once the slot becomes empty
+        int hole = slot;
+        for (int i = (slot + 1) & mask; keys[i] != 0; i = (i + 1) & mask) {
+            int ideal = idealSlot(keys[i], mask);
+            if (((i - ideal) & mask) >= ((i - hole) & mask)) {
+                keys[hole] = keys[i];
+                values[hole] = values[i];
+                hole = i;
+            }
+        }
+        keys[hole] = 0;
+        values[hole] = null;
+        numEntries--;
+    }
+
+    private void rehash(int newCapacity) {
+        final long[] oldKeys = this.keys;
+        final Postings[] oldValues = this.values;
+        keys = new long[newCapacity];
+        values = new Postings[newCapacity];
+        for (int i = 0; i < oldKeys.length; ++i) {
+            if (oldKeys[i] != 0) {
+                int slot = findSlot(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+}
@@ -4,7 +4,9 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 
 /**
- * Use this class instead of {@link android.util.Log} to allow several tests to be run in standard JVM environment
+ * Use this class instead of {@link android.util.Log} to allow the library to be run in standard JVM environment.
+ * By default messages are forwarded to {@link android.util.Log} if it is available and printed to stdout otherwise.
+ * A desktop application might supply its own {@link LogProxy.Backend} via {@link LogProxy#setBackend(Backend)}.
  */
 public class LogProxy {
 
@@ -12,36 +14,45 @@ public class LogProxy {
         getImpl().w(tag, msg);
     }
 
-    private static Impl impl;
-    private static Impl getImpl() {
-        if (impl == null) {
-            impl = newImpl();
-        }
-        return impl;
+    public static abstract class Backend {
+        protected abstract void w(String tag, String msg);
     }
 
-    private static Impl newImpl() {
-        return Testing.isActive() ? DummyImpl.INSTANCE : RealImpl.INSTANCE;
+    /**
+     * Overrides the default backend. Should be called before any library activity is started.
+     * @param backend A backend to use. Null restores the default one.
+     */
+    public static void setBackend(Backend backend) {
+        impl = backend;
     }
 
-    private static abstract class Impl {
-        protected abstract void w(String tag, String msg);
+    private static volatile Backend impl;
+    private static Backend getImpl() {
+        Backend result = impl;
+        if (result == null) {
+            impl = result = newImpl();
+        }
+        return result;
+    }
+
+    private static Backend newImpl() {
+        return Testing.isActive() ? DummyImpl.INSTANCE : RealImpl.INSTANCE;
     }
 
-    private static class DummyImpl extends Impl {
+    private static class DummyImpl extends Backend {
         @Override
         protected void w(String tag, String msg) {
             java.lang.System.out.println("WARNING: " + tag + " : " + msg);
         }
 
-        static Impl INSTANCE = new DummyImpl();
+        static Backend INSTANCE = new DummyImpl();
     }
 
     /**
      * Reflected calls are nasty but if any of methods provided by the class
      * are user there are more significant problems in the code.
      */
-    private static class RealImpl extends Impl {
+    private static class RealImpl extends Backend {
         @Override
         protected void w(String tag, String msg) {
             try {
@@ -53,7 +64,7 @@ public class LogProxy {
             }
         }
 
-        static Impl INSTANCE;
+        static Backend INSTANCE;
         private static Class<?> clazz;
         private static Method method;
 
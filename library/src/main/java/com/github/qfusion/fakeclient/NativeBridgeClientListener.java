@@ -1,7 +1,5 @@
 package com.github.qfusion.fakeclient;
 
-import android.util.Log;
-
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 
@@ -7,11 +7,88 @@ import java.nio.ByteBuffer;
  */
 public abstract class NativeBridgeConsole {
 
+    public static final int DEFAULT_IO_BUFFER_SIZE = 4096;
+
     NativeBridgeConsole() {
-        ioBuffer = ByteBuffer.allocateDirect(4096);
+        this(DEFAULT_IO_BUFFER_SIZE, false);
+    }
+
+    /**
+     * @param ioBufferSize A size of the buffer used for native output transfer.
+     * @param isOutputBuffered If true, the native code accumulates the output in the buffer
+     *                         and transfers it once per {@link System#frame(int)} call (or when the buffer is full)
+     *                         instead of doing a JNI upcall per each printed chunk.
+     *                         Note that a console output becomes visible only at the frame end in this mode.
+     */
+    NativeBridgeConsole(int ioBufferSize, boolean isOutputBuffered) {
+        if (ioBufferSize < 64) {
+            throw new IllegalArgumentException("The ioBufferSize = " + ioBufferSize + " is too small");
+        }
+        this.ioBuffer = ByteBuffer.allocateDirect(ioBufferSize);
+        this.isOutputBuffered = isOutputBuffered;
+        this.maxIoBufferSize = ioBufferSize;
+    }
+
+    /**
+     * Uses an io buffer provided by the arena instead of allocating an own one.
+     * See {@link NativeBridgeConsole#NativeBridgeConsole(int, boolean)} for the buffered output description.
+     */
+    NativeBridgeConsole(ConsoleIoBuffersArena arena, boolean isOutputBuffered) {
+        this.ioBuffer = arena.allocateSlice();
+        this.isOutputBuffered = isOutputBuffered;
+        this.maxIoBufferSize = ioBuffer.capacity();
     }
 
     ByteBuffer ioBuffer;
+    /**
+     * Read by the native code when a native counterpart of the console is created.
+     */
+    final boolean isOutputBuffered;
+    /**
+     * Read by the native code to skip {@link NativeBridgeConsole#growIoBuffer(int)} calls that can't succeed.
+     */
+    private volatile int maxIoBufferSize;
+
+    public final boolean isOutputBuffered() {
+        return isOutputBuffered;
+    }
+
+    public final int getIoBufferSize() {
+        return ioBuffer.capacity();
+    }
+
+    /**
+     * Allows the io buffer to grow up to the given size if a single native output does not fit the buffer.
+     * Otherwise the output is transferred in multiple chunks.
+     * A grown buffer is allocated separately even if the console has been created using an arena.
+     * By default the buffer never grows.
+     */
+    public final void setMaxIoBufferSize(int maxIoBufferSize) {
+        if (maxIoBufferSize < ioBuffer.capacity()) {
+            String message = "The maxIoBufferSize = " + maxIoBufferSize +
+                " is less than the current size " + ioBuffer.capacity();
+            throw new IllegalArgumentException(message);
+        }
+        this.maxIoBufferSize = maxIoBufferSize;
+    }
+
+    /**
+     * Called by the native code if an output does not fit the io buffer.
+     * The native code has already transferred all data of the current buffer at the moment of this call.
+     * @param requiredSize A size of the output in bytes.
+     * @return A new larger io buffer or null if the buffer cannot grow.
+     */
+    ByteBuffer growIoBuffer(int requiredSize) {
+        final int currSize = ioBuffer.capacity();
+        final int maxSize = maxIoBufferSize;
+        if (currSize >= maxSize) {
+            return null;
+        }
+        // Grow as much as it is allowed if the output does not fit anyway, so it is split in fewer chunks
+        int newSize = Math.min(Math.max(requiredSize, 2 * currSize), maxSize);
+        ioBuffer = ByteBuffer.allocateDirect(newSize);
+        return ioBuffer;
+    }
 
     /**
      * Called by the native code to notify of new data available in the ioBuffer
@@ -19,6 +96,7 @@ public abstract class NativeBridgeConsole {
      * @param length A length of an ingoing data in bytes.
      */
     void onNewBufferData(int offset, int length) {
+        ioBuffer.clear();
         ioBuffer.position(offset);
         ioBuffer.limit(offset + length);
         getIngoingBytesProcessor().onNewBufferData(ioBuffer);
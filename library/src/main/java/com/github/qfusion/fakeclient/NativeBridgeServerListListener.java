@@ -21,4 +21,12 @@ public abstract class NativeBridgeServerListListener implements ServerListListen
 
     final ByteBuffer byteIoBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.nativeOrder());
     final CharBuffer charIoBuffer = byteIoBuffer.asCharBuffer();
+
+    /**
+     * Called by {@link System#frame(int)} after a native frame if this listener is used for server list updates.
+     * It is also called once by the first {@link System#frame(int)} after {@link System#stopUpdatingServerList()}.
+     * All events produced during the frame have been already delivered to this listener at this moment.
+     * This call is performed in the same thread as events delivery.
+     */
+    protected void onFrameEnd() {}
 }
@@ -1,7 +1,11 @@
 package com.github.qfusion.fakeclient;
 
 import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 
 /**
  * A {@link NativeBridgeConsole} that dumps ingoing characters to a {@link RingLinesBuffer}
@@ -40,6 +44,33 @@ public class RingBufferConsole extends NativeBridgeConsole {
         buffer = new RingLinesBuffer(capacity);
     }
 
+    /**
+     * @param ioBufferSize See {@link NativeBridgeConsole#NativeBridgeConsole(int, boolean)}
+     * @param bufferNativeOutput See {@link NativeBridgeConsole#NativeBridgeConsole(int, boolean)}
+     */
+    public RingBufferConsole(int capacity, int ioBufferSize, boolean bufferNativeOutput) {
+        super(ioBufferSize, bufferNativeOutput);
+        buffer = new RingLinesBuffer(capacity);
+    }
+
+    /**
+     * @param arena See {@link ConsoleIoBuffersArena}
+     * @param bufferNativeOutput See {@link NativeBridgeConsole#NativeBridgeConsole(int, boolean)}
+     */
+    public RingBufferConsole(int capacity, ConsoleIoBuffersArena arena, boolean bufferNativeOutput) {
+        super(arena, bufferNativeOutput);
+        buffer = new RingLinesBuffer(capacity);
+    }
+
+    /**
+     * Keeps lines in the store instead of per-line Java heap arrays.
+     * Lines that are present in the store (if it is a persistent one) are restored.
+     * @param linesStore See {@link RingLinesStore}. The buffer capacity is defined by the store.
+     */
+    public RingBufferConsole(RingLinesStore linesStore) {
+        buffer = new RingLinesBuffer(linesStore);
+    }
+
     /**
      * The class is static and uses explicit dependency injection via constructor to aid testing.
      */
@@ -51,63 +82,216 @@ public class RingBufferConsole extends NativeBridgeConsole {
             this.buffer = buffer;
         }
 
-        private Charset charset = Charset.forName("UTF-8");
+        /**
+         * Ingoing bytes are decoded directly to the lines buffer storage without intermediate strings.
+         * Malformed input is replaced by the decoder.
+         */
+        private final CharsetDecoder decoder = Charset.forName("UTF-8").newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        /**
+         * Wraps the chars buffer of the lines buffer we currently decode to (it changes rarely).
+         */
+        private CharBuffer decodedChars;
+
+        /**
+         * Bytes of a multi-byte UTF-8 sequence that has been split between buffer data chunks.
+         * (A sequence is never longer than 4 bytes, so we can save 3 bytes at most)
+         */
+        private final ByteBuffer pendingBytes = ByteBuffer.allocate(4);
+
+        /**
+         * A wrapper of the last array passed to {@link IngoingBytesProcessor#onNewBufferData(byte[], int, int)}
+         */
+        private ByteBuffer wrappedBytes;
 
         @Override
-        protected void onNewBufferData(ByteBuffer buffer) {
-            int bytesCount = buffer.remaining();
-            byte[] bufferByteArray = newBufferArray(bytesCount);
-            buffer.get(bufferByteArray, 0, bytesCount);
-            onNewBufferData(bufferByteArray, 0, bytesCount);
+        protected void onNewBufferData(ByteBuffer bytes) {
+            splitAndDecodeLines(bytes);
         }
 
         protected void onNewBufferData(byte[] bytes, int offset, int length) {
-            int i = offset;
-            int start = offset;
+            if (wrappedBytes == null || wrappedBytes.array() != bytes) {
+                wrappedBytes = ByteBuffer.wrap(bytes);
+            }
+            wrappedBytes.clear();
+            wrappedBytes.position(offset);
+            wrappedBytes.limit(offset + length);
+            splitAndDecodeLines(wrappedBytes);
+        }
 
-            String bufferString = new String(bytes, offset, length, charset);
+        private void splitAndDecodeLines(ByteBuffer bytes) {
+            if (pendingBytes.position() > 0) {
+                if (!completePendingSequence(bytes)) {
+                    return;
+                }
+            }
 
+            final int limit = bytes.limit();
+            int start = bytes.position();
+            // Note: a '\n' byte can't be a part of a multi-byte UTF-8 sequence
             for (;;) {
-                boolean newLine = false;
-                while (i < length) {
-                    if (bufferString.charAt(i) == '\n') {
-                        newLine = true;
-                        break;
-                    }
-                    i++;
+                final int i = indexOfNewline(bytes, start, limit);
+                if (i == limit) {
+                    break;
                 }
-                appendLinePart(bufferString, start, i - start);
-                if (newLine) {
-                    completeLineBuilding();
-                    i++;
+                bytes.limit(i);
+                appendLinePart(bytes);
+                bytes.limit(limit);
+                if (pendingBytes.position() > 0) {
+                    // The sequence can't be completed, decode it as malformed input
+                    pendingBytes.flip();
+                    decodeLinePart(pendingBytes, true);
+                    pendingBytes.clear();
                 }
-                start = i;
-                if (i == offset + length) {
+                completeLineBuilding();
+                start = i + 1;
+                bytes.position(start);
+            }
+
+            if (start != limit) {
+                appendLinePart(bytes);
+            }
+        }
+
+        /**
+         * Tries to complete a split multi-byte sequence using the ingoing bytes and decodes it.
+         * @return False if the ingoing bytes are not sufficient for that.
+         */
+        private boolean completePendingSequence(ByteBuffer bytes) {
+            final int leadingByte = pendingBytes.get(0);
+            int sequenceLength = 1;
+            if ((leadingByte & 0xE0) == 0xC0) {
+                sequenceLength = 2;
+            } else if ((leadingByte & 0xF0) == 0xE0) {
+                sequenceLength = 3;
+            } else if ((leadingByte & 0xF8) == 0xF0) {
+                sequenceLength = 4;
+            }
+
+            while (pendingBytes.position() < sequenceLength && bytes.hasRemaining()) {
+                // Stop at a first byte that is not a continuation byte
+                if ((bytes.get(bytes.position()) & 0xC0) != 0x80) {
                     break;
                 }
+                pendingBytes.put(bytes.get());
+            }
+
+            if (pendingBytes.position() < sequenceLength && !bytes.hasRemaining()) {
+                return false;
+            }
+
+            pendingBytes.flip();
+            decodeLinePart(pendingBytes, true);
+            pendingBytes.clear();
+            return true;
+        }
+
+        /**
+         * Decodes bytes between the buffer position and limit (that do not contain a newline)
+         * and appends chars to the current line. The buffer position is set to the limit.
+         */
+        protected void appendLinePart(ByteBuffer bytes) {
+            decodeLinePart(bytes, false);
+            if (bytes.hasRemaining()) {
+                // Save an incomplete trailing sequence
+                if (bytes.remaining() < pendingBytes.capacity()) {
+                    pendingBytes.put(bytes);
+                } else {
+                    decodeLinePart(bytes, true);
+                }
             }
         }
 
-        byte[] bufferArray = null;
+        private static final long LOW_BITS = 0x0101010101010101L;
+        private static final long HIGH_BITS = 0x8080808080808080L;
+        private static final long NEWLINES = 0x0A0A0A0A0A0A0A0AL;
+
+        /**
+         * Scans bytes a word at a time.
+         * @return An absolute index of the first '\n' byte in [from, limit) range or the limit if there is no one.
+         */
+        static int indexOfNewline(ByteBuffer bytes, int from, int limit) {
+            int i = from;
+            for (; i + 8 <= limit; i += 8) {
+                // A byte of the word is zero if a byte of the original word is '\n'.
+                // This expression yields non-zero iff there is a zero byte (regardless of a byte order).
+                long word = bytes.getLong(i) ^ NEWLINES;
+                if (((word - LOW_BITS) & ~word & HIGH_BITS) != 0) {
+                    break;
+                }
+            }
+            for (; i < limit; ++i) {
+                if (bytes.get(i) == '\n') {
+                    return i;
+                }
+            }
+            return limit;
+        }
 
-        protected byte[] newBufferArray(int length) {
-            if (bufferArray == null) {
-                bufferArray = new byte[length];
-            } else if (bufferArray.length < length) {
-                bufferArray = new byte[length];
-            } else if (bufferArray.length > 4096 && bufferArray.length > (3 * length) / 2) {
-                bufferArray = new byte[length];
+        /**
+         * Scans bytes a word at a time.
+         * @return A number of leading 7-bit ASCII bytes in [from, limit) range.
+         */
+        static int asciiPrefixLength(ByteBuffer bytes, int from, int limit) {
+            int i = from;
+            for (; i + 8 <= limit; i += 8) {
+                if ((bytes.getLong(i) & HIGH_BITS) != 0) {
+                    break;
+                }
             }
-            return bufferArray;
+            for (; i < limit; ++i) {
+                if (bytes.get(i) < 0) {
+                    break;
+                }
+            }
+            return i - from;
         }
 
-        protected void appendLinePart(String bufferString, int offset, int length) {
-            buffer.appendLinePart(bufferString, offset, length);
+        private void decodeLinePart(ByteBuffer bytes, boolean endOfInput) {
+            // Almost all console traffic is ASCII, widen bytes to chars without a decoder
+            // and fall back to the decoder only at the first byte that has a high bit set.
+            final int position = bytes.position();
+            final int asciiLength = asciiPrefixLength(bytes, position, bytes.limit());
+            // Note: an empty part is appended too, it marks the line as being built
+            if (asciiLength > 0 || !bytes.hasRemaining()) {
+                buffer.appendAsciiLinePart(bytes, position, asciiLength);
+                bytes.position(position + asciiLength);
+                if (!bytes.hasRemaining()) {
+                    return;
+                }
+            }
+
+            // UTF-8 never produces more chars than there are bytes (a replacement is produced per malformed byte at most)
+            final int maxLength = bytes.remaining();
+            final char[] chars = buffer.reserveLinePartChars(maxLength);
+            final int offset = buffer.linePartCharsOffset();
+            if (decodedChars == null || decodedChars.array() != chars) {
+                decodedChars = CharBuffer.wrap(chars);
+            }
+            decodedChars.clear();
+            decodedChars.limit(offset + maxLength);
+            decodedChars.position(offset);
+
+            decoder.reset();
+            CoderResult result = decoder.decode(bytes, decodedChars, endOfInput);
+            if (endOfInput) {
+                decoder.flush(decodedChars);
+            }
+            if (BuildConfig.DEBUG) {
+                if (result.isOverflow()) {
+                    throw new AssertionError("The decoded chars buffer has been overflown");
+                }
+            }
+
+            buffer.commitLinePartChars(decodedChars.position() - offset);
         }
 
         protected void completeLineBuilding() {
             if (listener != null) {
-                if (buffer.willRemoveBackLine()) {
+                // Multiple lines might be removed if lines are kept in a store
+                for (int i = buffer.numBackLinesToRemove(); i > 0; --i) {
                     listener.onAboutToRemoveBackLine();
                 }
                 buffer.completeLineBuilding();
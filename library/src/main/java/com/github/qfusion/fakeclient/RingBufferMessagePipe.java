@@ -0,0 +1,394 @@
+package com.github.qfusion.fakeclient;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A single-producer/single-consumer {@link MessagePipe} backed by a bounded lock-free ring buffer.
+ * A producer thread (e.g. a thread that calls {@link System#frame(int)}) posts messages,
+ * a consumer thread runs them by {@link RingBufferMessagePipe#drain()} calls.
+ * A consumer might be a plain thread that waits for messages using
+ * {@link RingBufferMessagePipe#awaitAndDrain(long)} or an Android Looper thread.
+ * In the latter case supply a wakeup action that posts a {@link RingBufferMessagePipe#drain()} call
+ * to the Looper (e.g. via a Handler). The action is called only if the consumer has drained all messages
+ * since the previous wakeup, so there is at most a single Looper message per drain.
+ */
+public class RingBufferMessagePipe implements MessagePipe {
+    /**
+     * Defines what a producer does if the ring buffer is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Wait until a consumer frees a room in the buffer.
+         * If a producer thread gets interrupted while waiting, the message is dropped
+         * (the interruption status is kept), so a stalled consumer can't block a producer forever.
+         */
+        BLOCK,
+        /**
+         * Drop the oldest message that has not been consumed yet.
+         * A producer might briefly wait for a consumer that is taking a message from a slot that should be reused.
+         */
+        DROP_OLDEST,
+        /**
+         * Spill overflowing messages to a list that is run by a consumer after all buffered messages.
+         * Messages are never merged. The spill list is UNBOUNDED by default: a pipe grows without limit
+         * while a consumer stalls or can't keep up with a producer, so use the default only if a producer
+         * must never wait and an overload is known to be temporary.
+         * If a spill list limit is specified, a producer waits when the list is full as the {@link #BLOCK}
+         * policy does (a message is dropped if a waiting producer thread gets interrupted).
+         * This is the only policy that requires locking (only while the buffer is overflown).
+         */
+        SPILL
+    }
+
+    final AtomicReferenceArray<Runnable> slots;
+    /**
+     * Sequences of slots for the {@link OverflowPolicy#DROP_OLDEST} policy (null otherwise).
+     * A slot might be written for a position only if its sequence is equal to the position.
+     * A thread that takes a message at a position (a consumer or a producer that drops it)
+     * clears the slot and sets its sequence to the position of the next message that should be put there.
+     */
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final OverflowPolicy overflowPolicy;
+    private final Runnable wakeupAction;
+    private final int maxSpilledMessages;
+
+    /**
+     * A position of the next message to consume. Modified by a consumer (and by a producer if messages get dropped).
+     */
+    private final AtomicLong head = new AtomicLong();
+    /**
+     * A position of the next message to produce. Modified only by a producer.
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    private final AtomicBoolean isWakeupNeeded = new AtomicBoolean(true);
+    private volatile Thread waitingConsumer;
+
+    private final Object overflowLock = new Object();
+    /**
+     * Guarded by the {@link RingBufferMessagePipe#overflowLock}
+     */
+    private ArrayList<Runnable> overflowMessages = new ArrayList<Runnable>();
+    private ArrayList<Runnable> drainedOverflowMessages = new ArrayList<Runnable>();
+    private volatile boolean hasOverflowMessages;
+
+    private final AtomicLong numDroppedMessages = new AtomicLong();
+
+    /**
+     * @param capacity A maximal number of buffered messages. Rounded up to a power of two.
+     */
+    public RingBufferMessagePipe(int capacity, OverflowPolicy overflowPolicy) {
+        this(capacity, overflowPolicy, null);
+    }
+
+    /**
+     * @param capacity A maximal number of buffered messages. Rounded up to a power of two.
+     * @param wakeupAction An action that is called by a producer when a consumer should be woken up (if any).
+     */
+    public RingBufferMessagePipe(int capacity, OverflowPolicy overflowPolicy, Runnable wakeupAction) {
+        this(capacity, overflowPolicy, wakeupAction, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param capacity A maximal number of buffered messages. Rounded up to a power of two.
+     * @param wakeupAction An action that is called by a producer when a consumer should be woken up (if any).
+     * @param maxSpilledMessages A maximal number of spilled messages for the {@link OverflowPolicy#SPILL} policy.
+     */
+    public RingBufferMessagePipe(int capacity, OverflowPolicy overflowPolicy,
+                                 Runnable wakeupAction, int maxSpilledMessages) {
+        if (capacity <= 0 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("The capacity " + capacity + " is outside of valid (0, 2^30] bounds");
+        }
+        if (overflowPolicy == null) {
+            throw new IllegalArgumentException("The overflow policy is null");
+        }
+        if (maxSpilledMessages <= 0) {
+            throw new IllegalArgumentException("The spilled messages limit " + maxSpilledMessages + " is not positive");
+        }
+
+        int actualCapacity = Integer.highestOneBit(capacity);
+        if (actualCapacity < capacity) {
+            actualCapacity <<= 1;
+        }
+        this.slots = new AtomicReferenceArray<Runnable>(actualCapacity);
+        if (overflowPolicy == OverflowPolicy.DROP_OLDEST) {
+            this.sequences = new AtomicLongArray(actualCapacity);
+            for (int i = 0; i < actualCapacity; ++i) {
+                sequences.set(i, i);
+            }
+        } else {
+            this.sequences = null;
+        }
+        this.mask = actualCapacity - 1;
+        this.overflowPolicy = overflowPolicy;
+        this.wakeupAction = wakeupAction;
+        this.maxSpilledMessages = maxSpilledMessages;
+    }
+
+    public final int capacity() {
+        return mask + 1;
+    }
+
+    public final OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * @return A total number of messages dropped due to the {@link OverflowPolicy#DROP_OLDEST} policy
+     *         or due to an interruption of a waiting producer.
+     */
+    public final long getNumDroppedMessages() {
+        return numDroppedMessages.get();
+    }
+
+    /**
+     * Must be called only by a single producer thread.
+     */
+    @Override
+    public void post(Runnable runnable) {
+        if (runnable == null) {
+            throw new IllegalArgumentException("The runnable is null");
+        }
+
+        // Preserve the order of messages: do not put messages to the buffer while there are overflown ones
+        if (hasOverflowMessages || !tryPutToBuffer(runnable)) {
+            handleOverflow(runnable);
+        }
+
+        if (isWakeupNeeded.get() && isWakeupNeeded.compareAndSet(true, false)) {
+            wakeUpConsumer();
+        }
+    }
+
+    private boolean tryPutToBuffer(Runnable runnable) {
+        final long currTail = tail.get();
+        if (currTail - head.get() > mask) {
+            return false;
+        }
+        final int index = (int)currTail & mask;
+        if (sequences != null) {
+            // A thread that has taken the previous message of the slot might have not released the slot yet
+            while (sequences.get(index) != currTail) {
+                Thread.yield();
+            }
+        }
+        slots.lazySet(index, runnable);
+        // Publish the message
+        tail.lazySet(currTail + 1);
+        return true;
+    }
+
+    private void handleOverflow(Runnable runnable) {
+        switch (overflowPolicy) {
+            case BLOCK:
+                putBlocking(runnable);
+                break;
+            case DROP_OLDEST:
+                putDroppingOldest(runnable);
+                break;
+            case SPILL:
+                putSpilling(runnable);
+                break;
+        }
+    }
+
+    private void putBlocking(Runnable runnable) {
+        long parkNanos = 1000;
+        while (!tryPutToBuffer(runnable)) {
+            parkNanos = awaitConsumer(parkNanos);
+            if (parkNanos < 0) {
+                numDroppedMessages.incrementAndGet();
+                return;
+            }
+        }
+    }
+
+    private boolean tryPutToSpillList(Runnable runnable) {
+        synchronized (overflowLock) {
+            if (overflowMessages.size() >= maxSpilledMessages) {
+                return false;
+            }
+            overflowMessages.add(runnable);
+            hasOverflowMessages = true;
+            return true;
+        }
+    }
+
+    private void putSpilling(Runnable runnable) {
+        long parkNanos = 1000;
+        while (!tryPutToSpillList(runnable)) {
+            parkNanos = awaitConsumer(parkNanos);
+            if (parkNanos < 0) {
+                numDroppedMessages.incrementAndGet();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Waits a bit for a consumer that should free some room.
+     * @return A time to wait next time or a negative value if the producer thread has been interrupted.
+     */
+    private long awaitConsumer(long parkNanos) {
+        // Parking returns immediately while the thread is interrupted
+        if (Thread.currentThread().isInterrupted()) {
+            return -1;
+        }
+        // Make sure the consumer is going to free some room
+        if (isWakeupNeeded.compareAndSet(true, false)) {
+            wakeUpConsumer();
+        }
+        LockSupport.parkNanos(this, parkNanos);
+        return Math.min(2 * parkNanos, TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    private void putDroppingOldest(Runnable runnable) {
+        while (!tryPutToBuffer(runnable)) {
+            long currHead = head.get();
+            // The consumer might have freed a room (or even drained the buffer) concurrently.
+            // Dropping a message is allowed only if the buffer is still full, the head must never pass the tail.
+            if (tail.get() - currHead <= mask) {
+                continue;
+            }
+            // The consumer might have consumed the message concurrently, try putting again in this case
+            if (head.compareAndSet(currHead, currHead + 1)) {
+                releaseSlot(currHead);
+                numDroppedMessages.incrementAndGet();
+            }
+        }
+    }
+
+    private void wakeUpConsumer() {
+        if (wakeupAction != null) {
+            wakeupAction.run();
+        }
+        Thread thread = waitingConsumer;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * @return True if there are no messages to consume at the moment of this call.
+     */
+    public boolean isEmpty() {
+        return tail.get() == head.get() && !hasOverflowMessages;
+    }
+
+    /**
+     * Runs all available messages. Must be called only by a single consumer thread.
+     * @return A number of messages that have been run.
+     */
+    public int drain() {
+        int numMessages = 0;
+        for (;;) {
+            numMessages += drainBuffer();
+            if (hasOverflowMessages) {
+                numMessages += drainOverflowMessages();
+                continue;
+            }
+            // Request a wakeup on next post, but check whether a message has been posted concurrently
+            isWakeupNeeded.set(true);
+            if (isEmpty() || !isWakeupNeeded.compareAndSet(true, false)) {
+                return numMessages;
+            }
+        }
+    }
+
+    private int drainBuffer() {
+        final AtomicReferenceArray<Runnable> slots = this.slots;
+        final boolean mightDrop = overflowPolicy == OverflowPolicy.DROP_OLDEST;
+        int numMessages = 0;
+        for (;;) {
+            long currHead = head.get();
+            if (currHead == tail.get()) {
+                return numMessages;
+            }
+            int index = (int)currHead & mask;
+            Runnable runnable;
+            if (mightDrop) {
+                // The producer might have dropped the message concurrently
+                if (!head.compareAndSet(currHead, currHead + 1)) {
+                    continue;
+                }
+                // The slot can't be reused by the producer until it is released
+                runnable = slots.get(index);
+                releaseSlot(currHead);
+            } else {
+                runnable = slots.get(index);
+                slots.lazySet(index, null);
+                head.lazySet(currHead + 1);
+            }
+            runnable.run();
+            numMessages++;
+        }
+    }
+
+    /**
+     * Clears a slot of a message that has been taken at the position and lets the producer reuse the slot.
+     */
+    private void releaseSlot(long position) {
+        final int index = (int)position & mask;
+        slots.lazySet(index, null);
+        // A volatile write orders the slot read and clearing before the release
+        sequences.set(index, position + mask + 1);
+    }
+
+    private int drainOverflowMessages() {
+        ArrayList<Runnable> messages;
+        synchronized (overflowLock) {
+            messages = overflowMessages;
+            overflowMessages = drainedOverflowMessages;
+            drainedOverflowMessages = messages;
+            hasOverflowMessages = false;
+        }
+
+        // These messages are newer than ones put in the buffer before the overflow,
+        // but older than ones that might have been put in the buffer after resetting the flag.
+        int numMessages = messages.size();
+        for (int i = 0; i < numMessages; ++i) {
+            messages.get(i).run();
+        }
+        messages.clear();
+        return numMessages;
+    }
+
+    /**
+     * Waits for messages if there is no available ones and runs all available messages.
+     * Must be called only by a single consumer thread.
+     * @param timeoutMillis A maximal time to wait for messages.
+     * @return A number of messages that have been run (might be zero on timeout or a spurious wakeup).
+     */
+    public int awaitAndDrain(long timeoutMillis) {
+        int numMessages = drain();
+        if (numMessages > 0) {
+            return numMessages;
+        }
+
+        waitingConsumer = Thread.currentThread();
+        try {
+            long deadline = java.lang.System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            for (;;) {
+                if (!isEmpty()) {
+                    break;
+                }
+                long nanosLeft = deadline - java.lang.System.nanoTime();
+                if (nanosLeft <= 0 || Thread.currentThread().isInterrupted()) {
+                    break;
+                }
+                LockSupport.parkNanos(this, nanosLeft);
+            }
+        } finally {
+            waitingConsumer = null;
+        }
+
+        return drain();
+    }
+}
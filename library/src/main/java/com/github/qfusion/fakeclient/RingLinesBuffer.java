@@ -2,14 +2,31 @@ package com.github.qfusion.fakeclient;
 
 import android.support.annotation.VisibleForTesting;
 
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.NoSuchElementException;
 
 import static java.lang.System.arraycopy;
 
 /**
  * A ring buffer for building and storing received character lines.
+ * Completed lines are stored either in per-line Java heap arrays (by default)
+ * or in a {@link RingLinesStore} (that keeps lines in fixed-size heap, off-heap or memory-mapped slabs).
  */
 public final class RingLinesBuffer {
+    /**
+     * A number of line slots (a slot is always kept free for a line that is being built)
+     */
+    private final int numSlots;
+
+    /**
+     * If the store is present, per-line heap arrays are not allocated
+     */
+    @VisibleForTesting final RingLinesStore store;
+
     /**
      * An i-th element contains a reference to char[] array of an i-th line
      */
@@ -34,7 +51,29 @@ public final class RingLinesBuffer {
      */
     @VisibleForTesting byte[] tokenColors;
 
-    private final CharArrayView tmpCharArrayView = new CharArrayView();
+    /**
+     * A {@link RingLinesBuffer#tokenColors} value that marks a line that is stored with raw escape sequences.
+     */
+    @VisibleForTesting static final byte UNPARSED_LINE = -1;
+
+    /**
+     * If true, lines are stored as-is and are parsed on the first access.
+     */
+    private boolean isTokensParsingLazy;
+    /**
+     * A number of present lines that are stored with raw escape sequences
+     */
+    private int numUnparsedLines;
+    /**
+     * Whether a {@link Snapshot} has ever been created. Lazy tokens parsing can't be enabled after that.
+     * Guarded by the {@link RingLinesBuffer#snapshotsLock} (along with modifications of the lazy parsing flag).
+     */
+    private boolean hasSnapshots;
+    private final Object snapshotsLock = new Object();
+    /**
+     * Whether the line that is being built is kept raw (the mode is latched on a line start).
+     */
+    private boolean isCurrLineRaw;
 
     private static final int[] EMPTY_INT_ARRAY = new int[0];
 
@@ -45,11 +84,65 @@ public final class RingLinesBuffer {
 
     @VisibleForTesting int currCharsBufferOffset;
 
+    /**
+     * Bounds of the line that is being built in {@link RingLinesBuffer#currCharsBuffer}.
+     */
+    @VisibleForTesting int currLineOffset;
+    @VisibleForTesting int currLineLength;
+
+    /**
+     * A state of parsing of colored tokens of the line that is being built.
+     * Escape sequences are stripped and tokens are parsed while line parts are appended.
+     */
+    @VisibleForTesting boolean hasPendingCircumflex;
+    private int currTokenStart;
+    private byte currTokenColor;
+    private int currLineNumTokens;
+    /**
+     * A packed color and length of the first token (an offset of the first token is always zero).
+     * It is not added to {@link RingLinesBuffer#currLineTokens} unless there is a second token.
+     */
+    private int currLineFirstToken;
+    private int[] currLineTokens;
+
     @VisibleForTesting int freeLineIndex;
     @VisibleForTesting int frontIndex;
     @VisibleForTesting int backIndex;
     @VisibleForTesting int linesCount;
 
+    /**
+     * A sequence number that is going to be assigned to the next completed line.
+     * Sequence numbers grow monotonically and are not reset by {@link RingLinesBuffer#clear()}.
+     */
+    private long nextSequenceNumber;
+
+    /**
+     * Bounds of lines that might be read by {@link Snapshot} readers in other threads.
+     * Lines with sequence numbers in [publishedBackSequenceNumber, publishedNextSequenceNumber) range are readable.
+     * <ul>
+     * <li>The back number is published before data of removed lines is touched.
+     * Readers check it after reading a line to detect whether the line has been overwritten meanwhile.</li>
+     * <li>The next number is published after data of a completed line has been written.</li>
+     * </ul>
+     * Note that a line always occupies a slot #(sequenceNumber % numSlots), so readers locate lines on their own.
+     */
+    private final AtomicLong publishedBackSequenceNumber = new AtomicLong();
+    private final AtomicLong publishedNextSequenceNumber = new AtomicLong();
+
+    /**
+     * An optional index of lines that is maintained on lines completion (or parsing if it is lazy) and removal
+     */
+    private LinesSearchIndex searchIndex;
+    /**
+     * A view that is used for retrieval of lines chars for the search index
+     */
+    private final CharArrayView searchCharsView = new CharArrayView();
+
+    /**
+     * A scratch buffer for tokens of a lazily parsed line
+     */
+    private int[] lazyTokensBuffer = new int[16];
+
     /**
      * Do not confuse with {@link java.util.Iterator}.
      */
@@ -186,6 +279,128 @@ public final class RingLinesBuffer {
         return new OptimizedIterator();
     }
 
+    /**
+     * A range of lines that have been published by the producer thread (the one that builds lines).
+     * Unlike other methods of the buffer, methods of a snapshot might be called by other threads
+     * while the producer keeps appending lines. This is a seqlock-like scheme:
+     * a line is copied (or referred if it is immutable) and then the reader checks
+     * whether the line has been removed by the producer meanwhile.
+     * The producer is never blocked by readers.
+     * A snapshot instance should not be shared between reader threads.
+     */
+    public final class Snapshot {
+        private long backSequenceNumber;
+        private long nextSequenceNumber;
+
+        /**
+         * Views of store regions with positions that are independent of the producer ones
+         */
+        private final CharBuffer storeChars;
+        private final IntBuffer storeTokens;
+
+        Snapshot() {
+            if (store != null) {
+                storeChars = store.newCharsReaderView();
+                storeTokens = store.newTokensReaderView();
+            } else {
+                storeChars = null;
+                storeTokens = null;
+            }
+            update();
+        }
+
+        /**
+         * Captures the range of lines that are currently published.
+         */
+        public void update() {
+            // Read the next number first, so the back number is not older than the next one
+            nextSequenceNumber = publishedNextSequenceNumber.get();
+            backSequenceNumber = Math.min(publishedBackSequenceNumber.get(), nextSequenceNumber);
+        }
+
+        public long backSequenceNumber() {
+            return backSequenceNumber;
+        }
+
+        public long nextSequenceNumber() {
+            return nextSequenceNumber;
+        }
+
+        public int size() {
+            return (int)(nextSequenceNumber - backSequenceNumber);
+        }
+
+        /**
+         * @return A sequence number of the oldest line that has not been removed by the producer yet
+         * (it might be greater than the snapshot back sequence number if lines have been removed since the update).
+         */
+        public long firstAvailableSequenceNumber() {
+            return Math.max(backSequenceNumber, publishedBackSequenceNumber.get());
+        }
+
+        /**
+         * Reads a line of the snapshot. Chars and tokens are copied to buffers owned by views
+         * unless the line is kept in per-line heap arrays that are immutable once a line is completed.
+         * @return False if the line has been removed by the producer (contents of views are undefined in this case).
+         */
+        public boolean read(long sequenceNumber, CharArrayView charsToReuse, BufferLineTokensView tokensToReuse) {
+            if (sequenceNumber < backSequenceNumber || sequenceNumber >= nextSequenceNumber) {
+                String message = "The sequence number " + sequenceNumber + " is out of the snapshot range [" +
+                    backSequenceNumber + ", " + nextSequenceNumber + ")";
+                throw new IndexOutOfBoundsException(message);
+            }
+            if (sequenceNumber < publishedBackSequenceNumber.get()) {
+                return false;
+            }
+
+            final int index = (int)(sequenceNumber % numSlots);
+            if (store != null) {
+                if (!store.readLineConcurrently(index, storeChars, storeTokens, charsToReuse, tokensToReuse)) {
+                    return false;
+                }
+            } else {
+                if (BuildConfig.DEBUG) {
+                    if (coloredTokens[index] == null && tokenColors[index] == UNPARSED_LINE) {
+                        throw new AssertionError("Lazily parsed lines can't be read concurrently");
+                    }
+                }
+                final char[] chars = arrayRefs[index];
+                final int offset = offsetsAndLengths[index * 2 + 0];
+                final int length = offsetsAndLengths[index * 2 + 1];
+                final int[] tokens = coloredTokens[index];
+                final byte color = tokenColors[index];
+                charsToReuse.arrayRef = chars;
+                charsToReuse.arrayOffset = offset;
+                charsToReuse.length = length;
+                if (tokens == null) {
+                    setSingleTokenView(tokensToReuse, length, color);
+                } else {
+                    tokensToReuse.arrayRef = tokens;
+                    tokensToReuse.arrayOffset = 1;
+                    tokensToReuse.length = tokens[0];
+                }
+            }
+
+            // An atomic read-modify-write acts as a full fence, so the check can't be reordered with line reads
+            return sequenceNumber >= publishedBackSequenceNumber.getAndAdd(0);
+        }
+    }
+
+    /**
+     * Creates a snapshot of currently published lines.
+     * Unlike other methods, this one might be called by a thread other than the producer one.
+     * @throws IllegalStateException if tokens parsing is lazy (lines get modified on retrieval in this mode).
+     */
+    public Snapshot newSnapshot() {
+        synchronized (snapshotsLock) {
+            if (isTokensParsingLazy) {
+                throw new IllegalStateException("Snapshots can't be used if tokens parsing is lazy");
+            }
+            hasSnapshots = true;
+        }
+        return new Snapshot();
+    }
+
     public CharArrayView front(CharArrayView reuse) {
         if (linesCount == 0) {
             throw new NoSuchElementException();
@@ -226,7 +441,199 @@ public final class RingLinesBuffer {
         return back(new CharArrayView());
     }
 
+    /**
+     * Retrieves a line in constant time.
+     * @param logicalIndex An index of a line in range [0, size()) counting from the back (the oldest) line.
+     */
+    public CharArrayView get(int logicalIndex, CharArrayView reuse) {
+        return getCharArrayViewAt(indexOf(logicalIndex), reuse);
+    }
+
+    /**
+     * Retrieves a line and its tokens in constant time.
+     * @param logicalIndex An index of a line in range [0, size()) counting from the back (the oldest) line.
+     */
+    public void get(int logicalIndex, CharArrayView charsToReuse, BufferLineTokensView tokensToReuse) {
+        final int index = indexOf(logicalIndex);
+        getCharArrayViewAt(index, charsToReuse);
+        getTokensViewAt(index, tokensToReuse);
+    }
+
+    private int indexOf(int logicalIndex) {
+        if (logicalIndex < 0 || logicalIndex >= linesCount) {
+            throw new IndexOutOfBoundsException("The index " + logicalIndex + " is out of [0, " + linesCount + ") range");
+        }
+        return nthNextIndex(backIndex, logicalIndex);
+    }
+
+    /**
+     * Enables or disables lazy parsing of colored tokens.
+     * Lines are stored with raw escape sequences in this mode.
+     * A line gets stripped and its tokens get parsed (once) on the first retrieval,
+     * so lines that get evicted without being retrieved are never parsed.
+     * The mode takes effect starting from the next line.
+     * Lines that are kept in a {@link RingLinesStore} are always parsed eagerly
+     * as the store must know sizes of line chars and tokens to allocate them.
+     * Must be called by the producer thread (the one that builds lines).
+     * @throws IllegalStateException if lazy parsing gets enabled after a {@link Snapshot} has been created.
+     */
+    public void setTokensParsingLazy(boolean lazy) {
+        // The producer thread reads the flag without locking as it is the only thread that modifies it
+        synchronized (snapshotsLock) {
+            if (lazy && hasSnapshots) {
+                throw new IllegalStateException("Tokens parsing can't be lazy if snapshots are used");
+            }
+            isTokensParsingLazy = lazy;
+        }
+    }
+
+    public boolean isTokensParsingLazy() {
+        return isTokensParsingLazy;
+    }
+
+    /**
+     * Enables or disables maintaining of a trigram index of lines that speeds up {@link RingLinesBuffer#search(CharSequence)}.
+     * The index is built for present lines on enabling.
+     * Note that it takes more memory than lines chars themselves and slows down lines addition.
+     * If tokens parsing is lazy, a line gets indexed when it gets parsed (on the first retrieval or search),
+     * so the index does not force parsing of lines that get evicted before that.
+     */
+    public void setSearchIndexEnabled(boolean enabled) {
+        if (!enabled) {
+            searchIndex = null;
+            return;
+        }
+        if (searchIndex != null) {
+            return;
+        }
+
+        searchIndex = new LinesSearchIndex();
+        int index = backIndex;
+        for (int i = 0; i < linesCount; ++i) {
+            // Unparsed lines are indexed on parsing
+            if (!isLineUnparsed(index)) {
+                getCharArrayViewAt(index, searchCharsView);
+                searchIndex.addLine(sequenceNumberOf(i), searchCharsView.arrayRef, searchCharsView.arrayOffset, searchCharsView.length);
+            }
+            index = nextIndex(index);
+        }
+    }
+
+    public boolean isSearchIndexEnabled() {
+        return searchIndex != null;
+    }
+
+    /**
+     * Finds lines that contain the query ignoring case (chars are compared using {@link Character#toLowerCase(char)}).
+     * All lines are scanned if the search index is not enabled or the query is shorter than 3 chars.
+     * @return Ascending sequence numbers of matching lines (see {@link RingLinesBuffer#logicalIndexOf(long)}).
+     */
+    public long[] search(CharSequence query) {
+        final int queryLength = query.length();
+        final char[] lowerCaseQuery = new char[queryLength];
+        for (int i = 0; i < queryLength; ++i) {
+            lowerCaseQuery[i] = Character.toLowerCase(query.charAt(i));
+        }
+
+        long[] candidates = null;
+        if (searchIndex != null) {
+            // Let unparsed lines get indexed
+            if (numUnparsedLines > 0) {
+                parseAllLines();
+            }
+            candidates = searchIndex.findCandidates(new CharArrayView(lowerCaseQuery, 0, queryLength));
+        }
+
+        final int numCandidates = candidates != null ? candidates.length : linesCount;
+        final long firstSequenceNumber = backSequenceNumber();
+        long[] result = new long[numCandidates];
+        int numMatches = 0;
+        for (int i = 0; i < numCandidates; ++i) {
+            final long sequenceNumber = candidates != null ? candidates[i] : firstSequenceNumber + i;
+            getCharArrayViewAt(nthNextIndex(backIndex, logicalIndexOf(sequenceNumber)), searchCharsView);
+            if (containsLowerCase(searchCharsView, lowerCaseQuery)) {
+                result[numMatches++] = sequenceNumber;
+            }
+        }
+        return numMatches == result.length ? result : Arrays.copyOf(result, numMatches);
+    }
+
+    private void parseAllLines() {
+        int index = backIndex;
+        for (int i = 0; i < linesCount; ++i) {
+            if (isLineUnparsed(index)) {
+                parseLineAt(index);
+            }
+            index = nextIndex(index);
+        }
+    }
+
+    private boolean isLineUnparsed(int index) {
+        return store == null && tokenColors[index] == UNPARSED_LINE;
+    }
+
+    private static boolean containsLowerCase(CharArrayView chars, char[] lowerCaseQuery) {
+        final char[] array = chars.arrayRef;
+        final int offset = chars.arrayOffset;
+        final int lastStart = chars.length - lowerCaseQuery.length;
+        for (int start = 0; start <= lastStart; ++start) {
+            int i = 0;
+            while (i < lowerCaseQuery.length && Character.toLowerCase(array[offset + start + i]) == lowerCaseQuery[i]) {
+                i++;
+            }
+            if (i == lowerCaseQuery.length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return A sequence number of the back (the oldest) line.
+     * If the buffer is empty, it is equal to a sequence number of the next completed line.
+     */
+    public long backSequenceNumber() {
+        return nextSequenceNumber - linesCount;
+    }
+
+    /**
+     * @return A sequence number that is going to be assigned to the next completed line.
+     * Sequence numbers of all lines are in [backSequenceNumber(), nextSequenceNumber()) range.
+     */
+    public long nextSequenceNumber() {
+        return nextSequenceNumber;
+    }
+
+    /**
+     * @return A sequence number of a line at the logical index.
+     */
+    public long sequenceNumberOf(int logicalIndex) {
+        if (logicalIndex < 0 || logicalIndex >= linesCount) {
+            throw new IndexOutOfBoundsException("The index " + logicalIndex + " is out of [0, " + linesCount + ") range");
+        }
+        return nextSequenceNumber - linesCount + logicalIndex;
+    }
+
+    /**
+     * @return A logical index of a line with the sequence number
+     * or -1 if the line has been removed or has not been completed yet.
+     */
+    public int logicalIndexOf(long sequenceNumber) {
+        long logicalIndex = sequenceNumber - (nextSequenceNumber - linesCount);
+        if (logicalIndex < 0 || logicalIndex >= linesCount) {
+            return -1;
+        }
+        return (int)logicalIndex;
+    }
+
     private CharArrayView getCharArrayViewAt(int index, CharArrayView reuse) {
+        if (store != null) {
+            store.readChars(index, reuse);
+            return reuse;
+        }
+        if (tokenColors[index] == UNPARSED_LINE) {
+            parseLineAt(index);
+        }
         reuse.arrayRef = arrayRefs[index];
         reuse.arrayOffset = offsetsAndLengths[index * 2 + 0];
         reuse.length = offsetsAndLengths[index * 2 + 1];
@@ -234,44 +641,50 @@ public final class RingLinesBuffer {
     }
 
     private BufferLineTokensView getTokensViewAt(int index, BufferLineTokensView reuse) {
-        int charsLength = offsetsAndLengths[index * 2 + 1];
-        int[] tokens = coloredTokens[index];
+        if (store != null) {
+            store.readTokens(index, reuse);
+            return reuse;
+        }
 
+        if (tokenColors[index] == UNPARSED_LINE) {
+            parseLineAt(index);
+        }
+        int[] tokens = coloredTokens[index];
         // If there is only a single token
         if (tokens == null) {
-            if (charsLength != 0) {
-                reuse.arrayOffset = 0;
-                reuse.length = 2;
-                tokens = reuse.intrinsicBuffer;
-                // Set offset of a single token in the chars array
-                tokens[0] = 0;
-                tokens[1] = (tokenColors[index] << 28) | charsLength;
-            } else {
-                // The line is empty and there were no tokens produced
-                reuse.arrayOffset = 0;
-                reuse.length = 0;
-                reuse.arrayRef = EMPTY_INT_ARRAY;
-            }
+            setSingleTokenView(reuse, offsetsAndLengths[index * 2 + 1], tokenColors[index]);
         } else {
+            reuse.arrayRef = tokens;
             reuse.arrayOffset = 1;
             reuse.length = tokens[0];
         }
-
-        reuse.arrayRef = tokens;
         return reuse;
     }
 
+    static void setSingleTokenView(BufferLineTokensView reuse, int charsLength, byte color) {
+        if (charsLength != 0) {
+            int[] tokens = reuse.intrinsicBuffer;
+            // Set offset of a single token in the chars array
+            tokens[0] = 0;
+            tokens[1] = (color << 28) | charsLength;
+            reuse.arrayRef = tokens;
+            reuse.arrayOffset = 0;
+            reuse.length = 2;
+        } else {
+            // The line is empty and there were no tokens produced
+            reuse.arrayRef = EMPTY_INT_ARRAY;
+            reuse.arrayOffset = 0;
+            reuse.length = 0;
+        }
+    }
+
     RingLinesBuffer(int capacity) {
-        arrayRefs = new char[capacity + 1][];
-        offsetsAndLengths = new int[2 * capacity + 2];
-        coloredTokens = new int[capacity + 1][];
-        tokenColors = new byte[capacity + 1];
-        defaultBufferSize = 1024;
-        this.currCharsBuffer = new char[defaultBufferSize];
-        resetValues();
+        this(capacity, 1024);
     }
 
     RingLinesBuffer(int capacity, int defaultBufferSize) {
+        numSlots = capacity + 1;
+        store = null;
         arrayRefs = new char[capacity + 1][];
         offsetsAndLengths = new int[2 * capacity + 2];
         coloredTokens = new int[capacity + 1][];
@@ -281,8 +694,31 @@ public final class RingLinesBuffer {
         resetValues();
     }
 
+    /**
+     * Creates a buffer that keeps completed lines in the store.
+     * Lines that are present in the store (if it is a persistent one) are restored.
+     * The current chars buffer is used only as a scratch buffer for building a line in this mode.
+     */
+    RingLinesBuffer(RingLinesStore store) {
+        this.numSlots = store.numSlots;
+        this.store = store;
+        this.defaultBufferSize = 1024;
+        this.currCharsBuffer = new char[defaultBufferSize];
+        resetValues();
+        backIndex = store.backIndex();
+        linesCount = store.linesCount();
+        nextSequenceNumber = store.nextSequenceNumber();
+        publishedBackSequenceNumber.set(nextSequenceNumber - linesCount);
+        publishedNextSequenceNumber.set(nextSequenceNumber);
+        freeLineIndex = nthNextIndex(backIndex, linesCount);
+        frontIndex = linesCount > 0 ? nthPrevIndex(freeLineIndex, 1) : backIndex;
+    }
+
     protected void resetValues() {
         currCharsBufferOffset = 0;
+        currLineOffset = 0;
+        currLineLength = 0;
+        resetCurrLineTokens();
         isFrontLineCompleted = true;
         freeLineIndex = 0;
         frontIndex = 0;
@@ -291,7 +727,7 @@ public final class RingLinesBuffer {
     }
 
     public int capacity() {
-        return arrayRefs.length - 1;
+        return numSlots - 1;
     }
 
     public int size() {
@@ -303,20 +739,42 @@ public final class RingLinesBuffer {
     }
 
     public void clear() {
-        int index = backIndex;
-        for (int i = 0; i < linesCount; ++i) {
-            arrayRefs[index] = null;
-            index = nextIndex(index);
+        // Let readers know lines are removed before touching them
+        publishedBackSequenceNumber.getAndSet(nextSequenceNumber);
+        if (store == null) {
+            int index = backIndex;
+            for (int i = 0; i < linesCount; ++i) {
+                arrayRefs[index] = null;
+                coloredTokens[index] = null;
+                index = nextIndex(index);
+            }
+        }
+        if (searchIndex != null) {
+            searchIndex.clear();
         }
+        numUnparsedLines = 0;
+        final boolean mightBeViewed = store == null && currCharsBufferOffset > 0;
         resetValues();
+        if (mightBeViewed) {
+            // Views of removed lines (e.g. ones returned by Snapshot.read()) might still refer to the buffer,
+            // so new lines must not overwrite their chars
+            currCharsBuffer = new char[defaultBufferSize];
+        }
+        // Keep sequence numbers growing monotonically and matching line slots
+        backIndex = (int)(nextSequenceNumber % numSlots);
+        frontIndex = backIndex;
+        freeLineIndex = backIndex;
+        if (store != null) {
+            store.setRingState(backIndex, 0, nextSequenceNumber);
+        }
     }
 
     protected final int nextIndex(int index) {
-        return (index + 1) % arrayRefs.length;
+        return (index + 1) % numSlots;
     }
 
     protected final int prevIndex(int index) {
-        return index > 0 ? index - 1 : 0;
+        return index > 0 ? index - 1 : numSlots - 1;
     }
 
     protected final int nthNextIndex(int index, int n) {
@@ -324,11 +782,11 @@ public final class RingLinesBuffer {
             throw new AssertionError("The n " + n + " value exceeds the lines count " + linesCount);
         }
 
-        if (index + n < arrayRefs.length) {
+        if (index + n < numSlots) {
             return index + n;
         }
 
-        return n - (arrayRefs.length - index);
+        return n - (numSlots - index);
     }
 
     protected final int nthPrevIndex(int index, int n) {
@@ -340,61 +798,304 @@ public final class RingLinesBuffer {
             return index - n;
         }
 
-        return arrayRefs.length - (n - index);
+        return numSlots - (n - index);
     }
 
     protected final void appendLinePart(String string) {
         appendLinePart(string, 0, string.length());
     }
 
+    /**
+     * Appends a line part stripping color escape sequences.
+     * Note that stripping and tokens parsing is done while copying chars,
+     * so each char is touched once and a line completion does not require a pass over the line.
+     */
     protected void appendLinePart(String string, int offset, int length) {
-        isFrontLineCompleted = false;
-        if (arrayRefs[freeLineIndex] == null) {
-            arrayRefs[freeLineIndex] = currCharsBuffer;
-            offsetsAndLengths[freeLineIndex * 2 + 0] = currCharsBufferOffset;
-            offsetsAndLengths[freeLineIndex * 2 + 1] = 0;
+        // A pending circumflex might be followed by a non-escape char, so 2 chars might be written for a single one
+        final char[] dest = ensureLinePartRoom(length + 1);
+        if (isCurrLineRaw) {
+            string.getChars(offset, offset + length, dest, currCharsBufferOffset);
+            advanceLinePart(length);
+            return;
+        }
+        int destPtr = currCharsBufferOffset;
+        int i = offset;
+        final int limit = offset + length;
+        if (hasPendingCircumflex && i < limit) {
+            hasPendingCircumflex = false;
+            destPtr = onEscapedChar(string.charAt(i++), dest, destPtr);
+        }
+        while (i < limit) {
+            char ch = string.charAt(i++);
+            if (ch != '^') {
+                dest[destPtr++] = ch;
+                continue;
+            }
+            // Can't do a lookahead, defer handling of the circumflex until the next part or the line completion
+            if (i == limit) {
+                hasPendingCircumflex = true;
+                break;
+            }
+            destPtr = onEscapedChar(string.charAt(i++), dest, destPtr);
+        }
+
+        advanceLinePart(destPtr - currCharsBufferOffset);
+    }
+
+    /**
+     * Appends chars of a line part that is known to consist of 7-bit ASCII bytes only.
+     * Bytes are widened to chars directly without decoding.
+     * @param offset An absolute offset of the part in the bytes buffer (the buffer position is not modified).
+     */
+    protected void appendAsciiLinePart(ByteBuffer bytes, int offset, int length) {
+        final char[] dest = ensureLinePartRoom(length + 1);
+        int destPtr = currCharsBufferOffset;
+        int i = offset;
+        final int limit = offset + length;
+        if (isCurrLineRaw) {
+            while (i < limit) {
+                dest[destPtr++] = (char)bytes.get(i++);
+            }
+            advanceLinePart(length);
+            return;
+        }
+        if (hasPendingCircumflex && i < limit) {
+            hasPendingCircumflex = false;
+            destPtr = onEscapedChar((char)bytes.get(i++), dest, destPtr);
+        }
+        while (i < limit) {
+            char ch = (char)bytes.get(i++);
+            if (ch != '^') {
+                dest[destPtr++] = ch;
+                continue;
+            }
+            if (i == limit) {
+                hasPendingCircumflex = true;
+                break;
+            }
+            destPtr = onEscapedChar((char)bytes.get(i++), dest, destPtr);
+        }
+
+        advanceLinePart(destPtr - currCharsBufferOffset);
+    }
+
+    /**
+     * Appends a line that has been already stripped and parsed (e.g. by another buffer).
+     * The line should be completed by {@link RingLinesBuffer#completeLineBuilding()} call after that.
+     * There must be no line that is being built at the moment of this call.
+     * @param tokens Tokens in {@link BufferLineTokensView} format (pairs of a token offset and a packed color and length).
+     */
+    protected void appendParsedLine(char[] chars, int charsOffset, int charsLength,
+                                    int[] tokens, int tokensOffset, int tokensLength) {
+        if (BuildConfig.DEBUG) {
+            if (!isFrontLineCompleted) {
+                throw new AssertionError("There is a line that is being built");
+            }
+        }
+
+        final char[] dest = ensureLinePartRoom(charsLength);
+        // The line must not be parsed again even if tokens parsing is lazy
+        isCurrLineRaw = false;
+        arraycopy(chars, charsOffset, dest, currCharsBufferOffset, charsLength);
+        advanceLinePart(charsLength);
+
+        final int numTokens = tokensLength / 2;
+        if (numTokens > 0) {
+            currLineFirstToken = tokens[tokensOffset + 1];
+        }
+        if (numTokens > 1) {
+            if (currLineTokens == null || currLineTokens.length < 1 + tokensLength) {
+                currLineTokens = new int[Math.max(1 + tokensLength, 3 * 4)];
+            }
+            arraycopy(tokens, tokensOffset, currLineTokens, 1, tokensLength);
+        }
+        currLineNumTokens = numTokens;
+        // Prevent adding a trailing token on the line completion
+        currTokenStart = charsLength;
+    }
+
+    /**
+     * Ensures there is a room for at least maxLength raw chars of the current line in the current chars buffer.
+     * Chars of a line part should be written to the returned array
+     * starting from {@link RingLinesBuffer#linePartCharsOffset()} and then committed
+     * by {@link RingLinesBuffer#commitLinePartChars(int)} call.
+     * This allows producers (like a bytes decoder) to write chars directly to the line storage.
+     */
+    protected char[] reserveLinePartChars(int maxLength) {
+        // Raw chars are written after a slot reserved for a pending circumflex.
+        // Chars are stripped in-place on commit and this gap guarantees that unread chars are never overwritten.
+        return ensureLinePartRoom(maxLength + 1);
+    }
+
+    /**
+     * @return An offset in the array returned by {@link RingLinesBuffer#reserveLinePartChars(int)}
+     *         where chars of a line part should be written.
+     */
+    protected final int linePartCharsOffset() {
+        // Raw chars are committed as-is, so the gap is not needed
+        return isCurrLineRaw ? currCharsBufferOffset : currCharsBufferOffset + 1;
+    }
+
+    /**
+     * Appends length raw chars written to the reserved space to the current line stripping color escape sequences.
+     */
+    protected void commitLinePartChars(int length) {
+        if (BuildConfig.DEBUG) {
+            if (length < 0 || currCharsBufferOffset + 1 + length > currCharsBuffer.length) {
+                throw new AssertionError("The length " + length + " exceeds the reserved space");
+            }
+        }
+
+        if (isCurrLineRaw) {
+            advanceLinePart(length);
+            return;
+        }
+
+        final char[] chars = currCharsBuffer;
+        int destPtr = currCharsBufferOffset;
+        int i = destPtr + 1;
+        final int limit = i + length;
+        if (hasPendingCircumflex && i < limit) {
+            hasPendingCircumflex = false;
+            destPtr = onEscapedChar(chars[i++], chars, destPtr);
+        }
+        while (i < limit) {
+            char ch = chars[i++];
+            if (ch != '^') {
+                chars[destPtr++] = ch;
+                continue;
+            }
+            if (i == limit) {
+                hasPendingCircumflex = true;
+                break;
+            }
+            destPtr = onEscapedChar(chars[i++], chars, destPtr);
+        }
+
+        advanceLinePart(destPtr - currCharsBufferOffset);
+    }
+
+    /**
+     * Handles a char that follows a circumflex.
+     * @return A new write position in the destination chars buffer.
+     */
+    private int onEscapedChar(char ch, char[] dest, int destPtr) {
+        if (ch >= '0' && ch <= '9') {
+            int lineLength = destPtr - currLineOffset;
+            addCurrLineToken(lineLength);
+            currTokenStart = lineLength;
+            currTokenColor = (byte)(ch - '0');
+            return destPtr;
+        }
+        // A double circumflex yields a single one, other illegal escape sequences are kept as-is
+        dest[destPtr++] = '^';
+        if (ch != '^') {
+            dest[destPtr++] = ch;
+        }
+        return destPtr;
+    }
+
+    /**
+     * Adds a token that ends at the given position (if it is not empty).
+     */
+    private void addCurrLineToken(int lineLength) {
+        final int length = lineLength - currTokenStart;
+        if (length == 0) {
+            return;
+        }
+
+        if (BuildConfig.DEBUG) {
+            if (currTokenColor < 0 || currTokenColor > 9) {
+                throw new AssertionError();
+            }
+            if (length >= (1 << 27)) {
+                throw new AssertionError();
+            }
+        }
+
+        final int packedColorAndLength = (currTokenColor << 28) | length;
+        if (currLineNumTokens == 0) {
+            // Tokens are adjacent, so the first non-empty token always starts at zero
+            currLineFirstToken = packedColorAndLength;
+        } else {
+            int bufferOffset = 1 + currLineNumTokens * 2;
+            if (currLineTokens == null) {
+                currLineTokens = new int[3 * 4];
+            } else if (bufferOffset + 2 > currLineTokens.length) {
+                int newSize = currLineTokens.length < 1024 ? currLineTokens.length * 2 : (3 * currLineTokens.length) / 2;
+                int newBuffer[] = new int[newSize];
+                arraycopy(currLineTokens, 0, newBuffer, 0, currLineTokens.length);
+                currLineTokens = newBuffer;
+            }
+            if (currLineNumTokens == 1) {
+                currLineTokens[1] = 0;
+                currLineTokens[2] = currLineFirstToken;
+            }
+            currLineTokens[bufferOffset + 0] = currTokenStart;
+            currLineTokens[bufferOffset + 1] = packedColorAndLength;
+        }
+        currLineNumTokens++;
+    }
+
+    private void resetCurrLineTokens() {
+        hasPendingCircumflex = false;
+        currTokenStart = 0;
+        currTokenColor = AbstractColoredTokensParser.COLOR_WHITE;
+        currLineNumTokens = 0;
+    }
+
+    /**
+     * Ensures there is a room for at least maxLength chars of the current line in the current chars buffer.
+     * @return The current chars buffer.
+     */
+    private char[] ensureLinePartRoom(int maxLength) {
+        if (isFrontLineCompleted) {
+            isFrontLineCompleted = false;
+            isCurrLineRaw = isTokensParsingLazy && store == null;
+            currLineOffset = currCharsBufferOffset;
+            currLineLength = 0;
         }
 
         // Check whether there is enough room in the current buffer for the newly added chars
-        if (currCharsBuffer.length - currCharsBufferOffset < length) {
-            int totalLength = currCharsBufferOffset + length;
+        if (currCharsBuffer.length - currCharsBufferOffset < maxLength) {
+            int totalLength = currLineLength + maxLength;
+            char[] newBuffer;
             if (totalLength < defaultBufferSize) {
-                currCharsBuffer = new char[defaultBufferSize];
+                newBuffer = new char[defaultBufferSize];
             } else {
-                currCharsBuffer = new char[totalLength + 16];
+                newBuffer = new char[totalLength + 16];
             }
-            currCharsBufferOffset = 0;
             // Copy existing data to the new buffer in this case
-            int currLineLength = offsetsAndLengths[freeLineIndex * 2 + 1];
             if (currLineLength > 0) {
-                int currLineOffset = offsetsAndLengths[freeLineIndex * 2 + 0];
-                arraycopy(arrayRefs[freeLineIndex], currLineOffset, currCharsBuffer, 0, currLineLength);
-                currCharsBufferOffset = currLineLength;
+                arraycopy(currCharsBuffer, currLineOffset, newBuffer, 0, currLineLength);
             }
-            arrayRefs[freeLineIndex] = currCharsBuffer;
-            offsetsAndLengths[freeLineIndex * 2 + 0] = 0;
+            currCharsBuffer = newBuffer;
+            currCharsBufferOffset = currLineLength;
+            currLineOffset = 0;
         }
 
-        // Avoid member access in a performance-sensitive loop
-        char[] dest = arrayRefs[freeLineIndex];
-        int destOffset = currCharsBufferOffset;
-        for (int i = 0; i < length; ++i) {
-            dest[destOffset + i] = string.charAt(offset + i);
-        }
+        return currCharsBuffer;
+    }
 
-        offsetsAndLengths[freeLineIndex * 2 + 1] += length;
+    /**
+     * Advances the current line length by length chars that have been written to the current chars buffer.
+     */
+    private void advanceLinePart(int length) {
+        currLineLength += length;
         currCharsBufferOffset += length;
 
         if (BuildConfig.DEBUG) {
-            int currLineOffset = offsetsAndLengths[freeLineIndex * 2 + 0];
-            int currLineLength = offsetsAndLengths[freeLineIndex * 2 + 1];
             // Test assertions here, otherwise we get exceptions later somewhere else
             boolean wereErrors = false;
-            if (currLineOffset < 0 || currLineOffset >= arrayRefs[freeLineIndex].length) {
+            // Note: an offset that is equal to the array length is legal for an empty line part
+            // that has been appended when the current chars buffer has been completely filled.
+            if (currLineOffset < 0 || currLineOffset > currCharsBuffer.length) {
+                wereErrors = true;
+            } else if (currLineLength < 0 || currLineLength > currCharsBuffer.length) {
                 wereErrors = true;
-            } else if (currLineLength < 0 || currLineLength > arrayRefs[freeLineIndex].length) {
+            } else if (currLineOffset + currLineLength != currCharsBufferOffset) {
                 wereErrors = true;
-            } else if (currLineOffset + currLineLength > arrayRefs[freeLineIndex].length) {
+            } else if (currCharsBufferOffset > currCharsBuffer.length) {
                 wereErrors = true;
             }
             if (wereErrors) {
@@ -402,166 +1103,329 @@ public final class RingLinesBuffer {
                 sb.append("Malformed bounds: ");
                 sb.append("curr line array offset = ").append(currLineOffset).append(", ");
                 sb.append("curr line length = ").append(currLineLength).append(", ");
-                sb.append("curr line array ref length = ").append(arrayRefs[freeLineIndex].length);
+                sb.append("curr chars buffer offset = ").append(currCharsBufferOffset).append(", ");
+                sb.append("curr line array ref length = ").append(currCharsBuffer.length);
                 throw new AssertionError(sb.toString());
             }
         }
     }
 
     protected boolean willRemoveBackLine() {
-        return nextIndex(freeLineIndex) == backIndex;
+        return numBackLinesToRemove() > 0;
+    }
+
+    /**
+     * @return A number of back lines that are going to be removed by the next
+     *         {@link RingLinesBuffer#completeLineBuilding()} call.
+     *         It might be greater than one only if lines are kept in a {@link RingLinesStore}.
+     */
+    protected int numBackLinesToRemove() {
+        if (store == null) {
+            return nextIndex(freeLineIndex) == backIndex ? 1 : 0;
+        }
+
+        // Compute lengths of the line as it is going to be completed
+        int charsLength = 0;
+        int numTokens = 0;
+        if (!isFrontLineCompleted) {
+            charsLength = currLineLength + (hasPendingCircumflex ? 1 : 0);
+            numTokens = currLineNumTokens + (charsLength - currTokenStart > 0 ? 1 : 0);
+            if (charsLength > store.charsCapacity) {
+                // The line is going to be truncated along with its tokens
+                int pendingTokenStart = charsLength - currTokenStart > 0 ? currTokenStart : -1;
+                charsLength = store.charsCapacity;
+                numTokens = numCurrLineTokensWithin(charsLength, pendingTokenStart);
+            }
+        }
+        final int tokensLength = numTokens > 1 ? 2 * numTokens : 0;
+
+        int index = backIndex;
+        int count = linesCount;
+        int numLines = 0;
+        while (!store.hasRoomFor(index, count, charsLength, tokensLength)) {
+            index = nextIndex(index);
+            count--;
+            numLines++;
+        }
+        if (nextIndex(freeLineIndex) == index) {
+            numLines++;
+        }
+        return numLines;
     }
 
     /**
      * Completes the current line building.
      * Advances the buffer front position.
-     * Occasionally removes the back line (if there is no room left).
+     * Occasionally removes back lines (if there is no room left).
      * @return True if a back line has been removed
      */
     protected boolean completeLineBuilding() {
-        boolean expectedReturnValue = false;
+        int expectedNumRemovedLines = 0;
         if (BuildConfig.DEBUG) {
-            expectedReturnValue = willRemoveBackLine();
+            expectedNumRemovedLines = numBackLinesToRemove();
         }
 
-        if (isFrontLineCompleted) {
-            if (BuildConfig.DEBUG) {
-                if (arrayRefs[freeLineIndex] != null) {
-                    throw new AssertionError("Array ref is already present for an empty line");
-                }
-                if (coloredTokens[freeLineIndex] != null) {
-                    throw new AssertionError("Colored tokens are already present for an empty line");
-                }
+        if (!isFrontLineCompleted) {
+            if (!isCurrLineRaw) {
+                finishCurrLine();
             }
-            arrayRefs[freeLineIndex] = CharArrayView.EMPTY.arrayRef;
         } else {
-            stripAndSaveTokens(freeLineIndex);
+            currLineOffset = currCharsBufferOffset;
+            currLineLength = 0;
+        }
+
+        int numRemovedLines = 0;
+        if (store != null) {
+            numRemovedLines += saveCurrLineInStore();
+        } else {
+            saveCurrLineInHeapArrays();
         }
+
         isFrontLineCompleted = true;
+        resetCurrLineTokens();
         linesCount++;
-        if (linesCount > 1) {
-            frontIndex = nextIndex(frontIndex);
+        nextSequenceNumber++;
+        frontIndex = freeLineIndex;
+        freeLineIndex = nextIndex(freeLineIndex);
+        if (searchIndex != null && !isLineUnparsed(frontIndex)) {
+            getCharArrayViewAt(frontIndex, searchCharsView);
+            searchIndex.addLine(nextSequenceNumber - 1, searchCharsView.arrayRef, searchCharsView.arrayOffset, searchCharsView.length);
+        }
+        if (freeLineIndex == backIndex) {
+            removeBackLine();
+            numRemovedLines++;
+        }
+
+        if (store != null) {
+            store.setRingState(backIndex, linesCount, nextSequenceNumber);
+            // The chars buffer is just a scratch buffer in this mode
+            currCharsBufferOffset = 0;
         }
 
+        // Line data has been written, let readers see the line
+        publishedNextSequenceNumber.set(nextSequenceNumber);
+
         if (BuildConfig.DEBUG) {
-            freeLineIndex = nextIndex(freeLineIndex);
-            if (expectedReturnValue != (freeLineIndex == backIndex)) {
-                throw new AssertionError("Return value does not match willRemoveBackLine() result");
+            if (frontIndex != (nextSequenceNumber - 1) % numSlots) {
+                throw new AssertionError("The front line slot does not match its sequence number");
+            }
+            if (expectedNumRemovedLines != numRemovedLines) {
+                throw new AssertionError("The number of removed lines does not match numBackLinesToRemove() result");
             }
-        } else {
-            freeLineIndex = nextIndex(freeLineIndex);
         }
 
-        if (freeLineIndex != backIndex) {
-            return false;
-        }
+        return numRemovedLines > 0;
+    }
 
-        arrayRefs[backIndex] = null;
-        coloredTokens[backIndex] = null;
+    private void removeBackLine() {
+        // Let readers know the line is removed before its data gets modified.
+        // An atomic read-modify-write acts as a full fence, so following writes can't be reordered with it.
+        publishedBackSequenceNumber.getAndSet(backSequenceNumber() + 1);
+        if (isLineUnparsed(backIndex)) {
+            // The line has never been parsed (and indexed)
+            numUnparsedLines--;
+        } else if (searchIndex != null) {
+            getCharArrayViewAt(backIndex, searchCharsView);
+            searchIndex.removeLine(backSequenceNumber(), searchCharsView.arrayRef, searchCharsView.arrayOffset, searchCharsView.length);
+        }
+        if (store == null) {
+            arrayRefs[backIndex] = null;
+            coloredTokens[backIndex] = null;
+        }
         backIndex = nextIndex(backIndex);
         linesCount--;
-        return true;
     }
 
-    static class ColoredTokensParser extends AbstractColoredTokensParser {
-        int bufferOffset;
-        int lineIndex;
-        int initialLineLength;
-        int numTokens;
-        int[] buffer;
-        byte singleTokenColor;
+    /**
+     * Appends a pending circumflex (if any) and adds the last token.
+     */
+    private void finishCurrLine() {
+        if (hasPendingCircumflex) {
+            // Can't do a lookahead, keep the circumflex as-is
+            ensureLinePartRoom(1)[currCharsBufferOffset] = '^';
+            advanceLinePart(1);
+            hasPendingCircumflex = false;
+        }
+        addCurrLineToken(currLineLength);
+    }
+
+    private byte currLineSingleTokenColor() {
+        if (currLineNumTokens == 1) {
+            return (byte)(currLineFirstToken >>> 28);
+        }
+        return AbstractColoredTokensParser.COLOR_WHITE;
+    }
 
-        void prepare(int lineIndex, int initialLineLength) {
-            this.lineIndex = lineIndex;
-            this.initialLineLength = initialLineLength;
-            this.numTokens = 0;
-            this.bufferOffset = 1;
-            this.buffer = null;
+    private void saveCurrLineInHeapArrays() {
+        if (BuildConfig.DEBUG) {
+            if (arrayRefs[freeLineIndex] != null) {
+                throw new AssertionError("Array ref is already present for a free line");
+            }
+            if (coloredTokens[freeLineIndex] != null) {
+                throw new AssertionError("Colored tokens are already present for a free line");
+            }
         }
 
-        @Override
-        protected void addWrappedToken(CharSequence underlying, int startIndex, int length, byte colorNum) {
-            throw new UnsupportedOperationException();
+        if (currLineLength > 0) {
+            arrayRefs[freeLineIndex] = currCharsBuffer;
+            offsetsAndLengths[freeLineIndex * 2 + 0] = currLineOffset;
+        } else {
+            arrayRefs[freeLineIndex] = CharArrayView.EMPTY.arrayRef;
+            offsetsAndLengths[freeLineIndex * 2 + 0] = 0;
         }
+        offsetsAndLengths[freeLineIndex * 2 + 1] = currLineLength;
 
-        @Override
-        protected void addWrappedToken(String underlying, int startIndex, int length, byte colorNum) {
-            throw new UnsupportedOperationException();
+        if (isCurrLineRaw && !isFrontLineCompleted && currLineLength > 0) {
+            coloredTokens[freeLineIndex] = null;
+            tokenColors[freeLineIndex] = UNPARSED_LINE;
+            numUnparsedLines++;
+        } else if (currLineNumTokens > 1) {
+            // Each token consumes 2 int cells
+            currLineTokens[0] = currLineNumTokens * 2;
+            // The array is owned by the line since now
+            coloredTokens[freeLineIndex] = currLineTokens;
+            // Overwrite a color of a line that has been kept in this slot (it might be the unparsed line marker)
+            tokenColors[freeLineIndex] = AbstractColoredTokensParser.COLOR_WHITE;
+            currLineTokens = null;
+        } else {
+            // The line is either empty or consists of a single token that matches the entire line
+            coloredTokens[freeLineIndex] = null;
+            tokenColors[freeLineIndex] = currLineSingleTokenColor();
         }
+    }
 
-        @Override
-        protected void addWrappedToken(CharArrayView underlying, int startIndex, int length, byte colorNum) {
-            if (numTokens == 0) {
-                if (length == initialLineLength - 2) {
-                    singleTokenColor = colorNum;
-                    return;
+    /**
+     * Strips escape sequences of a line that has been stored raw in-place and saves its tokens.
+     * Note that stripped chars never take more room than raw ones.
+     */
+    private void parseLineAt(int index) {
+        final char[] chars = arrayRefs[index];
+        final int offset = offsetsAndLengths[index * 2 + 0];
+        final int limit = offset + offsetsAndLengths[index * 2 + 1];
+
+        int[] tokens = lazyTokensBuffer;
+        int numTokens = 0;
+        int tokenStart = offset;
+        byte color = AbstractColoredTokensParser.COLOR_WHITE;
+        int destPtr = offset;
+        int i = offset;
+        char ch = 0;
+        for (;;) {
+            if (i < limit) {
+                ch = chars[i++];
+                if (ch != '^') {
+                    chars[destPtr++] = ch;
+                    continue;
                 }
-                if (length == initialLineLength - 4) {
-                    // Check for a terminating escape sequence
-                    char[] chars = underlying.getArray();
-                    int charsOffset = underlying.getArrayOffset();
-                    int charsLength = underlying.getLength();
-                    if (chars[charsOffset + charsLength - 2] == '^') {
-                        int nextCh = chars[charsOffset + charsLength - 1];
-                        if (nextCh >= '0' && nextCh <= '9') {
-                            singleTokenColor = colorNum;
-                            return;
-                        }
+                // Keep a trailing circumflex as-is
+                if (i == limit) {
+                    chars[destPtr++] = '^';
+                    continue;
+                }
+                ch = chars[i++];
+                if (ch < '0' || ch > '9') {
+                    // A double circumflex yields a single one, other illegal escape sequences are kept as-is
+                    chars[destPtr++] = '^';
+                    if (ch != '^') {
+                        chars[destPtr++] = ch;
                     }
+                    continue;
                 }
-                buffer = new int[3 * 4];
-            } else if (bufferOffset == buffer.length) {
-                int newSize = buffer.length < 1024 ? buffer.length * 2 : (3 * buffer.length) / 2;
-                int newBuffer[] = new int[newSize];
-                java.lang.System.arraycopy(buffer, 0, newBuffer, 0, buffer.length);
-                buffer = newBuffer;
             }
 
-            if (BuildConfig.DEBUG) {
-                if (colorNum < 0 || colorNum > 9) {
-                    throw new AssertionError();
-                }
-                if (length >= (1 << 27)) {
-                    throw new AssertionError();
+            // Add the current token (if it is not empty) on a color change or at the line end
+            if (destPtr > tokenStart) {
+                if (2 * numTokens + 3 > tokens.length) {
+                    tokens = lazyTokensBuffer = Arrays.copyOf(tokens, 2 * tokens.length);
                 }
+                tokens[1 + 2 * numTokens] = tokenStart - offset;
+                tokens[2 + 2 * numTokens] = (color << 28) | (destPtr - tokenStart);
+                numTokens++;
             }
-
-            buffer[bufferOffset++] = startIndex;
-            buffer[bufferOffset++] = (colorNum << 28) | length;
-            numTokens++;
+            if (i >= limit) {
+                break;
+            }
+            tokenStart = destPtr;
+            color = (byte)(ch - '0');
         }
-    }
 
-    private ColoredTokensParser parser = new ColoredTokensParser();
-
-    private void stripAndSaveTokens(int freeLineIndex) {
-        int lineOffset = offsetsAndLengths[freeLineIndex * 2 + 0];
-        int lineLength = offsetsAndLengths[freeLineIndex * 2 + 1];
-
-        coloredTokens[freeLineIndex] = null;
-        tokenColors[freeLineIndex] = AbstractColoredTokensParser.COLOR_WHITE;
+        offsetsAndLengths[index * 2 + 1] = destPtr - offset;
+        if (numTokens > 1) {
+            int[] lineTokens = Arrays.copyOf(tokens, 1 + 2 * numTokens);
+            lineTokens[0] = 2 * numTokens;
+            coloredTokens[index] = lineTokens;
+            tokenColors[index] = AbstractColoredTokensParser.COLOR_WHITE;
+        } else {
+            coloredTokens[index] = null;
+            tokenColors[index] = numTokens == 1 ? (byte)(tokens[2] >>> 28) : AbstractColoredTokensParser.COLOR_WHITE;
+        }
+        numUnparsedLines--;
 
-        parser.prepare(freeLineIndex, lineLength);
-        tmpCharArrayView.arrayRef = arrayRefs[freeLineIndex];
-        tmpCharArrayView.arrayOffset = lineOffset;
-        tmpCharArrayView.length = lineLength;
+        if (searchIndex != null) {
+            // Line slots match sequence numbers modulo the number of slots
+            long sequenceNumber = backSequenceNumber() + (index - backIndex + numSlots) % numSlots;
+            searchIndex.addLine(sequenceNumber, chars, offset, destPtr - offset);
+        }
+    }
 
-        // Note: it is possible to strip tokens during appendLinePart() calls while copying the part chars.
-        // This should be a bit more efficient and do not leave unused space after stripping,
-        // but we are not going to sacrifice maintainability.
+    /**
+     * @return A number of back lines that have been removed to make a room for the line.
+     */
+    private int saveCurrLineInStore() {
+        int charsLength = currLineLength;
+        if (charsLength > store.charsCapacity) {
+            charsLength = store.charsCapacity;
+            clipCurrLineTokens(charsLength);
+        }
+        final int tokensLength = currLineNumTokens > 1 ? 2 * currLineNumTokens : 0;
+        int numRemovedLines = 0;
+        while (!store.hasRoomFor(backIndex, linesCount, charsLength, tokensLength)) {
+            removeBackLine();
+            numRemovedLines++;
+        }
 
-        parser.parseRemovingColors(tmpCharArrayView);
-        // Patch the length
-        offsetsAndLengths[freeLineIndex * 2 + 1] = tmpCharArrayView.getLength();
+        if (tokensLength > 0) {
+            currLineTokens[0] = tokensLength;
+        }
+        // Note: the tokens array is reused for next lines in this mode
+        store.putLine(freeLineIndex, backIndex, linesCount, currCharsBuffer, currLineOffset, charsLength,
+                      currLineTokens, tokensLength, currLineSingleTokenColor());
+        return numRemovedLines;
+    }
 
-        // Save tokens
-        int[] tokens = coloredTokens[freeLineIndex] = parser.buffer;
-        parser.buffer = null;
-        if (tokens != null) {
-            // Each token consumes 2 int cells
-            tokens[0] = parser.numTokens * 2;
+    /**
+     * @param pendingTokenStart An offset of a trailing token that has not been added yet or a negative value.
+     * @return A number of tokens of the current line that start within the first charsLength chars.
+     */
+    private int numCurrLineTokensWithin(int charsLength, int pendingTokenStart) {
+        int numTokens = 0;
+        if (currLineNumTokens == 1) {
+            // The only token starts at the line start
+            numTokens = 1;
         } else {
-            tokenColors[freeLineIndex] = parser.singleTokenColor;
+            while (numTokens < currLineNumTokens && currLineTokens[1 + 2 * numTokens] < charsLength) {
+                numTokens++;
+            }
+        }
+        if (pendingTokenStart >= 0 && pendingTokenStart < charsLength) {
+            numTokens++;
+        }
+        return numTokens;
+    }
+
+    /**
+     * Drops tokens of a completed current line that start beyond the truncated line end and shortens the last one.
+     */
+    private void clipCurrLineTokens(int charsLength) {
+        final int numTokens = numCurrLineTokensWithin(charsLength, -1);
+        if (currLineNumTokens > 1) {
+            final int lastOffset = currLineTokens[2 * numTokens - 1];
+            final int lastPacked = currLineTokens[2 * numTokens];
+            final int lastLength = Math.min(lastPacked & ~0xF0000000, charsLength - lastOffset);
+            currLineTokens[2 * numTokens] = (lastPacked & 0xF0000000) | lastLength;
+            // Keep the first token consistent if the line becomes a single-token one
+            currLineFirstToken = currLineTokens[2];
         }
+        currLineNumTokens = numTokens;
     }
-}
\ No newline at end of file
+}
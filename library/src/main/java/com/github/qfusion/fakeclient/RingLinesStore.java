@@ -0,0 +1,466 @@
+package com.github.qfusion.fakeclient;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A storage of completed {@link RingLinesBuffer} lines that keeps line chars, packed colored tokens
+ * and lines metadata in fixed-size slabs instead of per-line Java heap arrays.
+ * <ul>
+ * <li>Chars and tokens are stored in circular regions of a fixed size.
+ * Back lines get evicted if there is no room for a new line in these regions
+ * (this might happen before the lines buffer capacity is reached if lines are long).
+ * An eviction just advances a tail of these regions.</li>
+ * <li>A heap store keeps chars and tokens in a single char array and a single int array.
+ * Views refer to these arrays directly, so they become invalid as soon as a line gets evicted.</li>
+ * <li>Lines of a direct or a memory-mapped store are copied to views on retrieval
+ * since the storage is not a Java array.</li>
+ * <li>A memory-mapped store keeps lines between application restarts
+ * if it is opened again with the same capacities.</li>
+ * </ul>
+ * A store must not be shared by multiple {@link RingLinesBuffer} instances.
+ */
+public final class RingLinesStore {
+    private static final int MAGIC = 0x514C4E53;
+    private static final int VERSION = 1;
+
+    // Header fields (int offsets)
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 1;
+    private static final int NUM_SLOTS_OFFSET = 2;
+    private static final int CHARS_CAPACITY_OFFSET = 3;
+    private static final int TOKENS_CAPACITY_OFFSET = 4;
+    private static final int BACK_INDEX_OFFSET = 5;
+    private static final int LINES_COUNT_OFFSET = 6;
+    private static final int CHARS_HEAD_OFFSET = 7;
+    private static final int TOKENS_HEAD_OFFSET = 8;
+    private static final int NEXT_SEQUENCE_NUMBER_LO_OFFSET = 9;
+    private static final int NEXT_SEQUENCE_NUMBER_HI_OFFSET = 10;
+    private static final int HEADER_SIZE = 16;
+
+    // Line slot fields (int offsets)
+    private static final int SLOT_CHARS_OFFSET = 0;
+    private static final int SLOT_CHARS_LENGTH = 1;
+    private static final int SLOT_TOKENS_OFFSET = 2;
+    /**
+     * A number of token ints shifted left by 4 bits combined with a color of a single token
+     * (that is used if there are no token ints).
+     */
+    private static final int SLOT_TOKENS_INFO = 3;
+    private static final int SLOT_SIZE = 4;
+
+    final int numSlots;
+    final int charsCapacity;
+    final int tokensCapacity;
+
+    private final IntBuffer header;
+    private final IntBuffer slots;
+    private final CharBuffer chars;
+    private final IntBuffer tokens;
+    private final MappedByteBuffer mappedBuffer;
+    /**
+     * Backing arrays of chars and tokens regions of a heap store (null otherwise).
+     */
+    private final char[] charsArray;
+    private final int[] tokensArray;
+
+    /**
+     * Creates a store that keeps all lines in a single char array and a single int array.
+     * Nothing is allocated for a line once the store is created.
+     * @param capacity A lines capacity of a {@link RingLinesBuffer} that is going to use the store.
+     * @param charsCapacity A capacity of the chars region. A longer line gets truncated
+     *                      (its tokens that start beyond the stored chars are dropped, the last one is shortened).
+     * @param tokensCapacity A capacity of the tokens region in ints (each token takes 2 ints).
+     *                       Lines consisting of a single token do not use this region.
+     */
+    public static RingLinesStore allocateHeap(int capacity, int charsCapacity, int tokensCapacity) {
+        checkCapacities(capacity, charsCapacity, tokensCapacity);
+        char[] charsArray = new char[charsCapacity];
+        int[] tokensArray = new int[tokensCapacity];
+        IntBuffer header = IntBuffer.wrap(new int[HEADER_SIZE]);
+        IntBuffer slots = IntBuffer.wrap(new int[SLOT_SIZE * (capacity + 1)]);
+        return new RingLinesStore(header, slots, CharBuffer.wrap(charsArray), IntBuffer.wrap(tokensArray),
+                                  charsArray, tokensArray, null, capacity, charsCapacity, tokensCapacity);
+    }
+
+    /**
+     * Creates a store that keeps all lines in a single direct buffer.
+     * See {@link RingLinesStore#allocateHeap(int, int, int)} for parameters description.
+     */
+    public static RingLinesStore allocateDirect(int capacity, int charsCapacity, int tokensCapacity) {
+        int numBytes = computeNumBytes(capacity, charsCapacity, tokensCapacity);
+        return newBufferStore(ByteBuffer.allocateDirect(numBytes), null, capacity, charsCapacity, tokensCapacity);
+    }
+
+    /**
+     * Opens a store backed by a memory-mapped file. The file is created if it does not exist.
+     * Lines are restored if the file contains a store with the same capacities, otherwise it gets reset.
+     * See {@link RingLinesStore#allocateHeap(int, int, int)} for parameters description.
+     */
+    public static RingLinesStore map(File file, int capacity, int charsCapacity, int tokensCapacity) throws IOException {
+        int numBytes = computeNumBytes(capacity, charsCapacity, tokensCapacity);
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(numBytes);
+            // A mapping remains valid after the channel is closed
+            MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, numBytes);
+            return newBufferStore(buffer, buffer, capacity, charsCapacity, tokensCapacity);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private static void checkCapacities(int capacity, int charsCapacity, int tokensCapacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("The capacity = " + capacity + " is not positive");
+        }
+        if (charsCapacity < 16) {
+            throw new IllegalArgumentException("The charsCapacity = " + charsCapacity + " is too small");
+        }
+        if (tokensCapacity < 0) {
+            throw new IllegalArgumentException("The tokensCapacity = " + tokensCapacity + " is negative");
+        }
+    }
+
+    private static int computeNumBytes(int capacity, int charsCapacity, int tokensCapacity) {
+        checkCapacities(capacity, charsCapacity, tokensCapacity);
+        long numBytes = 4L * HEADER_SIZE + 4L * SLOT_SIZE * (capacity + 1L);
+        numBytes += alignedCharsBytes(charsCapacity) + 4L * tokensCapacity;
+        if (numBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("The store is too large (" + numBytes + " bytes)");
+        }
+        return (int)numBytes;
+    }
+
+    private static long alignedCharsBytes(int charsCapacity) {
+        // Keep the tokens region aligned
+        return (2L * charsCapacity + 3) & ~3L;
+    }
+
+    private static RingLinesStore newBufferStore(ByteBuffer buffer, MappedByteBuffer mappedBuffer,
+                                                 int capacity, int charsCapacity, int tokensCapacity) {
+        final int numSlots = capacity + 1;
+        int offset = 0;
+        IntBuffer header = region(buffer, offset, 4 * HEADER_SIZE).asIntBuffer();
+        offset += 4 * HEADER_SIZE;
+        IntBuffer slots = region(buffer, offset, 4 * SLOT_SIZE * numSlots).asIntBuffer();
+        offset += 4 * SLOT_SIZE * numSlots;
+        CharBuffer chars = region(buffer, offset, 2 * charsCapacity).asCharBuffer();
+        offset += (int)alignedCharsBytes(charsCapacity);
+        IntBuffer tokens = region(buffer, offset, 4 * tokensCapacity).asIntBuffer();
+        return new RingLinesStore(header, slots, chars, tokens, null, null,
+                                  mappedBuffer, capacity, charsCapacity, tokensCapacity);
+    }
+
+    private RingLinesStore(IntBuffer header, IntBuffer slots, CharBuffer chars, IntBuffer tokens,
+                           char[] charsArray, int[] tokensArray, MappedByteBuffer mappedBuffer,
+                           int capacity, int charsCapacity, int tokensCapacity) {
+        this.numSlots = capacity + 1;
+        this.charsCapacity = charsCapacity;
+        this.tokensCapacity = tokensCapacity;
+        this.header = header;
+        this.slots = slots;
+        this.chars = chars;
+        this.tokens = tokens;
+        this.charsArray = charsArray;
+        this.tokensArray = tokensArray;
+        this.mappedBuffer = mappedBuffer;
+
+        if (!hasValidHeader()) {
+            header.put(MAGIC_OFFSET, MAGIC);
+            header.put(VERSION_OFFSET, VERSION);
+            header.put(NUM_SLOTS_OFFSET, numSlots);
+            header.put(CHARS_CAPACITY_OFFSET, charsCapacity);
+            header.put(TOKENS_CAPACITY_OFFSET, tokensCapacity);
+            setRingState(0, 0, 0);
+        }
+    }
+
+    private static ByteBuffer region(ByteBuffer buffer, int offset, int length) {
+        buffer.limit(offset + length);
+        buffer.position(offset);
+        // Note: a slice has the default byte order regardless of the sliced buffer order
+        ByteBuffer result = buffer.slice().order(ByteOrder.nativeOrder());
+        buffer.clear();
+        return result;
+    }
+
+    private boolean hasValidHeader() {
+        if (header.get(MAGIC_OFFSET) != MAGIC || header.get(VERSION_OFFSET) != VERSION) {
+            return false;
+        }
+        if (header.get(NUM_SLOTS_OFFSET) != numSlots) {
+            return false;
+        }
+        if (header.get(CHARS_CAPACITY_OFFSET) != charsCapacity || header.get(TOKENS_CAPACITY_OFFSET) != tokensCapacity) {
+            return false;
+        }
+        int backIndex = header.get(BACK_INDEX_OFFSET);
+        int linesCount = header.get(LINES_COUNT_OFFSET);
+        int charsHead = header.get(CHARS_HEAD_OFFSET);
+        int tokensHead = header.get(TOKENS_HEAD_OFFSET);
+        long nextSequenceNumber = nextSequenceNumber();
+        if (nextSequenceNumber < linesCount || (nextSequenceNumber - linesCount) % numSlots != backIndex) {
+            return false;
+        }
+        return backIndex >= 0 && backIndex < numSlots && linesCount >= 0 && linesCount < numSlots &&
+            charsHead >= 0 && charsHead <= charsCapacity && tokensHead >= 0 && tokensHead <= tokensCapacity;
+    }
+
+    public int capacity() {
+        return numSlots - 1;
+    }
+
+    public boolean isPersistent() {
+        return mappedBuffer != null;
+    }
+
+    /**
+     * Forces writing of a memory-mapped store contents to the storage device. Does nothing for a direct store.
+     */
+    public void force() {
+        if (mappedBuffer != null) {
+            mappedBuffer.force();
+        }
+    }
+
+    final int backIndex() {
+        return header.get(BACK_INDEX_OFFSET);
+    }
+
+    final int linesCount() {
+        return header.get(LINES_COUNT_OFFSET);
+    }
+
+    final long nextSequenceNumber() {
+        long hi = header.get(NEXT_SEQUENCE_NUMBER_HI_OFFSET);
+        long lo = header.get(NEXT_SEQUENCE_NUMBER_LO_OFFSET) & 0xFFFFFFFFL;
+        return (hi << 32) | lo;
+    }
+
+    final void setRingState(int backIndex, int linesCount, long nextSequenceNumber) {
+        header.put(BACK_INDEX_OFFSET, backIndex);
+        header.put(LINES_COUNT_OFFSET, linesCount);
+        header.put(NEXT_SEQUENCE_NUMBER_LO_OFFSET, (int)nextSequenceNumber);
+        header.put(NEXT_SEQUENCE_NUMBER_HI_OFFSET, (int)(nextSequenceNumber >>> 32));
+        if (linesCount == 0) {
+            header.put(CHARS_HEAD_OFFSET, 0);
+            header.put(TOKENS_HEAD_OFFSET, 0);
+        }
+    }
+
+    /**
+     * @return A number of chars of a line that are actually stored.
+     */
+    final int storedCharsLength(int charsLength) {
+        return Math.min(charsLength, charsCapacity);
+    }
+
+    /**
+     * @return A number of token ints of a line that are actually stored
+     *         (tokens of a line that does not fit the region are dropped).
+     */
+    final int storedTokensLength(int tokensLength) {
+        return tokensLength <= tokensCapacity ? tokensLength : 0;
+    }
+
+    /**
+     * Checks whether a line can be added without eviction of lines
+     * if the ring state differs from the current one by evicted back lines.
+     */
+    final boolean hasRoomFor(int backIndex, int linesCount, int charsLength, int tokensLength) {
+        final int backSlot = backIndex * SLOT_SIZE;
+        final int charsTail = slots.get(backSlot + SLOT_CHARS_OFFSET);
+        final int tokensTail = slots.get(backSlot + SLOT_TOKENS_OFFSET);
+        final boolean isEmpty = linesCount == 0;
+        int charsHead = header.get(CHARS_HEAD_OFFSET);
+        int tokensHead = header.get(TOKENS_HEAD_OFFSET);
+        if (allocate(charsHead, charsTail, isEmpty, charsCapacity, storedCharsLength(charsLength)) < 0) {
+            return false;
+        }
+        return allocate(tokensHead, tokensTail, isEmpty, tokensCapacity, storedTokensLength(tokensLength)) >= 0;
+    }
+
+    /**
+     * Finds a contiguous range for new data in a circular region.
+     * Data of lines is located circularly between the tail (an offset of the back line data) and the head.
+     * The head never reaches the tail from below, so their equality means there is no data.
+     * @return An offset of the range or a negative value if there is no room for the data.
+     */
+    private static int allocate(int head, int tail, boolean isEmpty, int capacity, int length) {
+        if (length == 0) {
+            return head;
+        }
+        if (isEmpty) {
+            return length <= capacity ? 0 : -1;
+        }
+        if (head >= tail) {
+            if (capacity - head >= length) {
+                return head;
+            }
+            return tail > length ? 0 : -1;
+        }
+        return tail - head > length ? head : -1;
+    }
+
+    /**
+     * Stores a line. A caller must ensure there is a room for it by {@link RingLinesStore#hasRoomFor(int, int, int, int)}
+     * and must update the ring state after that.
+     * @param lineTokens A tokens array in {@link RingLinesBuffer} format (a number of token ints is in the first cell).
+     *                   Might be null if there are no token ints.
+     */
+    final void putLine(int index, int backIndex, int linesCount, char[] lineChars, int charsOffset, int charsLength,
+                       int[] lineTokens, int tokensLength, byte singleTokenColor) {
+        final int backSlot = backIndex * SLOT_SIZE;
+        final boolean isEmpty = linesCount == 0;
+
+        charsLength = storedCharsLength(charsLength);
+        int charsHead = isEmpty ? 0 : header.get(CHARS_HEAD_OFFSET);
+        int charsAt = allocate(charsHead, slots.get(backSlot + SLOT_CHARS_OFFSET), isEmpty, charsCapacity, charsLength);
+
+        int storedTokensLength = storedTokensLength(tokensLength);
+        if (storedTokensLength != tokensLength && lineTokens != null) {
+            // Keep the color of the first token at least
+            singleTokenColor = (byte)(lineTokens[2] >>> 28);
+        }
+        int tokensHead = isEmpty ? 0 : header.get(TOKENS_HEAD_OFFSET);
+        int tokensAt = allocate(tokensHead, slots.get(backSlot + SLOT_TOKENS_OFFSET), isEmpty, tokensCapacity, storedTokensLength);
+
+        if (BuildConfig.DEBUG) {
+            if (charsAt < 0 || tokensAt < 0) {
+                throw new AssertionError("There is no room for the line, check hasRoomFor() first");
+            }
+        }
+
+        chars.position(charsAt);
+        chars.put(lineChars, charsOffset, charsLength);
+        if (storedTokensLength > 0) {
+            tokens.position(tokensAt);
+            tokens.put(lineTokens, 1, storedTokensLength);
+        }
+
+        final int slot = index * SLOT_SIZE;
+        slots.put(slot + SLOT_CHARS_OFFSET, charsAt);
+        slots.put(slot + SLOT_CHARS_LENGTH, charsLength);
+        slots.put(slot + SLOT_TOKENS_OFFSET, tokensAt);
+        slots.put(slot + SLOT_TOKENS_INFO, (storedTokensLength << 4) | singleTokenColor);
+
+        header.put(CHARS_HEAD_OFFSET, charsAt + charsLength);
+        header.put(TOKENS_HEAD_OFFSET, tokensAt + storedTokensLength);
+    }
+
+    final void readChars(int index, CharArrayView reuse) {
+        final int slot = index * SLOT_SIZE;
+        final int length = slots.get(slot + SLOT_CHARS_LENGTH);
+        if (charsArray != null) {
+            reuse.arrayRef = charsArray;
+            reuse.arrayOffset = slots.get(slot + SLOT_CHARS_OFFSET);
+            reuse.length = length;
+            return;
+        }
+        char[] buffer = reuse.ownBuffer;
+        if (buffer == null || buffer.length < length) {
+            buffer = reuse.ownBuffer = new char[Math.max(length, 64)];
+        }
+        chars.position(slots.get(slot + SLOT_CHARS_OFFSET));
+        chars.get(buffer, 0, length);
+        reuse.arrayRef = buffer;
+        reuse.arrayOffset = 0;
+        reuse.length = length;
+    }
+
+    /**
+     * Creates a view of the chars region with an independent position for a concurrent reader.
+     */
+    final CharBuffer newCharsReaderView() {
+        return chars.duplicate();
+    }
+
+    /**
+     * Creates a view of the tokens region with an independent position for a concurrent reader.
+     */
+    final IntBuffer newTokensReaderView() {
+        return tokens.duplicate();
+    }
+
+    /**
+     * Copies a line to buffers owned by views using region views of a reader thread.
+     * The line might be overwritten concurrently, so a caller must validate the result after reading.
+     * @return False if the line metadata is malformed (the line is being overwritten).
+     */
+    final boolean readLineConcurrently(int index, CharBuffer charsReaderView, IntBuffer tokensReaderView,
+                                       CharArrayView charsToReuse, BufferLineTokensView tokensToReuse) {
+        final int slot = index * SLOT_SIZE;
+        final int charsOffset = slots.get(slot + SLOT_CHARS_OFFSET);
+        final int charsLength = slots.get(slot + SLOT_CHARS_LENGTH);
+        final int tokensOffset = slots.get(slot + SLOT_TOKENS_OFFSET);
+        final int tokensInfo = slots.get(slot + SLOT_TOKENS_INFO);
+        final int tokensLength = tokensInfo >>> 4;
+        if (charsOffset < 0 || charsLength < 0 || charsLength > charsCapacity - charsOffset) {
+            return false;
+        }
+        if (tokensOffset < 0 || tokensLength > tokensCapacity - tokensOffset) {
+            return false;
+        }
+
+        char[] chars = charsToReuse.ownBuffer;
+        if (chars == null || chars.length < charsLength) {
+            chars = charsToReuse.ownBuffer = new char[Math.max(charsLength, 64)];
+        }
+        charsReaderView.position(charsOffset);
+        charsReaderView.get(chars, 0, charsLength);
+        charsToReuse.arrayRef = chars;
+        charsToReuse.arrayOffset = 0;
+        charsToReuse.length = charsLength;
+
+        if (tokensLength == 0) {
+            RingLinesBuffer.setSingleTokenView(tokensToReuse, charsLength, (byte)(tokensInfo & 0xF));
+            return true;
+        }
+
+        int[] tokens = tokensToReuse.ownBuffer;
+        if (tokens == null || tokens.length < tokensLength) {
+            tokens = tokensToReuse.ownBuffer = new int[Math.max(tokensLength, 16)];
+        }
+        tokensReaderView.position(tokensOffset);
+        tokensReaderView.get(tokens, 0, tokensLength);
+        tokensToReuse.arrayRef = tokens;
+        tokensToReuse.arrayOffset = 0;
+        tokensToReuse.length = tokensLength;
+        return true;
+    }
+
+    final void readTokens(int index, BufferLineTokensView reuse) {
+        final int slot = index * SLOT_SIZE;
+        final int tokensInfo = slots.get(slot + SLOT_TOKENS_INFO);
+        final int length = tokensInfo >>> 4;
+        if (length == 0) {
+            RingLinesBuffer.setSingleTokenView(reuse, slots.get(slot + SLOT_CHARS_LENGTH), (byte)(tokensInfo & 0xF));
+            return;
+        }
+
+        if (tokensArray != null) {
+            reuse.arrayRef = tokensArray;
+            reuse.arrayOffset = slots.get(slot + SLOT_TOKENS_OFFSET);
+            reuse.length = length;
+            return;
+        }
+
+        int[] buffer = reuse.ownBuffer;
+        if (buffer == null || buffer.length < length) {
+            buffer = reuse.ownBuffer = new int[Math.max(length, 16)];
+        }
+        tokens.position(slots.get(slot + SLOT_TOKENS_OFFSET));
+        tokens.get(buffer, 0, length);
+        reuse.arrayRef = buffer;
+        reuse.arrayOffset = 0;
+        reuse.length = length;
+    }
+}
@@ -633,21 +633,20 @@ public class ScoreboardData {
                 resizeBuffers(newNumClients);
                 return;
             }
-            if (oldNumClients > 8 && oldNumClients / newNumClients > 2) {
+            if (oldNumClients > 8 && (newNumClients == 0 || oldNumClients / newNumClients > 2)) {
                 resizeBuffers(newNumClients);
                 return;
             }
         }
     }
 
-    final void wrapBuffers(char[] newCharsBuffer, byte[] playersInfoUpdateMask) {
+    /**
+     * Sets new buffers and updates colored tokens.
+     * @return The previous chars buffer (if any). This scoreboard data does not refer to it anymore.
+     */
+    final char[] wrapBuffers(char[] newCharsBuffer, byte[] playersInfoUpdateMask) {
         // Since the scoreboard data is aware of colored tokens, we can't just set buffers and return
-        int oldNumClients = 0;
-        boolean oldHasPlayerInfo = false;
-        if (this.buffer != null) {
-            oldNumClients = this.getNumClientsValue();
-            oldHasPlayerInfo = this.hasPlayerInfo();
-        }
+        char[] oldBuffer = this.buffer;
 
         this.buffer = newCharsBuffer;
         this.playersInfoUpdateMask = playersInfoUpdateMask;
@@ -655,27 +654,10 @@ public class ScoreboardData {
         int numClients = getNumClientsValue();
         boolean hasPlayerInfo = hasPlayerInfo();
 
-        // Check token buffers capacity
-        if (this.coloredTokens != null) {
-            if (oldHasPlayerInfo) {
-                if (hasPlayerInfo) {
-                    if (oldNumClients < numClients) {
-                        coloredTokens = newColoredTokensBuffer(numClients);
-                    } else if (oldNumClients > 8 && oldNumClients > numClients * 2) {
-                        // Shrink buffers in this case
-                        coloredTokens = newColoredTokensBuffer(numClients);
-                    }
-                } else {
-                    if (coloredTokens.length > TOKENS_PLAYER_DATA_OFFSET) {
-                        // Shrink buffers in this case
-                        coloredTokens = newColoredTokensBuffer(0);
-                    }
-                }
-            } else if (hasPlayerInfo) {
-                coloredTokens = newColoredTokensBuffer(numClients);
-            }
-        } else {
-            this.coloredTokens = newColoredTokensBuffer(numClients);
+        // Check token buffers capacity. Reuse the existing buffer if it is not too small or too large.
+        int tokensNumClients = hasPlayerInfo ? numClients : 0;
+        if (this.coloredTokens == null || !isSuitableCapacity(coloredTokensCapacity(), tokensNumClients)) {
+            this.coloredTokens = newColoredTokensBuffer(tokensNumClients);
         }
 
         // Force tokens updates
@@ -683,6 +665,33 @@ public class ScoreboardData {
         if (hasPlayerInfo && numClients > 0) {
             updatePlayerNamesTokens();
         }
+
+        return oldBuffer;
+    }
+
+    /**
+     * Follows the {@link ScoreboardData#resizeIfNeeded(int, int, boolean)} policy:
+     * a buffer is shrunk if it can hold more than 8 players and is more than twice as large as needed.
+     * @param capacity A number of players a buffer can hold.
+     * @param numClients An actual number of players.
+     */
+    private static boolean isSuitableCapacity(int capacity, int numClients) {
+        if (capacity < numClients) {
+            return false;
+        }
+        return capacity <= 8 || capacity <= numClients * 2;
+    }
+
+    /**
+     * Checks whether a spare chars buffer can be reused for a scoreboard data of the given players count.
+     */
+    static boolean canReuseMainBuffer(char[] buffer, int numClients) {
+        int capacity = (buffer.length - (PLAYERS_DATA_OFFSET - SCOREBOARD_DATA_OFFSET)) / PLAYER_DATA_STRIDE;
+        return capacity >= 0 && isSuitableCapacity(capacity, numClients);
+    }
+
+    private int coloredTokensCapacity() {
+        return (coloredTokens.length - TOKENS_PLAYER_DATA_OFFSET) / TOKENS_PLAYER_DATA_STRIDE;
     }
 
     private int newMainBufferSize(int newNumClients) {
@@ -696,6 +705,9 @@ public class ScoreboardData {
     private void createNewBuffers(int numClients) {
         int newBufferSize = newMainBufferSize(numClients);
         buffer = new char[newBufferSize];
+        if (coloredTokens == null || !isSuitableCapacity(coloredTokensCapacity(), numClients)) {
+            coloredTokens = newColoredTokensBuffer(numClients);
+        }
     }
 
     private void resizeBuffers(int newNumClients) {
@@ -711,6 +723,10 @@ public class ScoreboardData {
     }
 
     byte[] playersInfoUpdateMask;
+    /**
+     * An array owned by this scoreboard data that delta updates of players info update mask are copied to.
+     */
+    byte[] ownPlayersInfoUpdateMask;
 
     public final byte[] getPlayersInfoUpdateMask() { return playersInfoUpdateMask; }
 
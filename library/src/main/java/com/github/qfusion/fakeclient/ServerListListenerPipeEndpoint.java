@@ -7,21 +7,44 @@ import static com.github.qfusion.fakeclient.ScoreboardData.*;
 public abstract class ServerListListenerPipeEndpoint implements ServerListListener {
     protected ScoreboardUpdatesDeltaDecoder deltaDecoder = new ScoreboardUpdatesDeltaDecoder();
 
+    /**
+     * A pool that replaced scoreboard buffers are returned to (if the buffers reuse mode is enabled).
+     * Buffers are acquired from this pool for reading full server data by a server list listener.
+     * @see FeedingUiThreadServerListListener
+     */
+    ScoreboardBuffersPool scoreboardBuffersPool;
+
     void addServer(int instanceId, char[] fullServerData) {
-        newScoreboardData(instanceId).wrapBuffers(fullServerData, allFieldsSetPlayersUpdateMask);
+        char[] oldBuffer = newScoreboardData(instanceId).wrapBuffers(fullServerData, allFieldsSetPlayersUpdateMask);
+        recycleBuffer(oldBuffer);
         this.onServerAdded(instanceId);
     }
 
     void removeServer(int instanceId) {
+        ScoreboardData scoreboardData = scoreboardBuffersPool != null ? findScoreboardData(instanceId) : null;
         deleteScoreboardData(instanceId);
         this.onServerRemoved(instanceId);
+        // Callbacks above might still read the data, so the buffer is recycled only after them
+        if (scoreboardData != null) {
+            char[] buffer = scoreboardData.buffer;
+            // Make sure the buffer is not returned to the pool twice if the scoreboard data object is reused
+            scoreboardData.buffer = null;
+            recycleBuffer(buffer);
+        }
     }
 
     void updateServerWithFullData(int instanceId, int serverInfoUpdateMask, char[] fullServerData) {
-        findScoreboardData(instanceId).wrapBuffers(fullServerData, allFieldsSetPlayersUpdateMask);
+        char[] oldBuffer = findScoreboardData(instanceId).wrapBuffers(fullServerData, allFieldsSetPlayersUpdateMask);
+        recycleBuffer(oldBuffer);
         this.onServerUpdated(instanceId, serverInfoUpdateMask);
     }
 
+    private void recycleBuffer(char[] buffer) {
+        if (buffer != null && scoreboardBuffersPool != null) {
+            scoreboardBuffersPool.release(buffer);
+        }
+    }
+
     void updateServerWithDelta(int instanceId, int serverInfoUpdateMask, DeltaUpdateMessage deltaMessage) {
         ScoreboardData scoreboardData = findScoreboardData(instanceId);
 
@@ -29,6 +52,8 @@ public abstract class ServerListListenerPipeEndpoint implements ServerListListen
         scoreboardData.resizeIfNeeded(oldNumClients, deltaMessage.numClients, deltaMessage.hasPlayerInfo);
 
         deltaDecoder.decodeUpdateDelta(scoreboardData, serverInfoUpdateMask, deltaMessage);
+        // The decoder does not keep references to the message contents, so it can be reused
+        deltaMessage.recycle();
         this.onServerUpdated(instanceId, serverInfoUpdateMask);
     }
 
@@ -38,11 +63,81 @@ public abstract class ServerListListenerPipeEndpoint implements ServerListListen
         Arrays.fill(allFieldsSetPlayersUpdateMask, PLAYERINFO_ALL_FIELDS_MASK);
     }
 
+    /**
+     * Called after all events of a batch have been applied.
+     * Override it to refresh UI once per batch rather than once per server.
+     * @see BatchingUiThreadServerListListener
+     */
+    protected void onUpdatesBatchEnd() {}
+
     protected abstract ScoreboardData newScoreboardData(int instanceId);
     protected abstract ScoreboardData findScoreboardData(int instanceId);
     protected abstract void deleteScoreboardData(int instanceId);
 }
 
+/**
+ * A bounded pool of spare scoreboard chars buffers.
+ * Buffers are released by an UI thread and acquired by a network thread.
+ */
+final class ScoreboardBuffersPool {
+    private final char[][] freeBuffers;
+    private int numFreeBuffers;
+
+    ScoreboardBuffersPool(int limit) {
+        this.freeBuffers = new char[limit][];
+    }
+
+    /**
+     * @param numClients A number of players a buffer should be able to hold.
+     * @return The smallest suitable free buffer (if any) according to the scoreboard data resizing policy.
+     */
+    synchronized char[] tryAcquire(int numClients) {
+        final char[][] freeBuffers = this.freeBuffers;
+        int bestIndex = -1;
+        int bestLength = Integer.MAX_VALUE;
+        for (int i = 0; i < numFreeBuffers; ++i) {
+            char[] buffer = freeBuffers[i];
+            if (buffer.length < bestLength && ScoreboardData.canReuseMainBuffer(buffer, numClients)) {
+                bestIndex = i;
+                bestLength = buffer.length;
+            }
+        }
+
+        if (bestIndex < 0) {
+            return null;
+        }
+
+        char[] result = freeBuffers[bestIndex];
+        // Move the last buffer to the vacant place
+        freeBuffers[bestIndex] = freeBuffers[--numFreeBuffers];
+        freeBuffers[numFreeBuffers] = null;
+        return result;
+    }
+
+    /**
+     * Puts the buffer back to the pool. The buffer is dropped if the pool is full.
+     */
+    synchronized void release(char[] buffer) {
+        if (BuildConfig.DEBUG) {
+            for (int i = 0; i < numFreeBuffers; ++i) {
+                if (freeBuffers[i] == buffer) {
+                    throw new AssertionError("The buffer has been already released");
+                }
+            }
+        }
+
+        if (numFreeBuffers == freeBuffers.length) {
+            return;
+        }
+
+        freeBuffers[numFreeBuffers++] = buffer;
+    }
+
+    synchronized int numFreeBuffers() {
+        return numFreeBuffers;
+    }
+}
+
 class ScoreboardUpdatesDeltaDecoder {
     void decodeUpdateDelta(ScoreboardData scoreboardData, int serverInfoUpdateMask, DeltaUpdateMessage message) {
         int updatesPtr = decodeServerInfo(scoreboardData, message, serverInfoUpdateMask);
@@ -95,7 +190,13 @@ class ScoreboardUpdatesDeltaDecoder {
         final char[] deltaChars = message.deltaChars;
         final char[] bufferChars = scoreboardData.buffer;
         final byte[] playersUpdateBytes = message.playersUpdateBytes;
-        scoreboardData.playersInfoUpdateMask = playersUpdateBytes;
+        // Do not share the message array, the message might be reused after decoding
+        byte[] playersInfoUpdateMask = scoreboardData.ownPlayersInfoUpdateMask;
+        if (playersInfoUpdateMask == null) {
+            playersInfoUpdateMask = scoreboardData.ownPlayersInfoUpdateMask = new byte[MAX_PLAYERS];
+        }
+        java.lang.System.arraycopy(playersUpdateBytes, 0, playersInfoUpdateMask, 0, message.numClients);
+        scoreboardData.playersInfoUpdateMask = playersInfoUpdateMask;
 
         for (int clientNum = 0, end = message.numClients; clientNum < end; ++clientNum) {
             int updateFlags = playersUpdateBytes[clientNum];
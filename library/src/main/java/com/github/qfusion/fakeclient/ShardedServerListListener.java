@@ -0,0 +1,341 @@
+package com.github.qfusion.fakeclient;
+
+import java.nio.ByteBuffer;
+
+import static com.github.qfusion.fakeclient.ScoreboardData.*;
+
+/**
+ * A server list listener that moves reading and encoding of server info updates off the thread
+ * that performs {@link System#frame(int)} calls.
+ * A network thread only takes a bulk copy of the part of the shared io buffer a worker is going to read
+ * (only the server info and records of updated players for a delta update) and hands it to one of worker threads. Servers are sharded across workers by an instance id,
+ * so events of a server are processed sequentially in the order they have been produced.
+ * Each worker has its own {@link FeedingUiThreadServerListListener} (and its own io buffers)
+ * that feeds the shared {@link ServerListListenerPipeEndpoint}.
+ * Note that the {@link MessagePipe} to the UI thread is fed by multiple worker threads
+ * so it must allow multiple producers (like an Android Handler does).
+ * Events are handed to a worker via a bounded queue. If a worker can't keep up (e.g. it gets stalled),
+ * the thread that calls {@link System#frame(int)} waits in a listener call until the worker frees a room.
+ * So a number of pending events (and their io buffer data copies) is bounded per a worker.
+ * Call {@link ShardedServerListListener#shutdown()} after {@link System#stopUpdatingServerList()}.
+ * A shutdown interrupts workers, so if the {@link MessagePipe} to the UI thread blocks a worker
+ * (e.g. a full {@link RingBufferMessagePipe} with the {@link RingBufferMessagePipe.OverflowPolicy#BLOCK} policy),
+ * pending events might be dropped instead of waiting for the UI thread forever.
+ */
+public class ShardedServerListListener extends NativeBridgeServerListListener {
+    final ServerListShard[] shards;
+    /**
+     * Update flags of players. Used only by the thread that calls {@link System#frame(int)}.
+     */
+    private final byte[] playersUpdateBytes = new byte[MAX_PLAYERS];
+
+    public ShardedServerListListener(MessagePipe uiThreadPipe,
+                                     ServerListListenerPipeEndpoint pipeEndpoint,
+                                     int numShards) {
+        this(uiThreadPipe, pipeEndpoint, numShards, FeedingUiThreadServerListListener.DEFAULT_POOLED_DELTA_MESSAGES_LIMIT);
+    }
+
+    /**
+     * @param numShards A number of worker threads.
+     * @param pooledDeltaMessagesLimit A limit of pooled delta messages per a worker.
+     *                                 See {@link FeedingUiThreadServerListListener}.
+     */
+    public ShardedServerListListener(MessagePipe uiThreadPipe,
+                                     ServerListListenerPipeEndpoint pipeEndpoint,
+                                     int numShards,
+                                     int pooledDeltaMessagesLimit) {
+        this(uiThreadPipe, pipeEndpoint, numShards, pooledDeltaMessagesLimit, 0);
+    }
+
+    /**
+     * @param pooledScoreboardBuffersLimit A limit of pooled scoreboard buffers.
+     *                                     The pool is shared by all workers via the pipe endpoint.
+     *                                     See {@link FeedingUiThreadServerListListener}.
+     */
+    public ShardedServerListListener(MessagePipe uiThreadPipe,
+                                     ServerListListenerPipeEndpoint pipeEndpoint,
+                                     int numShards,
+                                     int pooledDeltaMessagesLimit,
+                                     int pooledScoreboardBuffersLimit) {
+        if (numShards <= 0 || numShards > 64) {
+            throw new IllegalArgumentException("The numShards = " + numShards + " is outside of valid [1, 64] bounds");
+        }
+
+        this.shards = new ServerListShard[numShards];
+        for (int i = 0; i < numShards; ++i) {
+            FeedingUiThreadServerListListener listener = new FeedingUiThreadServerListListener(
+                uiThreadPipe, pipeEndpoint, pooledDeltaMessagesLimit, pooledScoreboardBuffersLimit);
+            shards[i] = new ServerListShard(listener, "jqfakeclient-server-list-shard-" + i);
+        }
+        for (ServerListShard shard: shards) {
+            shard.start();
+        }
+    }
+
+    public final int getNumShards() {
+        return shards.length;
+    }
+
+    private ServerListShard shardFor(int instanceId) {
+        return shards[(instanceId & 0x7FFFFFFF) % shards.length];
+    }
+
+    @Override
+    public void onServerAdded(int instanceId) {
+        ServerListShard shard = shardFor(instanceId);
+        ServerListShardEvent event = shard.acquireEvent();
+        event.kind = ServerListShardEvent.ADDED;
+        event.instanceId = instanceId;
+        copyFullIoBufferData(event);
+        shard.post(event);
+    }
+
+    @Override
+    public void onServerUpdated(int instanceId, int serverInfoUpdateMask) {
+        ServerListShard shard = shardFor(instanceId);
+        ServerListShardEvent event = shard.acquireEvent();
+        event.kind = ServerListShardEvent.UPDATED;
+        event.instanceId = instanceId;
+        event.serverInfoUpdateMask = serverInfoUpdateMask;
+        // A worker builds a delta if the native code does not hint to read a full data
+        if (charIoBuffer.get(UPDATE_HINT_READ_FULL_DATA_OFFSET) == 0) {
+            copyDeltaIoBufferData(event, serverInfoUpdateMask);
+        } else {
+            copyFullIoBufferData(event);
+        }
+        shard.post(event);
+    }
+
+    @Override
+    public void onServerRemoved(int instanceId) {
+        ServerListShard shard = shardFor(instanceId);
+        ServerListShardEvent event = shard.acquireEvent();
+        event.kind = ServerListShardEvent.REMOVED;
+        event.instanceId = instanceId;
+        event.dataLength = 0;
+        event.numUpdatedPlayers = 0;
+        shard.post(event);
+    }
+
+    /**
+     * Copies the part of the io buffer that might have been written by the native code.
+     * Player data is not copied if the buffer does not contain it.
+     */
+    private void copyFullIoBufferData(ServerListShardEvent event) {
+        int numChars = PLAYERS_DATA_OFFSET;
+        if (charIoBuffer.get(HAS_PLAYER_INFO_OFFSET) != 0) {
+            int numClients = Math.min((int)charIoBuffer.get(NUM_CLIENTS_OFFSET), MAX_PLAYERS);
+            numChars += numClients * PLAYER_DATA_STRIDE;
+        }
+        int numBytes = 2 * numChars;
+        event.ensureDataCapacity(numBytes);
+        byteIoBuffer.position(0);
+        byteIoBuffer.get(event.data, 0, numBytes);
+        event.dataLength = numBytes;
+        event.numUpdatedPlayers = 0;
+    }
+
+    /**
+     * Copies only the part of the io buffer that is read for building a delta update:
+     * the header and the server info along with records of players that have been updated.
+     * Records of other players (that form the largest part of a full data) are not copied.
+     */
+    private void copyDeltaIoBufferData(ServerListShardEvent event, int serverInfoUpdateMask) {
+        final int[] updatedPlayers = event.updatedPlayers;
+        int numUpdatedPlayers = 0;
+        boolean hasPlayerInfo = charIoBuffer.get(HAS_PLAYER_INFO_OFFSET) != 0;
+        if (hasPlayerInfo && (serverInfoUpdateMask & UPDATE_FLAG_WERE_PLAYER_INFO_UPDATES) != 0) {
+            final byte[] playersUpdateBytes = this.playersUpdateBytes;
+            int numClients = Math.min((int)charIoBuffer.get(NUM_CLIENTS_OFFSET), MAX_PLAYERS);
+            // All scoreboard offsets are specified in chars, so we have to scale this offset twice
+            byteIoBuffer.position(PLAYERS_UPDATE_MASK_OFFSET * 2);
+            byteIoBuffer.get(playersUpdateBytes, 0, numClients);
+            for (int i = 0; i < numClients; ++i) {
+                if (playersUpdateBytes[i] != 0) {
+                    updatedPlayers[numUpdatedPlayers++] = i;
+                }
+            }
+        }
+
+        final int headerBytes = 2 * PLAYERS_DATA_OFFSET;
+        final int playerBytes = 2 * PLAYER_DATA_STRIDE;
+        int numBytes = headerBytes + numUpdatedPlayers * playerBytes;
+        event.ensureDataCapacity(numBytes);
+        final byte[] data = event.data;
+        byteIoBuffer.position(0);
+        byteIoBuffer.get(data, 0, headerBytes);
+        int dataOffset = headerBytes;
+        for (int i = 0; i < numUpdatedPlayers; ++i) {
+            byteIoBuffer.position(2 * (PLAYERS_DATA_OFFSET + updatedPlayers[i] * PLAYER_DATA_STRIDE));
+            byteIoBuffer.get(data, dataOffset, playerBytes);
+            dataOffset += playerBytes;
+        }
+        event.dataLength = numBytes;
+        event.numUpdatedPlayers = numUpdatedPlayers;
+    }
+
+    /**
+     * Stops worker threads after all events posted so far have been processed.
+     * Safe to call multiple times.
+     */
+    public void shutdown() {
+        for (ServerListShard shard: shards) {
+            shard.stop();
+        }
+    }
+}
+
+/**
+ * A worker thread that owns a {@link FeedingUiThreadServerListListener} and feeds it by events of servers
+ * that belong to the shard. The only producer of events is a thread that calls {@link System#frame(int)}.
+ */
+final class ServerListShard implements Runnable {
+    private static final int EVENTS_QUEUE_CAPACITY = 256;
+    private static final int POOLED_EVENTS_LIMIT = 64;
+
+    final FeedingUiThreadServerListListener listener;
+    // Events can't be dropped, the network thread waits for the worker if the queue is full
+    private final RingBufferMessagePipe eventsPipe =
+        new RingBufferMessagePipe(EVENTS_QUEUE_CAPACITY, RingBufferMessagePipe.OverflowPolicy.BLOCK);
+    private final Thread thread;
+    private volatile boolean isStopRequested;
+
+    /**
+     * Guarded by this object monitor
+     */
+    private final ServerListShardEvent[] freeEvents = new ServerListShardEvent[POOLED_EVENTS_LIMIT];
+    private int numFreeEvents;
+
+    ServerListShard(FeedingUiThreadServerListListener listener, String threadName) {
+        this.listener = listener;
+        this.thread = new Thread(this, threadName);
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    void post(ServerListShardEvent event) {
+        if (BuildConfig.DEBUG) {
+            // The producer might wait forever for a room in the queue otherwise
+            if (isStopRequested) {
+                throw new AssertionError("An event has been posted after the shard has been stopped");
+            }
+        }
+        eventsPipe.post(event);
+    }
+
+    synchronized ServerListShardEvent acquireEvent() {
+        if (numFreeEvents == 0) {
+            return new ServerListShardEvent(this);
+        }
+        ServerListShardEvent event = freeEvents[--numFreeEvents];
+        freeEvents[numFreeEvents] = null;
+        return event;
+    }
+
+    synchronized void releaseEvent(ServerListShardEvent event) {
+        if (numFreeEvents < freeEvents.length) {
+            freeEvents[numFreeEvents++] = event;
+        }
+    }
+
+    @Override
+    public void run() {
+        while (!isStopRequested) {
+            eventsPipe.awaitAndDrain(100);
+        }
+        // Process events that might have been posted before the stop request
+        eventsPipe.drain();
+    }
+
+    void stop() {
+        isStopRequested = true;
+        thread.interrupt();
+        boolean wasInterrupted = false;
+        for (;;) {
+            try {
+                thread.join();
+                break;
+            } catch (InterruptedException e) {
+                wasInterrupted = true;
+            }
+        }
+        if (wasInterrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
+
+/**
+ * A server list event along with a copy of the io buffer data. Run by a {@link ServerListShard} thread.
+ */
+final class ServerListShardEvent implements Runnable {
+    static final int ADDED = 0;
+    static final int UPDATED = 1;
+    static final int REMOVED = 2;
+
+    final ServerListShard shard;
+
+    int kind;
+    int instanceId;
+    int serverInfoUpdateMask;
+    /**
+     * A copy of the io buffer prefix (the header and the server info at least)
+     * followed by records of {@link ServerListShardEvent#updatedPlayers} (if any).
+     */
+    byte[] data;
+    int dataLength;
+    /**
+     * Indices of players whose records follow the io buffer prefix in the data.
+     * If there is no such players, the data is a plain copy of the io buffer prefix.
+     */
+    final int[] updatedPlayers = new int[MAX_PLAYERS];
+    int numUpdatedPlayers;
+
+    ServerListShardEvent(ServerListShard shard) {
+        this.shard = shard;
+    }
+
+    void ensureDataCapacity(int numBytes) {
+        if (data == null || data.length < numBytes) {
+            data = new byte[numBytes];
+        }
+    }
+
+    @Override
+    public void run() {
+        final FeedingUiThreadServerListListener listener = shard.listener;
+        if (dataLength > 0) {
+            final ByteBuffer byteIoBuffer = listener.byteIoBuffer;
+            final int playerBytes = 2 * PLAYER_DATA_STRIDE;
+            final int prefixBytes = dataLength - numUpdatedPlayers * playerBytes;
+            byteIoBuffer.position(0);
+            byteIoBuffer.put(data, 0, prefixBytes);
+            // Records of other players are not read for a delta, so they might be left stale
+            int dataOffset = prefixBytes;
+            for (int i = 0; i < numUpdatedPlayers; ++i) {
+                byteIoBuffer.position(2 * (PLAYERS_DATA_OFFSET + updatedPlayers[i] * PLAYER_DATA_STRIDE));
+                byteIoBuffer.put(data, dataOffset, playerBytes);
+                dataOffset += playerBytes;
+            }
+        }
+
+        switch (kind) {
+            case ADDED:
+                listener.onServerAdded(instanceId);
+                break;
+            case UPDATED:
+                listener.onServerUpdated(instanceId, serverInfoUpdateMask);
+                break;
+            case REMOVED:
+                listener.onServerRemoved(instanceId);
+                break;
+            default:
+                throw new AssertionError("Unknown event kind " + kind);
+        }
+
+        shard.releaseEvent(this);
+    }
+}
@@ -7,6 +7,8 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.CharBuffer;
 import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A singleton that contains common underlying library logic.
@@ -14,9 +16,11 @@ import java.util.Arrays;
  * {@link System#init(NativeBridgeConsole)} and {@link System#shutdown()} calls.
  * Call {@link System#getInstance()} in-between these calls to obtain a {@link System} instance.
  * The instance object can be used to create new or delete already created instances of a {@link Client}.
- * The underlying library logic relies on repeated {@link System#frame} calls performed by a library user
+ * The underlying library logic relies on repeated {@link System#frame} calls
  * all the time when the system should be active (respond to user/network actions).
- * It is advised to avoid hot loop polling and put {@link Thread#sleep} calls in the loop too.
+ * A {@link FrameDriver} is the preferred way of performing these calls.
+ * If a library user calls {@link System#frame} in its own loop it is advised to avoid hot loop polling
+ * and wait for an activity in the loop by {@link System#awaitActivity(long)} calls.
  * All methods except {@link System::frame} are safe to call from any thread.
  */
 public class System {
@@ -31,6 +35,9 @@ public class System {
     private static native long nativeGetInstance();
     private static native long nativeNewClient(long nativeSystem, NativeBridgeConsole console);
     private static native void nativeDeleteClient(long nativeSystem, long nativeClient);
+    private static native int nativeNewClients(long nativeSystem, NativeBridgeConsole[] consoles, long[] nativeClients);
+    private static native void nativeDeleteClients(long nativeSystem, long[] nativeClients, int numClients);
+    private static native void nativeExecuteCommands(long nativeSystem, ByteBuffer commands, int numBytes);
     private static native void nativeFrame(long nativeSystem, int maxMillis);
 
     private static native boolean nativeAddMasterServerIpV4(long nativeSystem, int bytes, short port);
@@ -54,6 +61,20 @@ public class System {
     }
 
     private long nativeSystem;
+    /**
+     * A listener used for server list updates (if any). It is notified of native frame ends.
+     */
+    private volatile NativeBridgeServerListListener serverListListener;
+    /**
+     * Listeners that have been detached by {@link System#stopUpdatingServerList()}
+     * and should get a final {@link NativeBridgeServerListListener#onFrameEnd()} call in the frame thread.
+     */
+    private final ConcurrentLinkedQueue<NativeBridgeServerListListener> stoppedServerListListeners =
+        new ConcurrentLinkedQueue<NativeBridgeServerListListener>();
+    /**
+     * Raised by calls that put a work for the native library. Shared with a {@link FrameDriver} of the system.
+     */
+    final ActivitySignal activitySignal = new ActivitySignal();
     private static volatile System instance;
     private static volatile boolean initCalled;
     private static final Object lock = new Object();
@@ -104,7 +125,9 @@ public class System {
 
         // The corresponding native call that operates on JNI data and constructs auxiliary objects is not thread safe
         synchronized (lock) {
-            return new Client(nativeNewClient(nativeSystem, console), console);
+            Client client = new Client(nativeNewClient(nativeSystem, console), console, activitySignal);
+            activitySignal.signal();
+            return client;
         }
     }
 
@@ -116,9 +139,109 @@ public class System {
         if (client != null) {
             // No need to lock it since nativeDeleteClient is thread-safe
             nativeDeleteClient(nativeSystem, client.nativeClient);
+            activitySignal.signal();
+        }
+    }
+
+    /**
+     * Creates multiple {@link Client} instances by a single native call.
+     * Delete clients by {@link System#deleteClients} or {@link System#deleteClient} calls after use.
+     * @param consoles Consoles for new clients (a console per client).
+     * @return New clients. The array might be shorter than the consoles array if there are too many clients.
+     *         If the call throws (e.g. a native console can't be created), no clients are left created.
+     */
+    public Client[] newClients(NativeBridgeConsole[] consoles) {
+        for (int i = 0; i < consoles.length; ++i) {
+            if (consoles[i] == null) {
+                throw new IllegalArgumentException("The console #" + i + " is null");
+            }
+        }
+
+        long[] nativeClients = new long[consoles.length];
+        int numClients;
+        // See newClient()
+        synchronized (lock) {
+            numClients = nativeNewClients(nativeSystem, consoles, nativeClients);
+        }
+
+        Client[] clients = new Client[numClients];
+        for (int i = 0; i < numClients; ++i) {
+            clients[i] = new Client(nativeClients[i], consoles[i], activitySignal);
+        }
+        if (numClients > 0) {
+            activitySignal.signal();
+        }
+        return clients;
+    }
+
+    /**
+     * Deletes multiple {@link Client} instances by a single native call.
+     * @param clients Clients to delete. Null elements are allowed.
+     */
+    public void deleteClients(Client[] clients) {
+        long[] nativeClients = new long[clients.length];
+        int numClients = 0;
+        for (Client client: clients) {
+            if (client != null) {
+                nativeClients[numClients++] = client.nativeClient;
+            }
+        }
+        if (numClients > 0) {
+            nativeDeleteClients(nativeSystem, nativeClients, numClients);
+            activitySignal.signal();
         }
     }
 
+    /**
+     * Executes all commands of the batch by a single native call.
+     * Commands are executed in the order they have been added.
+     * The batch might be cleared and reused after this call.
+     */
+    public void executeCommands(CommandBatch batch) {
+        if (batch.size() == 0) {
+            return;
+        }
+        // See Client.executeCommand(). Locks of clients are acquired in a consistent order to prevent deadlocks.
+        final Client[] lockedClients = batch.sortedDistinctClients();
+        final int numLockedClients = batch.numDistinctClients();
+        int numAcquiredLocks = 0;
+        try {
+            for (; numAcquiredLocks < numLockedClients; ++numAcquiredLocks) {
+                lockedClients[numAcquiredLocks].lock.lock();
+            }
+            nativeExecuteCommands(nativeSystem, batch.buffer, batch.numBytes());
+        } finally {
+            for (int i = numAcquiredLocks - 1; i >= 0; --i) {
+                lockedClients[i].lock.unlock();
+            }
+        }
+        activitySignal.signal();
+    }
+
+    /**
+     * Waits until there is a work for the native library or the timeout expires.
+     * The work is signaled by calls of this class and of {@link Client} that put requests for the native library
+     * and by explicit {@link System#signalActivity()} calls.
+     * Note that an arrival of network data is not signaled since the native library does not expose its sockets,
+     * so the timeout should not exceed an acceptable network latency.
+     * This call is intended to be done by a thread that performs {@link System#frame(int)} calls.
+     * @return True if there was an activity (the activity flag is cleared in this case).
+     */
+    public boolean awaitActivity(long timeoutMillis) {
+        if (timeoutMillis < 0) {
+            throw new IllegalArgumentException("The argument timeoutMillis = " + timeoutMillis + " is negative");
+        }
+        return activitySignal.await(TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+    }
+
+    /**
+     * Wakes up a thread that waits in {@link System#awaitActivity(long)} call (or a {@link FrameDriver}).
+     * Safe to call from any thread.
+     */
+    public void signalActivity() {
+        activitySignal.signal();
+    }
+
     /**
      * Runs a frame of underlying native library.
      * This call becomes pinned to a thread where it has been called first.
@@ -132,6 +255,20 @@ public class System {
             throw new IllegalArgumentException(message);
         }
         nativeFrame(nativeSystem, maxMillis);
+
+        NativeBridgeServerListListener listener = serverListListener;
+        if (listener != null) {
+            listener.onFrameEnd();
+        }
+        if (!stoppedServerListListeners.isEmpty()) {
+            NativeBridgeServerListListener stoppedListener;
+            while ((stoppedListener = stoppedServerListListeners.poll()) != null) {
+                // Skip a listener that has been restarted, it has just been notified
+                if (stoppedListener != listener) {
+                    stoppedListener.onFrameEnd();
+                }
+            }
+        }
     }
 
     public boolean addMasterServer(InetAddress address, short port) {
@@ -145,14 +282,14 @@ public class System {
     }
 
     public boolean addMasterServer(Inet4Address address, short port) {
-        return nativeAddMasterServerIpV4(nativeSystem, bytesToInt(address.getAddress(), 0), port);
+        return signalActivityIf(nativeAddMasterServerIpV4(nativeSystem, bytesToInt(address.getAddress(), 0), port));
     }
 
     public boolean addMasterServer(Inet6Address address, short port) {
         byte[] addressBytes = address.getAddress();
         long hiPart = bytesToLong(addressBytes, 0);
         long loPart = bytesToLong(addressBytes, 8);
-        return nativeAddMasterServerIpV6(nativeSystem, hiPart, loPart, port);
+        return signalActivityIf(nativeAddMasterServerIpV6(nativeSystem, hiPart, loPart, port));
     }
 
     public boolean removeMasterServer(InetAddress address, short port) {
@@ -166,14 +303,14 @@ public class System {
     }
 
     public boolean removeMasterServer(Inet4Address address, short port) {
-        return nativeRemoveMasterServerIpV4(nativeSystem, bytesToInt(address.getAddress(), 0), port);
+        return signalActivityIf(nativeRemoveMasterServerIpV4(nativeSystem, bytesToInt(address.getAddress(), 0), port));
     }
 
     public boolean removeMasterServer(Inet6Address address, short port) {
         byte[] addressBytes = address.getAddress();
         long hiPart = bytesToLong(addressBytes, 0);
         long loPart = bytesToLong(addressBytes, 8);
-        return nativeRemoveMasterServerIpV6(nativeSystem, hiPart, loPart, port);
+        return signalActivityIf(nativeRemoveMasterServerIpV6(nativeSystem, hiPart, loPart, port));
     }
 
     public boolean isMasterServer(InetAddress address, short port) {
@@ -197,6 +334,13 @@ public class System {
         return nativeIsMasterServerIpV6(nativeSystem, hiPart, loPart, port);
     }
 
+    private boolean signalActivityIf(boolean result) {
+        if (result) {
+            activitySignal.signal();
+        }
+        return result;
+    }
+
     /**
      * Constructs an integer value from the given bytes.
      * These bytes are assumed to be in network byte order.
@@ -232,15 +376,31 @@ public class System {
     public boolean startUpdatingServerList(NativeBridgeServerListListener listener) {
         // The corresponding native call that operates on JNI data and constructs auxiliary objects is not thread safe
         synchronized (lock) {
-            return nativeStartUpdatingServerList(nativeSystem, listener, listener.byteIoBuffer, listener.charIoBuffer);
+            if (nativeStartUpdatingServerList(nativeSystem, listener, listener.byteIoBuffer, listener.charIoBuffer)) {
+                serverListListener = listener;
+                activitySignal.signal();
+                return true;
+            }
+            return false;
         }
     }
 
     public void setServerListUpdateOptions(boolean showEmptyServers, boolean showPlayerInfo) {
         nativeSetServerListUpdateOptions(nativeSystem, showEmptyServers, showPlayerInfo);
+        activitySignal.signal();
     }
 
+    /**
+     * Stops server list updates. The listener gets a final {@link NativeBridgeServerListListener#onFrameEnd()} call
+     * during the next {@link System#frame(int)} call (in the thread where listener events are delivered),
+     * so events it has deferred till a frame end (e.g. ones of a partial batch) are not lost.
+     */
     public void stopUpdatingServerList() {
         nativeStopUpdatingServerList(nativeSystem);
+        NativeBridgeServerListListener listener = serverListListener;
+        serverListListener = null;
+        if (listener != null) {
+            stoppedServerListListeners.add(listener);
+        }
     }
 }
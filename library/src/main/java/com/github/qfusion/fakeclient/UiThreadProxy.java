@@ -0,0 +1,119 @@
+package com.github.qfusion.fakeclient;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Use this class instead of {@link android.os.Looper} to check whether a code is executed in an UI thread.
+ * By default the main {@link android.os.Looper} thread is considered an UI thread if the class is available.
+ * There is no UI thread notion in standard JVM environment, so all threads pass the check by default.
+ * A desktop application might define its UI thread via {@link UiThreadProxy#setUiThread(Thread)}
+ * or supply its own {@link UiThreadProxy.Backend} via {@link UiThreadProxy#setBackend(Backend)}.
+ */
+public class UiThreadProxy {
+
+    public static boolean isUiThread(Thread thread) {
+        return getImpl().isUiThread(thread);
+    }
+
+    public static boolean isCurrentThreadUiThread() {
+        return getImpl().isUiThread(Thread.currentThread());
+    }
+
+    public static abstract class Backend {
+        protected abstract boolean isUiThread(Thread thread);
+    }
+
+    /**
+     * Overrides the default backend. Should be called before any library activity is started.
+     * @param backend A backend to use. Null restores the default one.
+     */
+    public static void setBackend(Backend backend) {
+        impl = backend;
+    }
+
+    /**
+     * A shorthand for installing a backend that treats the given thread as the only UI thread.
+     */
+    public static void setUiThread(Thread thread) {
+        if (thread == null) {
+            throw new IllegalArgumentException("The thread is null");
+        }
+        setBackend(new FixedThreadImpl(thread));
+    }
+
+    private static volatile Backend impl;
+    private static Backend getImpl() {
+        Backend result = impl;
+        if (result == null) {
+            impl = result = newImpl();
+        }
+        return result;
+    }
+
+    private static Backend newImpl() {
+        return Testing.isActive() ? DummyImpl.INSTANCE : RealImpl.INSTANCE;
+    }
+
+    private static class DummyImpl extends Backend {
+        @Override
+        protected boolean isUiThread(Thread thread) {
+            return true;
+        }
+
+        static Backend INSTANCE = new DummyImpl();
+    }
+
+    private static class FixedThreadImpl extends Backend {
+        private final Thread uiThread;
+
+        FixedThreadImpl(Thread uiThread) {
+            this.uiThread = uiThread;
+        }
+
+        @Override
+        protected boolean isUiThread(Thread thread) {
+            return thread == uiThread;
+        }
+    }
+
+    /**
+     * The main looper thread is retrieved once, the main looper is never changed during an application lifetime.
+     */
+    private static class RealImpl extends Backend {
+        private final Thread mainThread;
+
+        RealImpl(Thread mainThread) {
+            this.mainThread = mainThread;
+        }
+
+        @Override
+        protected boolean isUiThread(Thread thread) {
+            return thread == mainThread;
+        }
+
+        static Backend INSTANCE;
+
+        static {
+            try {
+                Class<?> clazz = Class.forName("android.os.Looper");
+                Method getMainLooperMethod = clazz.getMethod("getMainLooper");
+                Method getThreadMethod = clazz.getMethod("getThread");
+                Object mainLooper = getMainLooperMethod.invoke(null);
+                if (mainLooper != null) {
+                    INSTANCE = new RealImpl((Thread)getThreadMethod.invoke(mainLooper));
+                } else {
+                    INSTANCE = DummyImpl.INSTANCE;
+                }
+            } catch (ClassNotFoundException e) {
+                INSTANCE = DummyImpl.INSTANCE;
+            } catch (NoSuchMethodException e) {
+                INSTANCE = DummyImpl.INSTANCE;
+            } catch (InvocationTargetException e) {
+                throw new AssertionError(e);
+            } catch (IllegalAccessException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.github.qfusion.fakeclient;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.TimeUnit;
+
+public class ActivitySignalTest extends TestCase {
+
+    public void testSignalBeforeAwait() {
+        ActivitySignal signal = new ActivitySignal();
+        signal.signal();
+        assertTrue(signal.isSignaled());
+        assertTrue(signal.await(TimeUnit.SECONDS.toNanos(10)));
+        // The signal should be cleared
+        assertFalse(signal.isSignaled());
+        assertFalse(signal.await(0));
+    }
+
+    public void testAwaitTimeout() {
+        ActivitySignal signal = new ActivitySignal();
+        long startTime = java.lang.System.nanoTime();
+        assertFalse(signal.await(TimeUnit.MILLISECONDS.toNanos(20)));
+        assertTrue(java.lang.System.nanoTime() - startTime >= TimeUnit.MILLISECONDS.toNanos(20));
+    }
+
+    public void testSignalFromOtherThread() throws InterruptedException {
+        final ActivitySignal signal = new ActivitySignal();
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                signal.signal();
+            }
+        };
+        thread.start();
+        assertTrue(signal.await(TimeUnit.SECONDS.toNanos(10)));
+        thread.join();
+    }
+}
@@ -0,0 +1,71 @@
+package com.github.qfusion.fakeclient;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+public class BatchingUiThreadServerListListenerTest extends TestCase {
+
+    public void testEventsOfFrameAreDeliveredInSinglePost() {
+        QueueingMessagePipe pipe = new QueueingMessagePipe();
+        RecordingPipeEndpoint endpoint = new RecordingPipeEndpoint();
+        BatchingUiThreadServerListListener listener = new BatchingUiThreadServerListListener(pipe, endpoint);
+
+        listener.onServerAdded(1);
+        listener.onServerAdded(2);
+        listener.onServerRemoved(1);
+        // Nothing should be posted until the frame end
+        assertEquals(0, pipe.messages.size());
+
+        listener.onFrameEnd();
+        assertEquals(1, pipe.messages.size());
+
+        pipe.runAll();
+        assertEquals(Arrays.asList("added 1", "added 2", "removed 1", "batch end"), endpoint.events);
+        assertFalse(endpoint.scoreboards.containsKey(1));
+        assertTrue(endpoint.scoreboards.containsKey(2));
+    }
+
+    public void testEmptyFrameDoesNotPost() {
+        QueueingMessagePipe pipe = new QueueingMessagePipe();
+        RecordingPipeEndpoint endpoint = new RecordingPipeEndpoint();
+        BatchingUiThreadServerListListener listener = new BatchingUiThreadServerListListener(pipe, endpoint);
+
+        listener.onFrameEnd();
+        assertEquals(0, pipe.messages.size());
+        assertEquals(0, endpoint.events.size());
+    }
+
+    public void testBatchesAreReused() {
+        QueueingMessagePipe pipe = new QueueingMessagePipe();
+        RecordingPipeEndpoint endpoint = new RecordingPipeEndpoint();
+        BatchingUiThreadServerListListener listener = new BatchingUiThreadServerListListener(pipe, endpoint);
+
+        listener.onServerAdded(1);
+        listener.onFrameEnd();
+        Runnable firstBatch = pipe.messages.get(0);
+        pipe.runAll();
+
+        // The first batch has been applied, but it is not the current one yet
+        listener.onServerAdded(2);
+        listener.onFrameEnd();
+        Runnable secondBatch = pipe.messages.get(0);
+        assertNotSame(firstBatch, secondBatch);
+        pipe.runAll();
+
+        // Batches should alternate in a steady state if the UI thread keeps up
+        listener.onServerRemoved(1);
+        listener.onFrameEnd();
+        assertSame(firstBatch, pipe.messages.get(0));
+        pipe.runAll();
+
+        listener.onServerRemoved(2);
+        listener.onFrameEnd();
+        assertSame(secondBatch, pipe.messages.get(0));
+        pipe.runAll();
+
+        assertEquals(Arrays.asList(
+            "added 1", "batch end", "added 2", "batch end",
+            "removed 1", "batch end", "removed 2", "batch end"), endpoint.events);
+    }
+}
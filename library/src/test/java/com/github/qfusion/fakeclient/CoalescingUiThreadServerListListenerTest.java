@@ -0,0 +1,115 @@
+package com.github.qfusion.fakeclient;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+public class CoalescingUiThreadServerListListenerTest extends TestCase {
+
+    public void testAdditionFollowedByRemovalIsDropped() {
+        QueueingMessagePipe pipe = new QueueingMessagePipe();
+        RecordingPipeEndpoint endpoint = new RecordingPipeEndpoint();
+        CoalescingUiThreadServerListListener listener = new CoalescingUiThreadServerListListener(pipe, endpoint);
+
+        listener.onServerAdded(1);
+        listener.onServerAdded(2);
+        listener.onServerUpdated(1, 0);
+        listener.onServerRemoved(1);
+        // A single drain message should be posted
+        assertEquals(1, pipe.messages.size());
+
+        pipe.runAll();
+        assertEquals(Arrays.asList("added 2", "batch end"), endpoint.events);
+        assertFalse(endpoint.scoreboards.containsKey(1));
+        assertTrue(endpoint.scoreboards.containsKey(2));
+    }
+
+    public void testDroppedFullDataIsReturnedToPool() {
+        QueueingMessagePipe pipe = new QueueingMessagePipe();
+        RecordingPipeEndpoint endpoint = new RecordingPipeEndpoint();
+        CoalescingUiThreadServerListListener listener = new CoalescingUiThreadServerListListener(pipe, endpoint, 0, 4);
+        ScoreboardBuffersPool pool = endpoint.scoreboardBuffersPool;
+
+        listener.onServerAdded(1);
+        listener.onServerAdded(2);
+        listener.onServerAdded(3);
+        listener.onServerRemoved(2);
+        assertEquals(1, pool.numFreeBuffers());
+
+        // The removed server might be added again before the drain
+        listener.onServerAdded(2);
+        pipe.runAll();
+        assertEquals(Arrays.asList("added 1", "added 3", "added 2", "batch end"), endpoint.events);
+        assertEquals(0, pool.numFreeBuffers());
+    }
+
+    public void testUpdatesAreCoalesced() {
+        QueueingMessagePipe pipe = new QueueingMessagePipe();
+        RecordingPipeEndpoint endpoint = new RecordingPipeEndpoint();
+        CoalescingUiThreadServerListListener listener = new CoalescingUiThreadServerListListener(pipe, endpoint);
+
+        listener.onServerAdded(1);
+        listener.onServerAdded(2);
+        pipe.runAll();
+        endpoint.events.clear();
+
+        for (int i = 0; i < 10; ++i) {
+            listener.onServerUpdated(1, 0);
+            listener.onServerUpdated(2, 0);
+        }
+        assertEquals(1, pipe.messages.size());
+
+        pipe.runAll();
+        assertEquals(Arrays.asList("updated 1", "updated 2", "batch end"), endpoint.events);
+    }
+
+    public void testUpdatesFollowedByRemovalAreDropped() {
+        QueueingMessagePipe pipe = new QueueingMessagePipe();
+        RecordingPipeEndpoint endpoint = new RecordingPipeEndpoint();
+        CoalescingUiThreadServerListListener listener = new CoalescingUiThreadServerListListener(pipe, endpoint);
+
+        listener.onServerAdded(1);
+        pipe.runAll();
+        endpoint.events.clear();
+
+        listener.onServerUpdated(1, 0);
+        listener.onServerUpdated(1, 0);
+        listener.onServerRemoved(1);
+        pipe.runAll();
+        assertEquals(Arrays.asList("removed 1", "batch end"), endpoint.events);
+        assertFalse(endpoint.scoreboards.containsKey(1));
+    }
+
+    public void testRemovalFollowedByAdditionIsKept() {
+        QueueingMessagePipe pipe = new QueueingMessagePipe();
+        RecordingPipeEndpoint endpoint = new RecordingPipeEndpoint();
+        CoalescingUiThreadServerListListener listener = new CoalescingUiThreadServerListListener(pipe, endpoint);
+
+        listener.onServerAdded(1);
+        pipe.runAll();
+        endpoint.events.clear();
+
+        listener.onServerRemoved(1);
+        listener.onServerAdded(1);
+        listener.onServerUpdated(1, 0);
+        pipe.runAll();
+        assertEquals(Arrays.asList("removed 1", "added 1", "updated 1", "batch end"), endpoint.events);
+        assertTrue(endpoint.scoreboards.containsKey(1));
+    }
+
+    public void testDrainIsScheduledAgainAfterDraining() {
+        QueueingMessagePipe pipe = new QueueingMessagePipe();
+        RecordingPipeEndpoint endpoint = new RecordingPipeEndpoint();
+        CoalescingUiThreadServerListListener listener = new CoalescingUiThreadServerListListener(pipe, endpoint);
+
+        listener.onServerAdded(1);
+        pipe.runAll();
+        assertEquals(0, pipe.messages.size());
+
+        listener.onServerUpdated(1, 0);
+        assertEquals(1, pipe.messages.size());
+        pipe.runAll();
+
+        assertEquals(Arrays.asList("added 1", "batch end", "updated 1", "batch end"), endpoint.events);
+    }
+}
@@ -0,0 +1,125 @@
+package com.github.qfusion.fakeclient;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+public class CommandBatchTest extends TestCase {
+
+    private static List<String> decodeEntries(CommandBatch batch, List<Long> nativeClients) {
+        ByteBuffer buffer = batch.buffer.duplicate().order(batch.buffer.order());
+        buffer.flip();
+        List<String> commands = new ArrayList<String>();
+        while (buffer.hasRemaining()) {
+            nativeClients.add(buffer.getLong());
+            int length = buffer.getInt();
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            assertEquals(0, buffer.get());
+            commands.add(new String(bytes, Charset.forName("UTF-8")));
+        }
+        return commands;
+    }
+
+    public void testEntriesLayout() {
+        CommandBatch batch = new CommandBatch();
+        batch.add(1L, "connect 127.0.0.1");
+        batch.add(2L, "say \u043f\u0440\u0438\u0432\u0435\u0442");
+        batch.add(1L, "");
+        assertEquals(3, batch.size());
+
+        List<Long> nativeClients = new ArrayList<Long>();
+        List<String> commands = decodeEntries(batch, nativeClients);
+        assertEquals(3, commands.size());
+        assertEquals("connect 127.0.0.1", commands.get(0));
+        assertEquals("say \u043f\u0440\u0438\u0432\u0435\u0442", commands.get(1));
+        assertEquals("", commands.get(2));
+        assertEquals(1L, (long)nativeClients.get(0));
+        assertEquals(2L, (long)nativeClients.get(1));
+        assertEquals(1L, (long)nativeClients.get(2));
+    }
+
+    public void testBufferGrowth() {
+        // Make sure multi-byte chars do not fit the initially reserved space
+        CommandBatch batch = new CommandBatch(16);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100; ++i) {
+            sb.append('\u20ac');
+        }
+        String longCommand = sb.toString();
+        for (int i = 0; i < 10; ++i) {
+            batch.add(i, longCommand);
+        }
+
+        List<Long> nativeClients = new ArrayList<Long>();
+        List<String> commands = decodeEntries(batch, nativeClients);
+        assertEquals(10, commands.size());
+        for (int i = 0; i < 10; ++i) {
+            assertEquals(longCommand, commands.get(i));
+            assertEquals(i, (long)nativeClients.get(i));
+        }
+    }
+
+    public void testClear() {
+        CommandBatch batch = new CommandBatch();
+        batch.add(1L, "disconnect");
+        batch.clear();
+        assertEquals(0, batch.size());
+        assertEquals(0, batch.numBytes());
+        batch.add(3L, "quit");
+        List<Long> nativeClients = new ArrayList<Long>();
+        List<String> commands = decodeEntries(batch, nativeClients);
+        assertEquals(1, commands.size());
+        assertEquals("quit", commands.get(0));
+    }
+
+    private static String decodeCommand(ByteBuffer buffer) {
+        ByteBuffer view = buffer.duplicate();
+        view.flip();
+        byte[] bytes = new byte[view.remaining() - 1];
+        view.get(bytes);
+        assertEquals(0, view.get());
+        return new String(bytes, Charset.forName("UTF-8"));
+    }
+
+    public void testCommandEncoderReusesBuffer() {
+        CommandEncoder encoder = new CommandEncoder();
+        ByteBuffer buffer = CommandEncoder.newBuffer(64);
+        StringBuilder sb = new StringBuilder("say hello");
+
+        ByteBuffer result = encoder.encode(sb, buffer);
+        assertSame(buffer, result);
+        assertEquals("say hello", decodeCommand(result));
+
+        buffer.clear();
+        sb.append(" \u20ac");
+        result = encoder.encode(sb, buffer);
+        assertSame(buffer, result);
+        assertEquals("say hello \u20ac", decodeCommand(result));
+    }
+
+    public void testCommandEncoderGrowsBuffer() {
+        CommandEncoder encoder = new CommandEncoder();
+        ByteBuffer buffer = CommandEncoder.newBuffer(4);
+        buffer.put((byte)'x');
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 300; ++i) {
+            sb.append('\u20ac');
+        }
+
+        ByteBuffer result = encoder.encode(sb.toString(), buffer);
+        assertNotSame(buffer, result);
+        assertEquals(1 + 3 * 300 + 1, result.position());
+        // Bytes before the position should be preserved
+        assertEquals('x', result.get(0));
+        byte[] commandBytes = new byte[3 * 300];
+        ByteBuffer view = result.duplicate();
+        view.position(1);
+        view.get(commandBytes);
+        assertEquals(sb.toString(), new String(commandBytes, Charset.forName("UTF-8")));
+        assertEquals(0, view.get());
+    }
+}
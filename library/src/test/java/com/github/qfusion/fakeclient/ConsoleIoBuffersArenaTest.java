@@ -0,0 +1,78 @@
+package com.github.qfusion.fakeclient;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+
+public class ConsoleIoBuffersArenaTest extends TestCase {
+
+    public void testSlicesAllocation() {
+        ConsoleIoBuffersArena arena = new ConsoleIoBuffersArena(64, 2);
+        ByteBuffer slice1 = arena.allocateSlice();
+        ByteBuffer slice2 = arena.allocateSlice();
+        assertEquals(1, arena.getNumBlocks());
+        ByteBuffer slice3 = arena.allocateSlice();
+        assertEquals(2, arena.getNumBlocks());
+
+        for (ByteBuffer slice: new ByteBuffer[] { slice1, slice2, slice3 }) {
+            assertTrue(slice.isDirect());
+            assertEquals(64, slice.capacity());
+            assertEquals(0, slice.position());
+        }
+
+        // Slices of the same block must not overlap
+        for (int i = 0; i < 64; ++i) {
+            slice1.put(i, (byte)1);
+            slice2.put(i, (byte)2);
+        }
+        for (int i = 0; i < 64; ++i) {
+            assertEquals(1, slice1.get(i));
+            assertEquals(2, slice2.get(i));
+        }
+    }
+
+    public void testConsolesUseArenaBuffers() {
+        ConsoleIoBuffersArena arena = new ConsoleIoBuffersArena(128, 4);
+        RingBufferConsole unbuffered1 = new RingBufferConsole(16, arena, false);
+        RingBufferConsole unbuffered2 = new RingBufferConsole(16, arena, false);
+        RingBufferConsole buffered1 = new RingBufferConsole(16, arena, true);
+        RingBufferConsole buffered2 = new RingBufferConsole(16, arena, true);
+
+        // Consoles might print concurrently, so their buffers must not share memory
+        RingBufferConsole[] consoles = { unbuffered1, unbuffered2, buffered1, buffered2 };
+        for (int i = 0; i < consoles.length; ++i) {
+            assertTrue(consoles[i].ioBuffer.isDirect());
+            assertEquals(128, consoles[i].getIoBufferSize());
+            consoles[i].ioBuffer.put(0, (byte)i);
+        }
+        for (int i = 0; i < consoles.length; ++i) {
+            assertEquals(i, consoles[i].ioBuffer.get(0));
+        }
+        assertFalse(unbuffered1.isOutputBuffered());
+        assertTrue(buffered1.isOutputBuffered());
+        assertEquals(1, arena.getNumBlocks());
+    }
+
+    public void testIoBufferGrowth() {
+        RingBufferConsole console = new RingBufferConsole(16, 64, false);
+        // The buffer does not grow by default
+        assertNull(console.growIoBuffer(100));
+
+        console.setMaxIoBufferSize(1000);
+        ByteBuffer grown = console.growIoBuffer(100);
+        assertNotNull(grown);
+        assertTrue(grown.isDirect());
+        assertSame(grown, console.ioBuffer);
+        assertEquals(128, grown.capacity());
+
+        grown = console.growIoBuffer(5000);
+        assertEquals(1000, grown.capacity());
+        assertNull(console.growIoBuffer(5000));
+
+        try {
+            console.setMaxIoBufferSize(500);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
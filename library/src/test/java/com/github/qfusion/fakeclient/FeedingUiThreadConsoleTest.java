@@ -0,0 +1,177 @@
+package com.github.qfusion.fakeclient;
+
+import junit.framework.TestCase;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class FeedingUiThreadConsoleTest extends TestCase {
+    private static final Charset charset = Charset.forName("UTF-8");
+
+    private static final String[] lines = {
+        "Connecting to 188.226.221.185:44400...",
+        "^7Player^2 Sm0ke^7 entered the game",
+        "",
+        "^4vitalik^7 was ^1railed^7 by ^2Sm0ke",
+        "^2\u043f\u0440\u0438\u0432\u0435\u0442^7 ^^ teehee",
+        "Malformed ^escape sequence at the end^"
+    };
+
+    private static List<String> describeLines(RingLinesBuffer buffer) {
+        List<String> result = new ArrayList<String>();
+        CharArrayView charsView = new CharArrayView();
+        BufferLineTokensView tokensView = new BufferLineTokensView();
+        RingLinesBuffer.OptimizedIterator iterator = buffer.optimizedIterator();
+        while (iterator.hasNext()) {
+            iterator.next(charsView, tokensView);
+            StringBuilder sb = new StringBuilder();
+            int[] tokens = tokensView.getArray();
+            for (int i = tokensView.getArrayOffset(); i < tokensView.getArrayOffset() + tokensView.getLength(); i += 2) {
+                int offset = tokens[i];
+                int length = tokens[i + 1] & ~0xF0000000;
+                int color = tokens[i + 1] >>> 28;
+                sb.append('[').append(color).append(':');
+                sb.append(charsView.getArray(), charsView.getArrayOffset() + offset, length).append(']');
+            }
+            result.add(sb.toString());
+        }
+        return result;
+    }
+
+    private static void feed(FeedingUiThreadConsole console, byte[] bytes, int offset, int length) {
+        console.ioBuffer.clear();
+        console.ioBuffer.put(bytes, offset, length);
+        console.onNewBufferData(0, length);
+    }
+
+    private static class CountingListener implements RingBufferConsole.Listener {
+        int numNewLines;
+        int numRemovedLines;
+
+        @Override
+        public void onAboutToRemoveBackLine() {
+            numRemovedLines++;
+        }
+
+        @Override
+        public void onNewLine() {
+            numNewLines++;
+        }
+    }
+
+    public void testLinesAreBuiltOffUiThread() {
+        StringBuilder sb = new StringBuilder();
+        for (String line: lines) {
+            sb.append(line).append('\n');
+        }
+        byte[] bytes = sb.toString().getBytes(charset);
+
+        QueueingMessagePipe pipe = new QueueingMessagePipe();
+        FeedingUiThreadConsole console = new FeedingUiThreadConsole(pipe, 4, 1024, false, true);
+        CountingListener listener = new CountingListener();
+        console.setListener(listener);
+
+        try {
+            // Any access to the UI buffer while feeding fails in debug mode
+            UiThreadProxy.setUiThread(new Thread());
+            // Split chunks at arbitrary bytes (including ones inside multi-byte sequences)
+            for (int offset = 0; offset < bytes.length; offset += 7) {
+                feed(console, bytes, offset, Math.min(7, bytes.length - offset));
+            }
+            assertEquals(0, console.getBuffer().size());
+            assertTrue(pipe.messages.size() <= lines.length);
+            for (Runnable message: pipe.messages) {
+                assertTrue(message instanceof ConsoleLinesBatch);
+            }
+
+            UiThreadProxy.setUiThread(Thread.currentThread());
+            pipe.runAll();
+        } finally {
+            UiThreadProxy.setBackend(null);
+        }
+
+        RingLinesBuffer expected = new RingLinesBuffer(4);
+        for (String line: lines) {
+            expected.appendLinePart(line);
+            expected.completeLineBuilding();
+        }
+        assertEquals(describeLines(expected), describeLines(console.getBuffer()));
+        assertEquals(expected.nextSequenceNumber(), console.getBuffer().nextSequenceNumber());
+        assertEquals(lines.length - 4, listener.numRemovedLines);
+    }
+
+    public void testIncompleteLineIsCarriedOver() {
+        QueueingMessagePipe pipe = new QueueingMessagePipe();
+        FeedingUiThreadConsole console = new FeedingUiThreadConsole(pipe, 16, 1024, false, true);
+
+        byte[] bytes = "^1first ^2part, second part\nnext".getBytes(charset);
+        feed(console, bytes, 0, 12);
+        // Nothing is posted until a line gets completed
+        assertEquals(0, pipe.messages.size());
+        feed(console, bytes, 12, bytes.length - 12);
+        assertEquals(1, pipe.messages.size());
+        pipe.runAll();
+        assertEquals(Arrays.asList("[1:first ][2:part, second part]"), describeLines(console.getBuffer()));
+
+        bytes = " line\n".getBytes(charset);
+        feed(console, bytes, 0, bytes.length);
+        pipe.runAll();
+        assertEquals("next line", console.getBuffer().front().toString());
+    }
+
+    public void testBatchesAreRecycled() {
+        QueueingMessagePipe pipe = new QueueingMessagePipe();
+        FeedingUiThreadConsole console = new FeedingUiThreadConsole(pipe, 16, 1024, false, true);
+
+        byte[] bytes = "first\nsecond\n".getBytes(charset);
+        feed(console, bytes, 0, bytes.length);
+        ConsoleLinesBatch batch = (ConsoleLinesBatch)pipe.messages.get(0);
+        assertEquals(2, batch.numLines);
+        pipe.runAll();
+        assertTrue(batch.isInPool);
+        assertEquals(1, batch.pool.numFreeObjects());
+
+        feed(console, bytes, 0, bytes.length);
+        assertSame(batch, pipe.messages.get(0));
+        pipe.runAll();
+        assertEquals(4, console.getBuffer().size());
+    }
+
+    public void testBatchGrowth() {
+        ConsoleLinesBatchesPool pool = new ConsoleLinesBatchesPool(1);
+        ConsoleLinesBatch batch = pool.acquire();
+        RingLinesBuffer buffer = new RingLinesBuffer(4);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 300; ++i) {
+            sb.append("^").append(i % 10).append("token");
+        }
+        buffer.appendLinePart(sb.toString());
+        buffer.completeLineBuilding();
+        CharArrayView charsView = new CharArrayView();
+        BufferLineTokensView tokensView = new BufferLineTokensView();
+        buffer.front(charsView, tokensView);
+        for (int i = 0; i < 40; ++i) {
+            batch.addLine(charsView, tokensView);
+        }
+        assertEquals(40, batch.numLines);
+        assertEquals(40 * charsView.getLength(), batch.charsLength);
+        assertEquals(40 * tokensView.getLength(), batch.tokensLength);
+
+        RingLinesBuffer target = new RingLinesBuffer(4);
+        target.appendParsedLine(batch.chars, batch.lineBounds[4 * 39 + 0], batch.lineBounds[4 * 39 + 1],
+                                batch.tokens, batch.lineBounds[4 * 39 + 2], batch.lineBounds[4 * 39 + 3]);
+        target.completeLineBuilding();
+        assertEquals(describeLines(buffer), describeLines(target));
+
+        // A pooled batch does not retain arrays that have grown for a burst of output
+        int maxPooledCharsLength = ConsoleLinesBatch.MAX_POOLED_ARRAYS_GROWTH * new ConsoleLinesBatch().chars.length;
+        assertTrue(batch.chars.length > maxPooledCharsLength);
+        batch.recycle();
+        assertSame(batch, pool.acquire());
+        assertTrue(batch.chars.length <= maxPooledCharsLength);
+        assertTrue(batch.tokens.length <= ConsoleLinesBatch.MAX_POOLED_ARRAYS_GROWTH * new ConsoleLinesBatch().tokens.length);
+        assertEquals(0, batch.numLines);
+    }
+}
@@ -0,0 +1,56 @@
+package com.github.qfusion.fakeclient;
+
+import junit.framework.TestCase;
+
+public class FeedingUiThreadServerListListenerTest extends TestCase {
+
+    public void testScoreboardBuffersPoolOfEndpointIsNotReplaced() {
+        QueueingMessagePipe pipe = new QueueingMessagePipe();
+        RecordingPipeEndpoint endpoint = new RecordingPipeEndpoint();
+
+        FeedingUiThreadServerListListener pooling = new FeedingUiThreadServerListListener(pipe, endpoint, 0, 4);
+        ScoreboardBuffersPool pool = endpoint.scoreboardBuffersPool;
+        assertNotNull(pool);
+        assertSame(pool, pooling.scoreboardBuffersPool);
+
+        // A listener without pooling must not reset the pool of the endpoint
+        FeedingUiThreadServerListListener nonPooling = new FeedingUiThreadServerListListener(pipe, endpoint, 0, 0);
+        assertNull(nonPooling.scoreboardBuffersPool);
+        assertSame(pool, endpoint.scoreboardBuffersPool);
+
+        // Another pooling listener shares the existing pool
+        FeedingUiThreadServerListListener anotherPooling = new FeedingUiThreadServerListListener(pipe, endpoint, 0, 8);
+        assertSame(pool, anotherPooling.scoreboardBuffersPool);
+        assertSame(pool, endpoint.scoreboardBuffersPool);
+    }
+
+    public void testRemovedServerDataIsReadableInCallbacks() {
+        final ScoreboardData[] removedData = new ScoreboardData[1];
+        final char[][] bufferSeenOnRemoval = new char[1][];
+        RecordingPipeEndpoint endpoint = new RecordingPipeEndpoint() {
+            @Override
+            protected void deleteScoreboardData(int instanceId) {
+                removedData[0] = scoreboards.get(instanceId);
+                super.deleteScoreboardData(instanceId);
+            }
+
+            @Override
+            public void onServerRemoved(int instanceId) {
+                bufferSeenOnRemoval[0] = removedData[0].buffer;
+                // The buffer must not be in the pool yet
+                assertEquals(0, scoreboardBuffersPool.numFreeBuffers());
+                super.onServerRemoved(instanceId);
+            }
+        };
+        QueueingMessagePipe pipe = new QueueingMessagePipe();
+        FeedingUiThreadServerListListener listener = new FeedingUiThreadServerListListener(pipe, endpoint, 0, 4);
+        listener.onServerAdded(1);
+        listener.onServerRemoved(1);
+        pipe.runAll();
+
+        assertNotNull(bufferSeenOnRemoval[0]);
+        assertNull(removedData[0].buffer);
+        assertEquals(1, endpoint.scoreboardBuffersPool.numFreeBuffers());
+        assertSame(bufferSeenOnRemoval[0], endpoint.scoreboardBuffersPool.tryAcquire(0));
+    }
+}
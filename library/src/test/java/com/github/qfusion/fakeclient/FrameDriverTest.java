@@ -0,0 +1,132 @@
+package com.github.qfusion.fakeclient;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class FrameDriverTest extends TestCase {
+
+    private static class CountingFrameRunner implements FrameDriver.FrameRunner {
+        final AtomicInteger numFrames = new AtomicInteger();
+        volatile Thread frameThread;
+
+        @Override
+        public void runFrame(int maxMillis) {
+            frameThread = Thread.currentThread();
+            numFrames.incrementAndGet();
+        }
+    }
+
+    private static void awaitFrames(AtomicInteger numFrames, int expectedNumFrames) throws InterruptedException {
+        long deadline = java.lang.System.currentTimeMillis() + 5000;
+        while (numFrames.get() < expectedNumFrames && java.lang.System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertTrue(numFrames.get() >= expectedNumFrames);
+    }
+
+    public void testIntervalAdaptation() {
+        FrameDriver driver = new FrameDriver(new CountingFrameRunner(), 16, 4, 100);
+        final long millis = TimeUnit.MILLISECONDS.toNanos(1);
+
+        // Idle frames double the interval up to the maximal one
+        assertEquals(8 * millis, driver.nextIntervalNanos(4 * millis, 0, false));
+        assertEquals(100 * millis, driver.nextIntervalNanos(64 * millis, 0, false));
+        assertEquals(100 * millis, driver.nextIntervalNanos(100 * millis, 0, false));
+        // Busy frames and pending work reset the interval to the minimal one
+        assertEquals(4 * millis, driver.nextIntervalNanos(100 * millis, 8 * millis, false));
+        assertEquals(4 * millis, driver.nextIntervalNanos(100 * millis, 0, true));
+    }
+
+    public void testFramesAreRunInSingleThread() throws InterruptedException {
+        CountingFrameRunner runner = new CountingFrameRunner();
+        FrameDriver driver = new FrameDriver(runner, 0, 0, 1);
+        driver.start();
+        awaitFrames(runner.numFrames, 10);
+        Thread frameThread = runner.frameThread;
+        awaitFrames(runner.numFrames, 20);
+        assertSame(frameThread, runner.frameThread);
+        assertNotSame(Thread.currentThread(), frameThread);
+        driver.stop();
+
+        assertFalse(driver.isRunning());
+        assertFalse(frameThread.isAlive());
+        assertEquals(runner.numFrames.get(), driver.getNumFrames());
+    }
+
+    public void testPauseAndResume() throws InterruptedException {
+        CountingFrameRunner runner = new CountingFrameRunner();
+        FrameDriver driver = new FrameDriver(runner, 0, 0, 1);
+        driver.start();
+        awaitFrames(runner.numFrames, 1);
+
+        driver.pause();
+        // Let a frame that might be in progress complete
+        Thread.sleep(20);
+        int numFramesWhenPaused = runner.numFrames.get();
+        Thread.sleep(50);
+        assertEquals(numFramesWhenPaused, runner.numFrames.get());
+        assertTrue(driver.isRunning());
+
+        driver.resume();
+        awaitFrames(runner.numFrames, numFramesWhenPaused + 1);
+        driver.stop();
+    }
+
+    public void testWakeUpRunsFrameBeforeInterval() throws InterruptedException {
+        CountingFrameRunner runner = new CountingFrameRunner();
+        // Make the interval long enough to be sure frames are run only due to wakeups
+        FrameDriver driver = new FrameDriver(runner, 0, 60000, 60000);
+        driver.start();
+        awaitFrames(runner.numFrames, 1);
+
+        driver.wakeUp();
+        awaitFrames(runner.numFrames, 2);
+        driver.stop();
+    }
+
+    public void testInterruptionStopsDriver() throws InterruptedException {
+        final AtomicInteger numFrames = new AtomicInteger();
+        FrameDriver driver = new FrameDriver(new FrameDriver.FrameRunner() {
+            @Override
+            public void runFrame(int maxMillis) {
+                if (numFrames.incrementAndGet() == 3) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, 0, 50, 50);
+        driver.start();
+        awaitFrames(numFrames, 3);
+
+        long deadline = java.lang.System.currentTimeMillis() + 5000;
+        while (driver.isRunning() && java.lang.System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        // Frames must not be run back to back while the interruption status is set
+        assertFalse(driver.isRunning());
+        assertEquals(3, numFrames.get());
+        driver.stop();
+    }
+
+    public void testStopOfPausedDriver() {
+        CountingFrameRunner runner = new CountingFrameRunner();
+        FrameDriver driver = new FrameDriver(runner, 0, 0, 1);
+        driver.pause();
+        driver.start();
+        driver.stop();
+        assertFalse(driver.isRunning());
+        assertEquals(0, runner.numFrames.get());
+    }
+
+    public void testCannotBeRestarted() {
+        FrameDriver driver = new FrameDriver(new CountingFrameRunner(), 0, 0, 1);
+        driver.start();
+        driver.stop();
+        try {
+            driver.start();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+    }
+}
@@ -7,6 +7,7 @@ import junit.framework.TestCase;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class IngoingBytesProcessorTest extends TestCase {
@@ -173,4 +174,125 @@ public class IngoingBytesProcessorTest extends TestCase {
         assertEquals(testLines[2], actualLines.get(1));
         assertEquals(testLines[3], actualLines.get(2));
     }
+
+    // Non-ASCII characters are escaped to avoid depending on the source encoding
+    private static final String nonAsciiLine = "Pr\u00e9sent \u0444\u0440\u0430\u0433 \u20ac \ud83d\ude00 gg";
+
+    public void testNonAsciiInput() {
+        RingLinesBuffer linesBuffer = new RingLinesBuffer(2);
+        IngoingBytesProcessor processor = new IngoingBytesProcessor(linesBuffer);
+        processor.onNewBufferData(asBuffer(nonAsciiLine + "\n"));
+        assertEquals(1, linesBuffer.size());
+        assertEquals(nonAsciiLine, linesBuffer.front().toString());
+    }
+
+    public void testByteWiseNonAsciiInput() {
+        RingLinesBuffer linesBuffer = new RingLinesBuffer(2);
+        IngoingBytesProcessor processor = new IngoingBytesProcessor(linesBuffer);
+        // Multi-byte sequences get split between chunks
+        ByteBuffer direct = ByteBuffer.allocateDirect(1);
+        for (byte b: (nonAsciiLine + "\n").getBytes(charset)) {
+            direct.clear();
+            direct.put(b);
+            direct.flip();
+            processor.onNewBufferData(direct);
+        }
+        assertEquals(1, linesBuffer.size());
+        assertEquals(nonAsciiLine, linesBuffer.front().toString());
+    }
+
+    public void testTruncatedSequenceBeforeNewline() {
+        RingLinesBuffer linesBuffer = new RingLinesBuffer(2);
+        IngoingBytesProcessor processor = new IngoingBytesProcessor(linesBuffer);
+        processor.onNewBufferData(ByteBuffer.wrap(new byte[] { 'a', (byte)0xE2, (byte)0x82 }));
+        assertEquals(0, linesBuffer.size());
+        processor.onNewBufferData(ByteBuffer.wrap(new byte[] { '\n', 'b', '\n' }));
+        assertEquals(2, linesBuffer.size());
+        assertEquals("a\ufffd", linesBuffer.back().toString());
+        assertEquals("b", linesBuffer.front().toString());
+    }
+
+    public void testByteArrayInputWithOffset() {
+        RingLinesBuffer linesBuffer = new RingLinesBuffer(2);
+        IngoingBytesProcessor processor = new IngoingBytesProcessor(linesBuffer);
+        ByteBuffer buffer = asBuffer(nonAsciiLine + "\n");
+        processor.onNewBufferData(buffer.array(), buffer.position(), buffer.remaining());
+        assertEquals(1, linesBuffer.size());
+        assertEquals(nonAsciiLine, linesBuffer.front().toString());
+    }
+
+    public void testIndexOfNewline() {
+        byte[] bytes = new byte[40];
+        Arrays.fill(bytes, (byte)'a');
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        assertEquals(bytes.length, IngoingBytesProcessor.indexOfNewline(buffer, 0, bytes.length));
+        // Check every position against every word alignment
+        for (int i = 0; i < bytes.length; ++i) {
+            bytes[i] = '\n';
+            for (int from = 0; from <= i; ++from) {
+                assertEquals(i, IngoingBytesProcessor.indexOfNewline(buffer, from, bytes.length));
+            }
+            assertEquals(i, IngoingBytesProcessor.indexOfNewline(buffer, 0, i));
+            // Make sure bytes that are close to the newline do not produce false positives
+            bytes[i] = '\n' + 1;
+            assertEquals(bytes.length, IngoingBytesProcessor.indexOfNewline(buffer, 0, bytes.length));
+            bytes[i] = (byte)0x8A;
+            assertEquals(bytes.length, IngoingBytesProcessor.indexOfNewline(buffer, 0, bytes.length));
+            bytes[i] = 'a';
+        }
+    }
+
+    public void testAsciiPrefixLength() {
+        byte[] bytes = new byte[40];
+        Arrays.fill(bytes, (byte)0x7F);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes);
+        assertEquals(bytes.length, IngoingBytesProcessor.asciiPrefixLength(buffer, 0, bytes.length));
+        for (int i = 0; i < bytes.length; ++i) {
+            buffer.put(i, (byte)0x80);
+            for (int from = 0; from <= i; ++from) {
+                assertEquals(i - from, IngoingBytesProcessor.asciiPrefixLength(buffer, from, bytes.length));
+            }
+            buffer.put(i, (byte)0x7F);
+        }
+    }
+
+    public void testMixedAsciiAndNonAsciiLines() {
+        RingLinesBuffer linesBuffer = new RingLinesBuffer(8);
+        IngoingBytesProcessor processor = new IngoingBytesProcessor(linesBuffer);
+        String[] lines = { testLines[0], nonAsciiLine, testLines[1] + nonAsciiLine, nonAsciiLine + testLines[2] };
+        StringBuilder sb = new StringBuilder();
+        for (String line: lines) {
+            sb.append(line).append('\n');
+        }
+        processor.onNewBufferData(asBuffer(sb.toString()));
+        assertEquals(Arrays.asList(lines), ringBufferToList(linesBuffer));
+    }
+
+    public void testByteWiseColoredNonAsciiInput() {
+        RingLinesBuffer linesBuffer = new RingLinesBuffer(2);
+        IngoingBytesProcessor processor = new IngoingBytesProcessor(linesBuffer);
+        String line = "^1\u0444\u0440^^\u0430^2\u0433^";
+        ByteBuffer direct = ByteBuffer.allocateDirect(1);
+        for (byte b: (line + "\n").getBytes(charset)) {
+            direct.clear();
+            direct.put(b);
+            direct.flip();
+            processor.onNewBufferData(direct);
+        }
+        assertEquals(1, linesBuffer.size());
+        assertEquals("\u0444\u0440^\u0430\u0433^", linesBuffer.front().toString());
+    }
+
+    public void testLazilyParsedInput() {
+        RingLinesBuffer linesBuffer = new RingLinesBuffer(4);
+        linesBuffer.setTokensParsingLazy(true);
+        IngoingBytesProcessor processor = new IngoingBytesProcessor(linesBuffer);
+        // Check both ASCII and decoded parts of lines
+        processor.onNewBufferData(asBuffer("^1\u0444\u0440^^\u0430^2\u0433^\n^3ascii^^ ^4line\n"));
+        assertEquals(2, linesBuffer.size());
+        assertEquals(RingLinesBuffer.UNPARSED_LINE, linesBuffer.tokenColors[linesBuffer.backIndex]);
+        assertEquals("\u0444\u0440^\u0430\u0433^", linesBuffer.back().toString());
+        assertEquals("ascii^ line", linesBuffer.front().toString());
+    }
 }
@@ -0,0 +1,153 @@
+package com.github.qfusion.fakeclient;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class LinesSearchIndexTest extends TestCase {
+    private static final String[] words = {
+        "Sm0ke", "vitalik", "was", "railed", "by", "entered", "the", "game", "ERROR", "error:", "Failed",
+        "to", "load", "map", "wdm2", "wca1", "^1red", "^2green", "^^", "a", "ab", "\u043f\u0440\u0438\u0432\u0435\u0442"
+    };
+
+    private static String randomLine(Random random) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = random.nextInt(8); i > 0; --i) {
+            sb.append(words[random.nextInt(words.length)]);
+            if (random.nextBoolean()) {
+                sb.append(' ');
+            }
+        }
+        return sb.toString();
+    }
+
+    private static long[] bruteForceSearch(RingLinesBuffer buffer, String query) {
+        List<Long> matches = new ArrayList<Long>();
+        CharArrayView view = new CharArrayView();
+        for (int i = 0; i < buffer.size(); ++i) {
+            if (buffer.get(i, view).toString().toLowerCase().contains(query.toLowerCase())) {
+                matches.add(buffer.sequenceNumberOf(i));
+            }
+        }
+        long[] result = new long[matches.size()];
+        for (int i = 0; i < result.length; ++i) {
+            result[i] = matches.get(i);
+        }
+        return result;
+    }
+
+    private static final String[] queries = {
+        "", "a", "ab", "sm0", "SM0KE", "smoke", "error", "Error:", "wdm2 ", "red", "^^", "the game",
+        "\u041f\u0420\u0418", "load map", "railed by Sm0ke", "nothing like this"
+    };
+
+    private void checkSearch(RingLinesBuffer buffer) {
+        Random random = new Random(1);
+        for (int i = 0; i < 2000; ++i) {
+            buffer.appendLinePart(randomLine(random));
+            buffer.completeLineBuilding();
+            if (i % 97 == 0) {
+                for (String query: queries) {
+                    long[] expected = bruteForceSearch(buffer, query);
+                    assertEquals(query, Arrays.toString(expected), Arrays.toString(buffer.search(query)));
+                }
+            }
+            if (i == 1000) {
+                buffer.clear();
+            }
+        }
+    }
+
+    public void testSearchWithoutIndex() {
+        checkSearch(new RingLinesBuffer(64));
+    }
+
+    public void testSearchWithIndex() {
+        RingLinesBuffer buffer = new RingLinesBuffer(64);
+        buffer.setSearchIndexEnabled(true);
+        checkSearch(buffer);
+    }
+
+    public void testSearchWithIndexInStores() {
+        RingLinesBuffer buffer = new RingLinesBuffer(RingLinesStore.allocateHeap(64, 1024, 128));
+        buffer.setSearchIndexEnabled(true);
+        checkSearch(buffer);
+
+        buffer = new RingLinesBuffer(RingLinesStore.allocateDirect(64, 1024, 128));
+        buffer.setSearchIndexEnabled(true);
+        checkSearch(buffer);
+    }
+
+    public void testSearchWithIndexAndLazyParsing() {
+        RingLinesBuffer buffer = new RingLinesBuffer(64);
+        buffer.setTokensParsingLazy(true);
+        buffer.setSearchIndexEnabled(true);
+        checkSearch(buffer);
+    }
+
+    public void testIndexDoesNotForceLazyParsing() {
+        RingLinesBuffer buffer = new RingLinesBuffer(4);
+        buffer.setTokensParsingLazy(true);
+        buffer.setSearchIndexEnabled(true);
+        for (int i = 0; i < 6; ++i) {
+            buffer.appendLinePart("^1Player" + i + "^7 connected");
+            buffer.completeLineBuilding();
+            assertEquals(RingLinesBuffer.UNPARSED_LINE, buffer.tokenColors[buffer.frontIndex]);
+        }
+        // Retrieved lines get indexed on parsing
+        assertEquals("Player2 connected", buffer.get(0, new CharArrayView()).toString());
+        // A search parses and indexes the rest of present lines
+        assertEquals("[2, 3, 4, 5]", Arrays.toString(buffer.search("player")));
+        assertEquals("[4]", Arrays.toString(buffer.search("player4 conn")));
+        assertEquals("[]", Arrays.toString(buffer.search("^7")));
+
+        buffer.appendLinePart("^2another one");
+        buffer.completeLineBuilding();
+        assertEquals("[3, 4, 5]", Arrays.toString(buffer.search("connected")));
+        assertEquals("[6]", Arrays.toString(buffer.search("another")));
+    }
+
+    public void testIndexEnabledForPresentLines() {
+        RingLinesBuffer buffer = new RingLinesBuffer(4);
+        for (String line: new String[] { "first line", "^1Player^7 connected", "third line" }) {
+            buffer.appendLinePart(line);
+            buffer.completeLineBuilding();
+        }
+        buffer.setSearchIndexEnabled(true);
+        assertTrue(buffer.isSearchIndexEnabled());
+        assertEquals("[0, 2]", Arrays.toString(buffer.search("LINE")));
+        assertEquals("[1]", Arrays.toString(buffer.search("player connected")));
+
+        // Check whether lines get removed from the index
+        for (int i = 0; i < 4; ++i) {
+            buffer.appendLinePart("another one");
+            buffer.completeLineBuilding();
+        }
+        assertEquals("[]", Arrays.toString(buffer.search("line")));
+        assertEquals("[3, 4, 5, 6]", Arrays.toString(buffer.search("another")));
+
+        buffer.setSearchIndexEnabled(false);
+        assertFalse(buffer.isSearchIndexEnabled());
+        assertEquals("[3, 4, 5, 6]", Arrays.toString(buffer.search("another")));
+    }
+
+    public void testTrigramsOfRemovedLinesAreReleased() {
+        LinesSearchIndex index = new LinesSearchIndex();
+        char[][] lines = new char[2000][];
+        Random random = new Random(1);
+        for (int i = 0; i < lines.length; ++i) {
+            lines[i] = randomLine(random).toCharArray();
+            index.addLine(i, lines[i], 0, lines[i].length);
+        }
+        assertTrue(index.numTrigrams() > 0);
+        for (int i = 0; i < lines.length; ++i) {
+            index.removeLine(i, lines[i], 0, lines[i].length);
+        }
+        assertEquals(0, index.numTrigrams());
+        assertEquals(0, index.findCandidates("sm0").length);
+        assertNull(index.findCandidates("sm"));
+    }
+}
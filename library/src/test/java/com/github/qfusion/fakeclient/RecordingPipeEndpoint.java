@@ -0,0 +1,71 @@
+package com.github.qfusion.fakeclient;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A {@link ServerListListenerPipeEndpoint} that keeps scoreboard data in a map
+ * and records all received events in a readable form (e.g. "added 1", "updated 2", "batch end").
+ */
+class RecordingPipeEndpoint extends ServerListListenerPipeEndpoint {
+    final HashMap<Integer, ScoreboardData> scoreboards = new HashMap<Integer, ScoreboardData>();
+    final List<String> events = new ArrayList<String>();
+
+    @Override
+    public void onServerAdded(int instanceId) {
+        events.add("added " + instanceId);
+    }
+
+    @Override
+    public void onServerUpdated(int instanceId, int serverInfoUpdateMask) {
+        events.add("updated " + instanceId);
+    }
+
+    @Override
+    public void onServerRemoved(int instanceId) {
+        events.add("removed " + instanceId);
+    }
+
+    @Override
+    protected void onUpdatesBatchEnd() {
+        events.add("batch end");
+    }
+
+    @Override
+    protected ScoreboardData newScoreboardData(int instanceId) {
+        ScoreboardData scoreboardData = new ScoreboardData();
+        scoreboards.put(instanceId, scoreboardData);
+        return scoreboardData;
+    }
+
+    @Override
+    protected ScoreboardData findScoreboardData(int instanceId) {
+        return scoreboards.get(instanceId);
+    }
+
+    @Override
+    protected void deleteScoreboardData(int instanceId) {
+        scoreboards.remove(instanceId);
+    }
+}
+
+/**
+ * A {@link MessagePipe} that queues posted messages until {@link QueueingMessagePipe#runAll()} is called.
+ */
+class QueueingMessagePipe implements MessagePipe {
+    final List<Runnable> messages = new ArrayList<Runnable>();
+
+    @Override
+    public void post(Runnable runnable) {
+        messages.add(runnable);
+    }
+
+    void runAll() {
+        // Allow messages to be posted while running
+        for (int i = 0; i < messages.size(); ++i) {
+            messages.get(i).run();
+        }
+        messages.clear();
+    }
+}
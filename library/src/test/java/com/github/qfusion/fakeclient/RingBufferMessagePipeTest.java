@@ -0,0 +1,225 @@
+package com.github.qfusion.fakeclient;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class RingBufferMessagePipeTest extends TestCase {
+
+    private static class RecordingRunnable implements Runnable {
+        final List<Integer> records;
+        final int value;
+
+        RecordingRunnable(List<Integer> records, int value) {
+            this.records = records;
+            this.value = value;
+        }
+
+        @Override
+        public void run() {
+            records.add(value);
+        }
+    }
+
+    private static void postValues(RingBufferMessagePipe pipe, List<Integer> records, int from, int to) {
+        for (int i = from; i < to; ++i) {
+            pipe.post(new RecordingRunnable(records, i));
+        }
+    }
+
+    public void testCapacityIsRoundedUp() {
+        assertEquals(8, new RingBufferMessagePipe(5, RingBufferMessagePipe.OverflowPolicy.BLOCK).capacity());
+        assertEquals(8, new RingBufferMessagePipe(8, RingBufferMessagePipe.OverflowPolicy.BLOCK).capacity());
+        assertEquals(1, new RingBufferMessagePipe(1, RingBufferMessagePipe.OverflowPolicy.BLOCK).capacity());
+    }
+
+    public void testPostAndDrain() {
+        RingBufferMessagePipe pipe = new RingBufferMessagePipe(4, RingBufferMessagePipe.OverflowPolicy.BLOCK);
+        List<Integer> records = new ArrayList<Integer>();
+        assertTrue(pipe.isEmpty());
+        assertEquals(0, pipe.drain());
+
+        // Wrap around the buffer several times
+        for (int i = 0; i < 5; ++i) {
+            postValues(pipe, records, 3 * i, 3 * i + 3);
+            assertFalse(pipe.isEmpty());
+            assertEquals(3, pipe.drain());
+            assertTrue(pipe.isEmpty());
+        }
+
+        assertEquals(15, records.size());
+        for (int i = 0; i < 15; ++i) {
+            assertEquals(i, (int)records.get(i));
+        }
+    }
+
+    public void testDropOldest() {
+        RingBufferMessagePipe pipe = new RingBufferMessagePipe(4, RingBufferMessagePipe.OverflowPolicy.DROP_OLDEST);
+        List<Integer> records = new ArrayList<Integer>();
+        postValues(pipe, records, 0, 7);
+        assertEquals(3, pipe.getNumDroppedMessages());
+        assertEquals(4, pipe.drain());
+        assertEquals(Arrays.asList(3, 4, 5, 6), records);
+    }
+
+    public void testDropOldestReleasesConsumedMessages() {
+        RingBufferMessagePipe pipe = new RingBufferMessagePipe(4, RingBufferMessagePipe.OverflowPolicy.DROP_OLDEST);
+        List<Integer> records = new ArrayList<Integer>();
+        postValues(pipe, records, 0, 6);
+        assertEquals(4, pipe.drain());
+        for (int i = 0; i < pipe.capacity(); ++i) {
+            assertNull(pipe.slots.get(i));
+        }
+        // Check whether released slots are reused properly
+        postValues(pipe, records, 6, 13);
+        assertEquals(4, pipe.drain());
+        assertEquals(Arrays.asList(2, 3, 4, 5, 9, 10, 11, 12), records);
+    }
+
+    public void testInterruptedBlockingProducerDropsMessage() throws InterruptedException {
+        final RingBufferMessagePipe pipe = new RingBufferMessagePipe(1, RingBufferMessagePipe.OverflowPolicy.BLOCK);
+        final List<Integer> records = new ArrayList<Integer>();
+        final boolean[] wasInterrupted = new boolean[1];
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                // The consumer never drains the pipe, so the second post blocks
+                postValues(pipe, records, 0, 2);
+                wasInterrupted[0] = Thread.currentThread().isInterrupted();
+            }
+        };
+        producer.start();
+        Thread.sleep(50);
+        assertTrue(producer.isAlive());
+
+        producer.interrupt();
+        producer.join(5000);
+        assertFalse(producer.isAlive());
+        assertTrue(wasInterrupted[0]);
+        assertEquals(1, pipe.getNumDroppedMessages());
+        assertEquals(1, pipe.drain());
+        assertEquals(Arrays.asList(0), records);
+    }
+
+    public void testSpill() {
+        RingBufferMessagePipe pipe = new RingBufferMessagePipe(4, RingBufferMessagePipe.OverflowPolicy.SPILL);
+        List<Integer> records = new ArrayList<Integer>();
+        postValues(pipe, records, 0, 10);
+        assertEquals(0, pipe.getNumDroppedMessages());
+        assertEquals(10, pipe.drain());
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), records);
+
+        // Make sure the buffer is used again after draining overflown messages
+        postValues(pipe, records, 10, 12);
+        assertEquals(2, pipe.drain());
+        assertEquals(12, records.size());
+        assertEquals(11, (int)records.get(11));
+    }
+
+    public void testBoundedSpillListBlocksProducer() throws InterruptedException {
+        final RingBufferMessagePipe pipe =
+            new RingBufferMessagePipe(2, RingBufferMessagePipe.OverflowPolicy.SPILL, null, 2);
+        final List<Integer> records = new ArrayList<Integer>();
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                // Two messages are buffered, two are spilled, the fifth post blocks
+                postValues(pipe, records, 0, 5);
+            }
+        };
+        producer.start();
+        Thread.sleep(50);
+        assertTrue(producer.isAlive());
+
+        producer.interrupt();
+        producer.join(5000);
+        assertFalse(producer.isAlive());
+        assertEquals(1, pipe.getNumDroppedMessages());
+        assertEquals(4, pipe.drain());
+        assertEquals(Arrays.asList(0, 1, 2, 3), records);
+    }
+
+    public void testWakeupActionIsCalledOncePerDrain() {
+        final int[] numWakeups = new int[1];
+        Runnable wakeupAction = new Runnable() {
+            @Override
+            public void run() {
+                numWakeups[0]++;
+            }
+        };
+        RingBufferMessagePipe pipe =
+            new RingBufferMessagePipe(16, RingBufferMessagePipe.OverflowPolicy.BLOCK, wakeupAction);
+        List<Integer> records = new ArrayList<Integer>();
+
+        postValues(pipe, records, 0, 5);
+        assertEquals(1, numWakeups[0]);
+        pipe.drain();
+        postValues(pipe, records, 5, 10);
+        assertEquals(2, numWakeups[0]);
+        pipe.drain();
+        assertEquals(10, records.size());
+    }
+
+    public void testBlockingProducerAndWaitingConsumer() throws InterruptedException {
+        runProducerAndConsumer(RingBufferMessagePipe.OverflowPolicy.BLOCK);
+    }
+
+    public void testSpillingProducerAndWaitingConsumer() throws InterruptedException {
+        runProducerAndConsumer(RingBufferMessagePipe.OverflowPolicy.SPILL);
+    }
+
+    public void testDroppingProducerAndConsumer() throws InterruptedException {
+        final RingBufferMessagePipe pipe = new RingBufferMessagePipe(16, RingBufferMessagePipe.OverflowPolicy.DROP_OLDEST);
+        // Accessed only by the consumer thread
+        final List<Integer> records = new ArrayList<Integer>();
+        final int numMessages = 100000;
+
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                postValues(pipe, records, 0, numMessages);
+            }
+        };
+        producer.start();
+        while (producer.isAlive()) {
+            pipe.drain();
+        }
+        producer.join();
+        pipe.drain();
+
+        // Messages must not be duplicated or reordered, the last one must not be dropped
+        assertEquals(numMessages, records.size() + pipe.getNumDroppedMessages());
+        for (int i = 1; i < records.size(); ++i) {
+            assertTrue(records.get(i - 1) < records.get(i));
+        }
+        assertEquals(numMessages - 1, (int)records.get(records.size() - 1));
+    }
+
+    private void runProducerAndConsumer(RingBufferMessagePipe.OverflowPolicy policy) throws InterruptedException {
+        final RingBufferMessagePipe pipe = new RingBufferMessagePipe(64, policy);
+        // Accessed only by the consumer thread
+        final List<Integer> records = new ArrayList<Integer>();
+        final int numMessages = 100000;
+
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                postValues(pipe, records, 0, numMessages);
+            }
+        };
+        producer.start();
+
+        long deadline = java.lang.System.currentTimeMillis() + 10000;
+        while (records.size() < numMessages && java.lang.System.currentTimeMillis() < deadline) {
+            pipe.awaitAndDrain(100);
+        }
+        producer.join();
+
+        assertEquals(numMessages, records.size());
+        for (int i = 0; i < numMessages; ++i) {
+            assertEquals(i, (int)records.get(i));
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package com.github.qfusion.fakeclient;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class RingLinesBufferSnapshotTest extends TestCase {
+    private static String lineOf(long sequenceNumber) {
+        // Make lengths and numbers of tokens vary
+        StringBuilder sb = new StringBuilder();
+        sb.append("^").append(sequenceNumber % 10).append("line #").append(sequenceNumber);
+        for (long i = sequenceNumber % 4; i > 0; --i) {
+            sb.append(" ^").append(i).append("token");
+        }
+        return sb.toString();
+    }
+
+    private static String strippedLineOf(long sequenceNumber) {
+        return lineOf(sequenceNumber).replaceAll("\\^[0-9]", "");
+    }
+
+    private static void addLine(RingLinesBuffer buffer, long sequenceNumber) {
+        buffer.appendLinePart(lineOf(sequenceNumber));
+        buffer.completeLineBuilding();
+    }
+
+    private static int numTokensOf(long sequenceNumber) {
+        return 1 + (int)(sequenceNumber % 4);
+    }
+
+    private void checkRemovedLinesDetection(RingLinesBuffer buffer) {
+        for (int i = 0; i < 3; ++i) {
+            addLine(buffer, i);
+        }
+
+        RingLinesBuffer.Snapshot snapshot = buffer.newSnapshot();
+        assertEquals(0, snapshot.backSequenceNumber());
+        assertEquals(3, snapshot.nextSequenceNumber());
+        assertEquals(3, snapshot.size());
+
+        CharArrayView charsView = new CharArrayView();
+        BufferLineTokensView tokensView = new BufferLineTokensView();
+        for (long i = 0; i < 3; ++i) {
+            assertTrue(snapshot.read(i, charsView, tokensView));
+            assertEquals(strippedLineOf(i), charsView.toString());
+            assertEquals(2 * numTokensOf(i), tokensView.getLength());
+        }
+
+        // Lines that are added after the snapshot has been taken are not visible
+        addLine(buffer, 3);
+        addLine(buffer, 4);
+        assertEquals(3, snapshot.nextSequenceNumber());
+        // Lines that have been removed since the snapshot has been taken are detected
+        assertEquals(1, snapshot.firstAvailableSequenceNumber());
+        assertFalse(snapshot.read(0, charsView, tokensView));
+        assertTrue(snapshot.read(1, charsView, tokensView));
+        assertEquals(strippedLineOf(1), charsView.toString());
+        try {
+            snapshot.read(3, charsView, tokensView);
+            fail();
+        } catch (IndexOutOfBoundsException expected) {}
+
+        snapshot.update();
+        assertEquals(1, snapshot.backSequenceNumber());
+        assertEquals(5, snapshot.nextSequenceNumber());
+        assertTrue(snapshot.read(4, charsView, tokensView));
+        assertEquals(strippedLineOf(4), charsView.toString());
+
+        buffer.clear();
+        assertFalse(snapshot.read(4, charsView, tokensView));
+        addLine(buffer, 5);
+        snapshot.update();
+        assertEquals(5, snapshot.backSequenceNumber());
+        assertTrue(snapshot.read(5, charsView, tokensView));
+        assertEquals(strippedLineOf(5), charsView.toString());
+    }
+
+    public void testRemovedLinesDetection() {
+        checkRemovedLinesDetection(new RingLinesBuffer(4));
+        checkRemovedLinesDetection(new RingLinesBuffer(RingLinesStore.allocateHeap(4, 1024, 64)));
+        checkRemovedLinesDetection(new RingLinesBuffer(RingLinesStore.allocateDirect(4, 1024, 64)));
+    }
+
+    public void testLazyTokensParsingIsNotSupported() {
+        RingLinesBuffer buffer = new RingLinesBuffer(4);
+        buffer.setTokensParsingLazy(true);
+        try {
+            buffer.newSnapshot();
+            fail();
+        } catch (IllegalStateException expected) {}
+    }
+
+    public void testLazyTokensParsingCanNotBeEnabledForSnapshots() {
+        RingLinesBuffer buffer = new RingLinesBuffer(4);
+        buffer.newSnapshot();
+        try {
+            buffer.setTokensParsingLazy(true);
+            fail();
+        } catch (IllegalStateException expected) {}
+        assertFalse(buffer.isTokensParsingLazy());
+        // Disabling it is still allowed
+        buffer.setTokensParsingLazy(false);
+    }
+
+    public void testReadLinesAreNotOverwrittenAfterClear() {
+        RingLinesBuffer buffer = new RingLinesBuffer(4);
+        addLine(buffer, 0);
+        addLine(buffer, 1);
+        RingLinesBuffer.Snapshot snapshot = buffer.newSnapshot();
+        CharArrayView charsView = new CharArrayView();
+        BufferLineTokensView tokensView = new BufferLineTokensView();
+        assertTrue(snapshot.read(0, charsView, tokensView));
+
+        buffer.clear();
+        addLine(buffer, 2);
+        addLine(buffer, 3);
+        // Lines of the heap buffer are referred by views, the removed ones must stay intact
+        assertEquals(strippedLineOf(0), charsView.toString());
+    }
+
+    private void checkConcurrentReading(final RingLinesBuffer buffer) throws InterruptedException {
+        final int numLines = 100000;
+        final AtomicBoolean isDone = new AtomicBoolean();
+        final AtomicReference<Throwable> readerError = new AtomicReference<Throwable>();
+        final long[] numReadLines = new long[1];
+
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    CharArrayView charsView = new CharArrayView();
+                    BufferLineTokensView tokensView = new BufferLineTokensView();
+                    RingLinesBuffer.Snapshot snapshot = buffer.newSnapshot();
+                    for (;;) {
+                        // Make sure the final state is read at least
+                        boolean wasDone = isDone.get();
+                        snapshot.update();
+                        for (long i = snapshot.backSequenceNumber(); i < snapshot.nextSequenceNumber(); ++i) {
+                            if (!snapshot.read(i, charsView, tokensView)) {
+                                // Skip lines that have been removed meanwhile
+                                i = snapshot.firstAvailableSequenceNumber() - 1;
+                                continue;
+                            }
+                            // Lines that have been read successfully must be consistent
+                            assertEquals(strippedLineOf(i), charsView.toString());
+                            assertEquals(2 * numTokensOf(i), tokensView.getLength());
+                            numReadLines[0]++;
+                        }
+                        if (wasDone) {
+                            break;
+                        }
+                    }
+                } catch (Throwable t) {
+                    readerError.set(t);
+                }
+            }
+        });
+        reader.start();
+
+        for (int i = 0; i < numLines; ++i) {
+            addLine(buffer, i);
+        }
+        isDone.set(true);
+        reader.join();
+
+        if (readerError.get() != null) {
+            throw new AssertionError(readerError.get());
+        }
+        assertTrue(numReadLines[0] > 0);
+    }
+
+    public void testConcurrentReadingOfHeapArrays() throws InterruptedException {
+        checkConcurrentReading(new RingLinesBuffer(16));
+    }
+
+    public void testConcurrentReadingOfHeapStore() throws InterruptedException {
+        checkConcurrentReading(new RingLinesBuffer(RingLinesStore.allocateHeap(16, 256, 32)));
+    }
+
+    public void testConcurrentReadingOfDirectStore() throws InterruptedException {
+        checkConcurrentReading(new RingLinesBuffer(RingLinesStore.allocateDirect(16, 256, 32)));
+    }
+}
@@ -193,6 +193,23 @@ public class RingLinesBufferTest extends TestCase {
         assertEquals("", buffer.back().toString());
     }
 
+    public void testEmptyLinePartAdditionToFilledCharsBuffer() {
+        RingLinesBuffer buffer = new RingLinesBuffer(3, 4);
+        // Fill the current chars buffer completely
+        buffer.appendLinePart("abcd");
+        buffer.completeLineBuilding();
+        // Append an empty part while there is no room left in the chars buffer
+        buffer.appendLinePart("");
+        buffer.completeLineBuilding();
+
+        assertEquals(2, buffer.size());
+        CharArrayView charsView = new CharArrayView();
+        buffer.front(charsView, new BufferLineTokensView());
+        assertEquals("", charsView.toString());
+        buffer.back(charsView, new BufferLineTokensView());
+        assertEquals("abcd", charsView.toString());
+    }
+
     public void testClear() {
         RingLinesBuffer buffer = new RingLinesBuffer(3, 32);
         assertEquals(0, buffer.size());
@@ -360,6 +377,69 @@ public class RingLinesBufferTest extends TestCase {
         assertFalse(iterator.hasPrev());
     }
 
+    public void testPrevIterationOverWrappedBuffer() {
+        RingLinesBuffer buffer = new RingLinesBuffer(3, 32);
+        for (int i = 0; i < 6; ++i) {
+            buffer.appendLinePart(testLines[i % testLines.length]);
+            buffer.completeLineBuilding();
+        }
+        // Make sure lines wrap around the end of the slots array
+        assertTrue(buffer.frontIndex < buffer.backIndex);
+
+        RingLinesBuffer.OptimizedIterator iterator = buffer.optimizedIterator();
+        iterator.rewindForPrevCalls();
+        assertEquals(testLines[1], iterator.prev().toString());
+        assertEquals(testLines[0], iterator.prev().toString());
+        assertEquals(testLines[3], iterator.prev().toString());
+        assertFalse(iterator.hasPrev());
+    }
+
+    public void testIndexedAccess() {
+        RingLinesBuffer buffer = new RingLinesBuffer(3, 32);
+        assertEquals(0, buffer.backSequenceNumber());
+        assertEquals(0, buffer.nextSequenceNumber());
+        assertEquals(-1, buffer.logicalIndexOf(0));
+
+        CharArrayView charsView = new CharArrayView();
+        BufferLineTokensView tokensView = new BufferLineTokensView();
+        for (int i = 0; i < 10; ++i) {
+            buffer.appendLinePart(testLines[i % testLines.length]);
+            buffer.completeLineBuilding();
+            assertEquals(i + 1, buffer.nextSequenceNumber());
+            assertEquals(i + 1 - buffer.size(), buffer.backSequenceNumber());
+            for (int j = 0; j < buffer.size(); ++j) {
+                long sequenceNumber = buffer.sequenceNumberOf(j);
+                assertEquals(buffer.backSequenceNumber() + j, sequenceNumber);
+                assertEquals(j, buffer.logicalIndexOf(sequenceNumber));
+                String expectedLine = testLines[(int)(sequenceNumber % testLines.length)];
+                assertEquals(expectedLine, buffer.get(j, charsView).toString());
+                buffer.get(j, charsView, tokensView);
+                assertEquals(expectedLine, charsView.toString());
+                assertEquals(2, tokensView.getLength());
+            }
+            assertEquals(buffer.front().toString(), buffer.get(buffer.size() - 1, charsView).toString());
+            assertEquals(buffer.back().toString(), buffer.get(0, charsView).toString());
+            assertEquals(-1, buffer.logicalIndexOf(buffer.backSequenceNumber() - 1));
+            assertEquals(-1, buffer.logicalIndexOf(buffer.nextSequenceNumber()));
+        }
+
+        try {
+            buffer.get(buffer.size(), charsView);
+            fail();
+        } catch (IndexOutOfBoundsException expected) {}
+        try {
+            buffer.sequenceNumberOf(-1);
+            fail();
+        } catch (IndexOutOfBoundsException expected) {}
+
+        // Sequence numbers keep growing after clearing
+        buffer.clear();
+        assertEquals(10, buffer.backSequenceNumber());
+        buffer.appendLinePart(testLines[0]);
+        buffer.completeLineBuilding();
+        assertEquals(10, buffer.sequenceNumberOf(0));
+    }
+
     private List<ColoredToken> reconstructTokens(CharArrayView charsView, BufferLineTokensView tokensView) {
         List<ColoredToken> result = new ArrayList<ColoredToken>();
         if (tokensView.getLength() % 2 != 0) {
@@ -447,4 +527,174 @@ public class RingLinesBufferTest extends TestCase {
 
         assertFalse(iterator.hasNext());
     }
+
+    public void testManyColoredTokensHandling() {
+        RingLinesBuffer buffer = new RingLinesBuffer(3);
+
+        CharArrayView charsView = new CharArrayView();
+        BufferLineTokensView tokensView = new BufferLineTokensView();
+
+        // Add a line having enough tokens to force growth of the tokens buffer (possibly multiple times)
+        StringBuilder sb = new StringBuilder();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 40; ++i) {
+            sb.append('^').append(i % 10).append("token").append(i).append(' ');
+            expected.append("token").append(i).append(' ');
+        }
+        buffer.appendLinePart(sb.toString());
+        buffer.completeLineBuilding();
+
+        buffer.front(charsView, tokensView);
+        assertEquals(expected.toString(), charsView.toString());
+
+        List<ColoredToken> tokens = reconstructTokens(charsView, tokensView);
+        assertEquals(40, tokens.size());
+        for (int i = 0; i < 40; ++i) {
+            assertEquals("token" + i + " ", tokens.get(i).toString());
+            assertEquals(Color.values()[i % 10], tokens.get(i).getColor());
+        }
+    }
+
+    private static final String[] escapedLines = {
+        "^3(v) Good game!^7",
+        "^2Sm0ke^7 ^^ teehee ^^ ^7(^3+1^7)",
+        "ALPHA ^13^7 : ^45^7 BETA",
+        "Malformed ^escape sequence at the end^",
+        "^^^1^^^",
+        "^",
+        "^^",
+        "^1",
+        "plain line",
+        "^1a^2b^3c^4d^5e^6f^7g^8h^9i^0j"
+    };
+
+    private static String describeTokens(List<ColoredToken> tokens) {
+        StringBuilder sb = new StringBuilder();
+        for (ColoredToken token: tokens) {
+            sb.append('[').append(token.getColor()).append(':').append(token.toString()).append(']');
+        }
+        return sb.toString();
+    }
+
+    public void testEscapeSequencesSplitBetweenParts() {
+        CharArrayView charsView = new CharArrayView();
+        BufferLineTokensView tokensView = new BufferLineTokensView();
+        for (String line: escapedLines) {
+            // Get the expected result using the standalone parser
+            char[] expectedChars = line.toCharArray();
+            CharArrayView expectedView = new CharArrayView(expectedChars, 0, expectedChars.length);
+            CharArrayViewColoredTokensParser parser = new CharArrayViewColoredTokensParser();
+            parser.parseRemovingColors(expectedView);
+            String expectedTokens = describeTokens(parser.getTokens());
+
+            for (int splitPoint = 0; splitPoint <= line.length(); ++splitPoint) {
+                RingLinesBuffer buffer = new RingLinesBuffer(3, 8);
+                buffer.appendLinePart(line, 0, splitPoint);
+                buffer.appendLinePart(line, splitPoint, line.length() - splitPoint);
+                buffer.completeLineBuilding();
+
+                buffer.front(charsView, tokensView);
+                String message = "line `" + line + "`, split point " + splitPoint;
+                assertEquals(message, expectedView.toString(), charsView.toString());
+                assertEquals(message, expectedTokens, describeTokens(reconstructTokens(charsView, tokensView)));
+            }
+        }
+    }
+
+    public void testLazyTokensParsing() {
+        CharArrayView charsView = new CharArrayView();
+        BufferLineTokensView tokensView = new BufferLineTokensView();
+        for (String line: escapedLines) {
+            char[] expectedChars = line.toCharArray();
+            CharArrayView expectedView = new CharArrayView(expectedChars, 0, expectedChars.length);
+            CharArrayViewColoredTokensParser parser = new CharArrayViewColoredTokensParser();
+            parser.parseRemovingColors(expectedView);
+            String expectedTokens = describeTokens(parser.getTokens());
+
+            for (int splitPoint = 0; splitPoint <= line.length(); ++splitPoint) {
+                RingLinesBuffer buffer = new RingLinesBuffer(3, 8);
+                buffer.setTokensParsingLazy(true);
+                buffer.appendLinePart(line, 0, splitPoint);
+                buffer.appendLinePart(line, splitPoint, line.length() - splitPoint);
+                buffer.completeLineBuilding();
+                assertEquals(RingLinesBuffer.UNPARSED_LINE, buffer.tokenColors[buffer.frontIndex]);
+
+                String message = "line `" + line + "`, split point " + splitPoint;
+                // Check whether the line is parsed once and the result is cached
+                for (int i = 0; i < 2; ++i) {
+                    buffer.front(charsView, tokensView);
+                    assertEquals(message, expectedView.toString(), charsView.toString());
+                    assertEquals(message, expectedTokens, describeTokens(reconstructTokens(charsView, tokensView)));
+                    assertTrue(buffer.tokenColors[buffer.frontIndex] != RingLinesBuffer.UNPARSED_LINE);
+                }
+            }
+        }
+    }
+
+    public void testLazyTokensParsingModeSwitch() {
+        RingLinesBuffer buffer = new RingLinesBuffer(4);
+        buffer.appendLinePart("^1eager");
+        buffer.setTokensParsingLazy(true);
+        // The mode is applied starting from the next line
+        buffer.appendLinePart(" ^2line");
+        buffer.completeLineBuilding();
+        assertTrue(buffer.tokenColors[buffer.frontIndex] != RingLinesBuffer.UNPARSED_LINE);
+        assertNotNull(buffer.coloredTokens[buffer.frontIndex]);
+
+        buffer.appendLinePart("^1lazy ^2line");
+        buffer.completeLineBuilding();
+        // Empty lines are never kept unparsed
+        buffer.completeLineBuilding();
+        assertEquals(AbstractColoredTokensParser.COLOR_WHITE, buffer.tokenColors[buffer.frontIndex]);
+        buffer.setTokensParsingLazy(false);
+        buffer.appendLinePart("^3eager ^4line");
+        buffer.completeLineBuilding();
+
+        assertEquals(RingLinesBuffer.UNPARSED_LINE, buffer.tokenColors[1]);
+        CharArrayView charsView = new CharArrayView();
+        BufferLineTokensView tokensView = new BufferLineTokensView();
+        String[] expected = { "[RED:eager ][GREEN:line]", "[RED:lazy ][GREEN:line]", "", "[YELLOW:eager ][BLUE:line]" };
+        for (int i = 0; i < expected.length; ++i) {
+            buffer.get(i, charsView, tokensView);
+            assertEquals(expected[i], describeTokens(reconstructTokens(charsView, tokensView)));
+        }
+    }
+
+    public void testLazyTokensParsingSwitchedOffWithUnparsedLines() {
+        RingLinesBuffer buffer = new RingLinesBuffer(2);
+        buffer.setTokensParsingLazy(true);
+        buffer.appendLinePart("^1lazy ^2line");
+        buffer.completeLineBuilding();
+        buffer.setTokensParsingLazy(false);
+        // Wrap the ring so the slot of the unparsed line gets reused by eagerly parsed lines
+        buffer.appendLinePart("^3single");
+        buffer.completeLineBuilding();
+        buffer.appendLinePart("^4another");
+        buffer.completeLineBuilding();
+        buffer.appendLinePart("^1red^2g^^3x");
+        buffer.completeLineBuilding();
+
+        CharArrayView charsView = new CharArrayView();
+        BufferLineTokensView tokensView = new BufferLineTokensView();
+        buffer.front(charsView, tokensView);
+        assertEquals("redg^3x", charsView.toString());
+        assertEquals("[RED:red][GREEN:g^3x]", describeTokens(reconstructTokens(charsView, tokensView)));
+        // Check whether the line is not parsed again on a repeated access
+        buffer.get(buffer.size() - 1, charsView, tokensView);
+        assertEquals("redg^3x", charsView.toString());
+    }
+
+    public void testSingleTokenLinesDoNotAllocateTokens() {
+        RingLinesBuffer buffer = new RingLinesBuffer(3);
+        buffer.appendLinePart("Requesting configstrings...");
+        buffer.completeLineBuilding();
+        assertNull(buffer.coloredTokens[buffer.frontIndex]);
+        buffer.appendLinePart("^1Warning: ^^ is not a color^");
+        buffer.completeLineBuilding();
+        assertNull(buffer.coloredTokens[buffer.frontIndex]);
+        assertEquals(1, buffer.tokenColors[buffer.frontIndex]);
+        buffer.appendLinePart("^1two ^2tokens");
+        buffer.completeLineBuilding();
+        assertNotNull(buffer.coloredTokens[buffer.frontIndex]);
+    }
 }
@@ -0,0 +1,263 @@
+package com.github.qfusion.fakeclient;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class RingLinesStoreTest extends TestCase {
+    private static List<String> describeLines(RingLinesBuffer buffer) {
+        List<String> result = new ArrayList<String>();
+        CharArrayView charsView = new CharArrayView();
+        BufferLineTokensView tokensView = new BufferLineTokensView();
+        RingLinesBuffer.OptimizedIterator iterator = buffer.optimizedIterator();
+        while (iterator.hasNext()) {
+            iterator.next(charsView, tokensView);
+            StringBuilder sb = new StringBuilder();
+            int[] tokens = tokensView.getArray();
+            for (int i = tokensView.getArrayOffset(); i < tokensView.getArrayOffset() + tokensView.getLength(); i += 2) {
+                int offset = tokens[i];
+                int length = tokens[i + 1] & ~0xF0000000;
+                int color = tokens[i + 1] >>> 28;
+                sb.append('[').append(color).append(':');
+                sb.append(charsView.getArray(), charsView.getArrayOffset() + offset, length).append(']');
+            }
+            result.add(sb.toString());
+        }
+        return result;
+    }
+
+    private static void addLine(RingLinesBuffer buffer, String line) {
+        buffer.appendLinePart(line);
+        buffer.completeLineBuilding();
+    }
+
+    private static final String[] lines = {
+        "Connecting to 188.226.221.185:44400...",
+        "^7Player^2 Sm0ke^7 entered the game",
+        "",
+        "^3(v) Good game!^7",
+        "^4vitalik^7 was ^1railed^7 by ^2Sm0ke",
+        "^2Sm0ke^7 ^^ teehee ^^ ^7(^3+1^7)",
+        "Malformed ^escape sequence at the end^"
+    };
+
+    public void testDirectStoreMatchesArraysStorage() {
+        checkMatchesArraysStorage(RingLinesStore.allocateDirect(5, 1024, 256));
+    }
+
+    public void testHeapStoreMatchesArraysStorage() {
+        checkMatchesArraysStorage(RingLinesStore.allocateHeap(5, 1024, 256));
+    }
+
+    private void checkMatchesArraysStorage(RingLinesStore store) {
+        RingLinesBuffer heapBuffer = new RingLinesBuffer(5);
+        RingLinesBuffer storeBuffer = new RingLinesBuffer(store);
+        assertEquals(5, storeBuffer.capacity());
+        assertNull(storeBuffer.arrayRefs);
+        for (int i = 0; i < 3 * lines.length; ++i) {
+            addLine(heapBuffer, lines[i % lines.length]);
+            addLine(storeBuffer, lines[i % lines.length]);
+            assertEquals(heapBuffer.size(), storeBuffer.size());
+            assertEquals(describeLines(heapBuffer), describeLines(storeBuffer));
+            assertEquals(heapBuffer.front().toString(), storeBuffer.front().toString());
+            assertEquals(heapBuffer.back().toString(), storeBuffer.back().toString());
+        }
+    }
+
+    public void testEvictionByCharsCapacity() {
+        RingLinesBuffer buffer = new RingLinesBuffer(RingLinesStore.allocateDirect(100, 32, 16));
+        // Each line takes 10 chars, so no more than 3 lines fit the chars region
+        for (int i = 0; i < 20; ++i) {
+            int oldSize = buffer.size();
+            buffer.appendLinePart("line #" + (1000 + i));
+            int numRemovedLines = buffer.numBackLinesToRemove();
+            assertEquals(numRemovedLines > 0, buffer.completeLineBuilding());
+            assertEquals(oldSize + 1 - numRemovedLines, buffer.size());
+            assertTrue(buffer.size() <= 3);
+            assertEquals("line #" + (1000 + i), buffer.front().toString());
+            assertEquals("line #" + (1000 + i - buffer.size() + 1), buffer.back().toString());
+        }
+
+        // A long line evicts all lines at once
+        int oldSize = buffer.size();
+        buffer.appendLinePart("a longer line of 31 characters!");
+        assertEquals(oldSize, buffer.numBackLinesToRemove());
+        assertTrue(buffer.completeLineBuilding());
+        assertEquals(1, buffer.size());
+        assertEquals("a longer line of 31 characters!", buffer.front().toString());
+    }
+
+    public void testRandomLengthsEviction() {
+        checkRandomLengthsEviction(RingLinesStore.allocateDirect(16, 64, 24));
+        checkRandomLengthsEviction(RingLinesStore.allocateHeap(16, 64, 24));
+    }
+
+    private void checkRandomLengthsEviction(RingLinesStore store) {
+        Random random = new Random(1);
+        RingLinesBuffer buffer = new RingLinesBuffer(store);
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 1000; ++i) {
+            StringBuilder sb = new StringBuilder();
+            int numTokens = random.nextInt(4);
+            for (int j = 0; j < numTokens; ++j) {
+                sb.append('^').append(random.nextInt(10));
+                for (int k = random.nextInt(12); k > 0; --k) {
+                    sb.append((char)('a' + random.nextInt(26)));
+                }
+            }
+            String line = sb.toString();
+            int numRemovedLines = 0;
+            for (int j = 0; j < line.length(); j += 5) {
+                buffer.appendLinePart(line, j, Math.min(5, line.length() - j));
+            }
+            numRemovedLines = buffer.numBackLinesToRemove();
+            buffer.completeLineBuilding();
+
+            // Check using a heap buffer that contains the expected lines
+            expected.add(line);
+            for (int j = 0; j < numRemovedLines; ++j) {
+                expected.remove(0);
+            }
+            assertEquals(expected.size(), buffer.size());
+            RingLinesBuffer heapBuffer = new RingLinesBuffer(16);
+            for (String expectedLine: expected) {
+                addLine(heapBuffer, expectedLine);
+            }
+            assertEquals(describeLines(heapBuffer), describeLines(buffer));
+        }
+    }
+
+    public void testHeapStoreViewsReferSlabs() {
+        RingLinesBuffer buffer = new RingLinesBuffer(RingLinesStore.allocateHeap(8, 64, 16));
+        addLine(buffer, "^1first ^2line");
+        addLine(buffer, "^3second ^4line");
+        CharArrayView firstChars = new CharArrayView();
+        BufferLineTokensView firstTokens = new BufferLineTokensView();
+        CharArrayView secondChars = new CharArrayView();
+        BufferLineTokensView secondTokens = new BufferLineTokensView();
+        RingLinesBuffer.OptimizedIterator iterator = buffer.optimizedIterator();
+        iterator.next(firstChars, firstTokens);
+        iterator.next(secondChars, secondTokens);
+        // Lines share the same arrays and nothing is copied to views
+        assertSame(firstChars.getArray(), secondChars.getArray());
+        assertSame(firstTokens.getArray(), secondTokens.getArray());
+        assertNull(firstChars.ownBuffer);
+        assertNull(firstTokens.ownBuffer);
+        assertEquals(0, firstChars.getArrayOffset());
+        assertEquals("first line".length(), secondChars.getArrayOffset());
+        assertEquals("second line", secondChars.toString());
+        assertEquals(4, secondTokens.getArrayOffset());
+    }
+
+    public void testTooLongLineIsTruncated() {
+        RingLinesBuffer buffer = new RingLinesBuffer(RingLinesStore.allocateDirect(4, 16, 2));
+        addLine(buffer, "^1short ^2line");
+        addLine(buffer, "^3a line that is longer than the chars region");
+        assertEquals(1, buffer.size());
+        assertEquals("a line that is l", buffer.front().toString());
+        // Tokens of the first line do not fit the tokens region, the first token color is kept
+        addLine(buffer, "^1short ^2line");
+        assertEquals(1, buffer.size());
+        assertEquals("[1:short line]", describeLines(buffer).get(0));
+    }
+
+    public void testTooLongLineTokensAreClipped() {
+        checkTooLongLineTokensAreClipped(RingLinesStore.allocateHeap(4, 16, 64));
+        checkTooLongLineTokensAreClipped(RingLinesStore.allocateDirect(4, 16, 64));
+    }
+
+    private void checkTooLongLineTokensAreClipped(RingLinesStore store) {
+        RingLinesBuffer buffer = new RingLinesBuffer(store);
+        String first = "aaaaaaaaaaaaaaaaaaaa";
+        String second = "bbbbbbbbbbbbbbbbbbbb";
+        // The second token starts beyond the stored chars
+        addLine(buffer, "^1" + first + "^2" + second);
+        assertEquals(Arrays.asList("[1:aaaaaaaaaaaaaaaa]"), describeLines(buffer));
+
+        // The last stored token gets shortened
+        addLine(buffer, "^1" + first.substring(10) + "^2" + second + "^3ccc");
+        assertEquals("[1:aaaaaaaaaa][2:bbbbbb]", describeLines(buffer).get(0));
+
+        // Check whether a pending circumflex and a trailing token are taken into account as well
+        for (int i = 0; i < 10; ++i) {
+            buffer.appendLinePart("^" + (i % 10) + "xx");
+        }
+        buffer.appendLinePart("^");
+        // The truncated line takes the entire chars region
+        assertEquals(buffer.size(), buffer.numBackLinesToRemove());
+        buffer.completeLineBuilding();
+        assertEquals(1, buffer.size());
+        assertEquals("[0:xx][1:xx][2:xx][3:xx][4:xx][5:xx][6:xx][7:xx]", describeLines(buffer).get(0));
+        for (String line: describeLines(buffer)) {
+            int length = line.replaceAll("\\[[0-9]:", "").replace("]", "").length();
+            assertTrue(length <= 16);
+        }
+    }
+
+    public void testClear() {
+        RingLinesBuffer buffer = new RingLinesBuffer(RingLinesStore.allocateDirect(4, 64, 16));
+        for (String line: lines) {
+            addLine(buffer, line);
+        }
+        buffer.clear();
+        assertEquals(0, buffer.size());
+        addLine(buffer, lines[1]);
+        assertEquals(1, buffer.size());
+        assertEquals("Player Sm0ke entered the game", buffer.front().toString());
+    }
+
+    public void testPersistence() throws IOException {
+        File file = File.createTempFile("jqfakeclient-lines", ".bin");
+        try {
+            RingLinesStore store = RingLinesStore.map(file, 4, 256, 64);
+            assertTrue(store.isPersistent());
+            RingLinesBuffer buffer = new RingLinesBuffer(store);
+            for (String line: lines) {
+                addLine(buffer, line);
+            }
+            List<String> expected = describeLines(buffer);
+            store.force();
+
+            RingLinesBuffer restored = new RingLinesBuffer(RingLinesStore.map(file, 4, 256, 64));
+            assertEquals(4, restored.size());
+            assertEquals(expected, describeLines(restored));
+            assertEquals(buffer.front().toString(), restored.front().toString());
+            assertEquals(buffer.backSequenceNumber(), restored.backSequenceNumber());
+            assertEquals(lines.length, restored.nextSequenceNumber());
+            // Check whether the restored buffer continues properly
+            addLine(buffer, lines[0]);
+            addLine(restored, lines[0]);
+            assertEquals(describeLines(buffer), describeLines(restored));
+
+            // A store with different capacities gets reset
+            RingLinesBuffer reset = new RingLinesBuffer(RingLinesStore.map(file, 8, 256, 64));
+            assertEquals(0, reset.size());
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+
+    public void testIllegalArguments() {
+        try {
+            RingLinesStore.allocateDirect(0, 1024, 16);
+            fail();
+        } catch (IllegalArgumentException expected) {}
+        try {
+            RingLinesStore.allocateDirect(16, 8, 16);
+            fail();
+        } catch (IllegalArgumentException expected) {}
+        try {
+            RingLinesStore.allocateDirect(16, 1024, -1);
+            fail();
+        } catch (IllegalArgumentException expected) {}
+        try {
+            RingLinesStore.allocateHeap(16, 8, 16);
+            fail();
+        } catch (IllegalArgumentException expected) {}
+    }
+}
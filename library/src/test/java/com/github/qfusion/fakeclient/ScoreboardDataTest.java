@@ -516,4 +516,59 @@ public class ScoreboardDataTest extends TestCase {
             assertEquals("(" + i + ")", tokens.get(1).toString());
         }
     }
+
+    public void testWrapBuffersReusesColoredTokens() {
+        ScoreboardData scoreboardData = new ScoreboardData();
+        byte[] playersInfoUpdateMask = new byte[MAX_PLAYERS];
+
+        char[] buffer1 = newBufferForPlayersCount(12);
+        setHasPlayerInfo(buffer1, true);
+        assertNull(scoreboardData.wrapBuffers(buffer1, playersInfoUpdateMask));
+        byte[] coloredTokens = scoreboardData.coloredTokens;
+
+        // Tokens should be reused if there are less players but the tokens buffer is not way too large
+        char[] buffer2 = newBufferForPlayersCount(7);
+        setHasPlayerInfo(buffer2, true);
+        assertSame(buffer1, scoreboardData.wrapBuffers(buffer2, playersInfoUpdateMask));
+        assertSame(coloredTokens, scoreboardData.coloredTokens);
+
+        // Tokens should be shrunk in this case
+        char[] buffer3 = newBufferForPlayersCount(3);
+        setHasPlayerInfo(buffer3, true);
+        assertSame(buffer2, scoreboardData.wrapBuffers(buffer3, playersInfoUpdateMask));
+        assertNotSame(coloredTokens, scoreboardData.coloredTokens);
+    }
+
+    public void testCanReuseMainBuffer() {
+        char[] buffer = newBufferForPlayersCount(12);
+        assertTrue(canReuseMainBuffer(buffer, 12));
+        assertTrue(canReuseMainBuffer(buffer, 6));
+        assertFalse(canReuseMainBuffer(buffer, 5));
+        assertFalse(canReuseMainBuffer(buffer, 13));
+
+        // Small buffers should not be considered too large
+        buffer = newBufferForPlayersCount(4);
+        assertTrue(canReuseMainBuffer(buffer, 0));
+        assertFalse(canReuseMainBuffer(buffer, 5));
+    }
+
+    public void testScoreboardBuffersPool() {
+        ScoreboardBuffersPool pool = new ScoreboardBuffersPool(2);
+        assertNull(pool.tryAcquire(0));
+
+        char[] smallBuffer = newBufferForPlayersCount(4);
+        char[] largeBuffer = newBufferForPlayersCount(32);
+        pool.release(largeBuffer);
+        pool.release(smallBuffer);
+        // The pool is full, this buffer should be dropped
+        pool.release(newBufferForPlayersCount(8));
+        assertEquals(2, pool.numFreeBuffers());
+
+        assertNull(pool.tryAcquire(40));
+        // The small buffer is too small and the large buffer is too large
+        assertNull(pool.tryAcquire(10));
+        assertSame(smallBuffer, pool.tryAcquire(0));
+        assertSame(largeBuffer, pool.tryAcquire(20));
+        assertEquals(0, pool.numFreeBuffers());
+    }
 }
@@ -6,6 +6,7 @@ import junit.framework.TestCase;
 
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
+import java.util.Arrays;
 
 public class ScoreboardUpdatesCodecsTest extends TestCase {
 
@@ -384,4 +385,266 @@ public class ScoreboardUpdatesCodecsTest extends TestCase {
         assertEquals("Warsow server", scoreboardData.getServerName().toString());
         assertEquals("ca", scoreboardData.getGametype().toString());
     }
+
+    public void testPooledDeltaMessagesReuse() {
+        ByteBuffer byteBuffer = newByteBuffer(7);
+        CharBuffer charBuffer = byteBuffer.asCharBuffer();
+
+        setHasPlayerInfo(charBuffer, true);
+        setNumClients(charBuffer, 7);
+        setDummyUpdatesSizeForPlayersCount(charBuffer, 7);
+        for (int i = 0; i < 7; ++i) {
+            setPlayerPing(i, charBuffer, 10 + i);
+            setPlayerUpdateFlags(i, byteBuffer, PLAYERINFO_UPDATE_FLAG_PING);
+        }
+
+        ScoreboardData scoreboardData = new ScoreboardData();
+        scoreboardData.resizeIfNeeded(0, 7, true);
+        scoreboardData.buffer[HAS_PLAYER_INFO_OFFSET - SCOREBOARD_DATA_OFFSET] = 1;
+        scoreboardData.buffer[NUM_CLIENTS_OFFSET - SCOREBOARD_DATA_OFFSET] = 7;
+
+        DeltaUpdateMessagesPool pool = new DeltaUpdateMessagesPool(1);
+        ScoreboardUpdatesDeltaEncoder encoder = newEncoder(byteBuffer, charBuffer);
+        ScoreboardUpdatesDeltaDecoder decoder = newDecoder();
+
+        int serverInfoMask = UPDATE_FLAG_WERE_PLAYER_INFO_UPDATES;
+        DeltaUpdateMessage message = encoder.tryBuildDeltaMessage(serverInfoMask, pool);
+        assertNotNull(message);
+        assertSame(pool, message.pool);
+        decoder.decodeUpdateDelta(scoreboardData, serverInfoMask, message);
+        // Make sure the scoreboard does not share the message array
+        assertNotSame(message.playersUpdateBytes, scoreboardData.getPlayersInfoUpdateMask());
+
+        char[] deltaChars = message.deltaChars;
+        byte[] playersUpdateBytes = message.playersUpdateBytes;
+        message.recycle();
+        assertEquals(1, pool.numFreeObjects());
+
+        // Update pings of odd players only
+        for (int i = 0; i < 7; ++i) {
+            if (i % 2 != 1) {
+                setPlayerUpdateFlags(i, byteBuffer, 0);
+            } else {
+                setPlayerPing(i, charBuffer, 20 + i);
+            }
+        }
+
+        DeltaUpdateMessage reusedMessage = encoder.tryBuildDeltaMessage(serverInfoMask, pool);
+        assertSame(message, reusedMessage);
+        assertSame(deltaChars, reusedMessage.deltaChars);
+        assertSame(playersUpdateBytes, reusedMessage.playersUpdateBytes);
+        assertEquals(0, pool.numFreeObjects());
+
+        decoder.decodeUpdateDelta(scoreboardData, serverInfoMask, reusedMessage);
+        for (int i = 0; i < 7; ++i) {
+            int expectedPing = i % 2 != 1 ? 10 + i : 20 + i;
+            assertEquals(expectedPing, scoreboardData.getPlayerPingValue(i));
+            assertEquals(i % 2 != 1 ? 0 : PLAYERINFO_UPDATE_FLAG_PING, scoreboardData.getPlayersInfoUpdateMask()[i]);
+        }
+
+        // The pool is bounded, an extra message should be dropped on release
+        DeltaUpdateMessage extraMessage = encoder.tryBuildDeltaMessage(serverInfoMask, pool);
+        assertNotSame(message, extraMessage);
+        message.recycle();
+        extraMessage.recycle();
+        assertEquals(1, pool.numFreeObjects());
+
+        // A message should not be built and acquired if the native code suggests to read a full data
+        writeShort(charBuffer, UPDATE_HINT_READ_FULL_DATA_OFFSET, (short)1);
+        assertNull(encoder.tryBuildDeltaMessage(serverInfoMask, pool));
+        assertEquals(1, pool.numFreeObjects());
+    }
+
+    private static ScoreboardData newScoreboardDataForPlayers(int numPlayers) {
+        ScoreboardData scoreboardData = new ScoreboardData();
+        scoreboardData.resizeIfNeeded(0, numPlayers, true);
+        scoreboardData.buffer[HAS_PLAYER_INFO_OFFSET - SCOREBOARD_DATA_OFFSET] = 1;
+        scoreboardData.buffer[NUM_CLIENTS_OFFSET - SCOREBOARD_DATA_OFFSET] = (char)numPlayers;
+        return scoreboardData;
+    }
+
+    private static void assertBuffersPrefixEquals(ScoreboardData expected, ScoreboardData actual, int numPlayers) {
+        int length = PLAYERS_DATA_OFFSET - SCOREBOARD_DATA_OFFSET + numPlayers * PLAYER_DATA_STRIDE;
+        char[] expectedChars = Arrays.copyOf(expected.buffer, length);
+        char[] actualChars = Arrays.copyOf(actual.buffer, length);
+        assertTrue(Arrays.equals(expectedChars, actualChars));
+    }
+
+    public void testMergeDeltas() {
+        ByteBuffer byteBuffer = newByteBuffer(7);
+        CharBuffer charBuffer = byteBuffer.asCharBuffer();
+        ScoreboardUpdatesDeltaEncoder encoder = newEncoder(byteBuffer, charBuffer);
+
+        setHasPlayerInfo(charBuffer, true);
+        setNumClients(charBuffer, 7);
+        setDummyUpdatesSizeForPlayersCount(charBuffer, 7);
+
+        setServerName(charBuffer, "First name");
+        setTimeSeconds(charBuffer, 10);
+        for (int i = 0; i < 7; ++i) {
+            setPlayerPing(i, charBuffer, 10 + i);
+            setPlayerUpdateFlags(i, byteBuffer, PLAYERINFO_UPDATE_FLAG_PING);
+        }
+        int olderMask = UPDATE_FLAG_SERVER_NAME | UPDATE_FLAG_TIME_SECONDS | UPDATE_FLAG_WERE_PLAYER_INFO_UPDATES;
+        DeltaUpdateMessage older = encoder.tryBuildDeltaMessage(olderMask);
+
+        setServerName(charBuffer, "^2Second name");
+        setMapName(charBuffer, "wdm1");
+        setTimeFlags(charBuffer, TIME_FLAG_OVERTIME);
+        for (int i = 0; i < 7; ++i) {
+            setPlayerUpdateFlags(i, byteBuffer, 0);
+        }
+        setPlayerName(2, charBuffer, "^3Player");
+        setPlayerScore(2, charBuffer, 42);
+        setPlayerUpdateFlags(2, byteBuffer, PLAYERINFO_UPDATE_FLAG_NAME | PLAYERINFO_UPDATE_FLAG_SCORE);
+        setPlayerPing(4, charBuffer, 999);
+        setPlayerTeam(4, charBuffer, 2);
+        setPlayerUpdateFlags(4, byteBuffer, PLAYERINFO_UPDATE_FLAG_PING | PLAYERINFO_UPDATE_FLAG_TEAM);
+        int newerMask = UPDATE_FLAG_SERVER_NAME | UPDATE_FLAG_MAPNAME | UPDATE_FLAG_TIME_FLAGS;
+        newerMask |= UPDATE_FLAG_WERE_PLAYER_INFO_UPDATES;
+        DeltaUpdateMessage newer = encoder.tryBuildDeltaMessage(newerMask);
+
+        ScoreboardUpdatesDeltaMerger merger = new ScoreboardUpdatesDeltaMerger();
+        DeltaUpdateMessage merged = merger.tryMergeDeltas(older, olderMask, newer, newerMask, null);
+        int mergedMask = merger.fixMergedUpdateMask(merged, olderMask | newerMask);
+        assertTrue(merged.werePlayerInfoUpdates);
+        assertTrue(merged.werePlayerNameUpdates);
+        assertEquals(olderMask | newerMask, mergedMask);
+
+        ScoreboardData sequentiallyUpdated = newScoreboardDataForPlayers(7);
+        newDecoder().decodeUpdateDelta(sequentiallyUpdated, olderMask, older);
+        newDecoder().decodeUpdateDelta(sequentiallyUpdated, newerMask, newer);
+
+        ScoreboardData mergeUpdated = newScoreboardDataForPlayers(7);
+        newDecoder().decodeUpdateDelta(mergeUpdated, mergedMask, merged);
+
+        assertBuffersPrefixEquals(sequentiallyUpdated, mergeUpdated, 7);
+        assertEquals("Second name", mergeUpdated.getServerName().toString());
+        assertEquals("wdm1", mergeUpdated.getMapName().toString());
+        assertEquals(10, mergeUpdated.getMatchTimeSecondsValue());
+        assertTrue(mergeUpdated.isOvertime());
+        assertEquals("Player", mergeUpdated.getPlayerName(2).toString());
+        assertEquals(42, mergeUpdated.getPlayerScoreValue(2));
+        assertEquals(12, mergeUpdated.getPlayerPingValue(2));
+        assertEquals(999, mergeUpdated.getPlayerPingValue(4));
+        assertEquals(2, mergeUpdated.getPlayerTeam(4));
+        assertEquals(16, mergeUpdated.getPlayerPingValue(6));
+
+        byte[] expectedMask = Arrays.copyOf(sequentiallyUpdated.getPlayersInfoUpdateMask(), 7);
+        Arrays.fill(expectedMask, PLAYERINFO_UPDATE_FLAG_PING);
+        expectedMask[2] |= PLAYERINFO_UPDATE_FLAG_NAME | PLAYERINFO_UPDATE_FLAG_SCORE;
+        expectedMask[4] |= PLAYERINFO_UPDATE_FLAG_TEAM;
+        assertTrue(Arrays.equals(expectedMask, Arrays.copyOf(mergeUpdated.getPlayersInfoUpdateMask(), 7)));
+    }
+
+    public void testRepeatedMergesDoNotGrowDeltaChars() {
+        ByteBuffer byteBuffer = newByteBuffer(3);
+        CharBuffer charBuffer = byteBuffer.asCharBuffer();
+        ScoreboardUpdatesDeltaEncoder encoder = newEncoder(byteBuffer, charBuffer);
+
+        setHasPlayerInfo(charBuffer, true);
+        setNumClients(charBuffer, 3);
+        setDummyUpdatesSizeForPlayersCount(charBuffer, 3);
+        setServerName(charBuffer, "A server");
+        for (int i = 0; i < 3; ++i) {
+            setPlayerPing(i, charBuffer, 10 + i);
+            setPlayerUpdateFlags(i, byteBuffer, PLAYERINFO_UPDATE_FLAG_PING);
+        }
+        int mask = UPDATE_FLAG_SERVER_NAME | UPDATE_FLAG_WERE_PLAYER_INFO_UPDATES;
+        DeltaUpdateMessage older = encoder.tryBuildDeltaMessage(mask);
+        DeltaUpdateMessage newer = encoder.tryBuildDeltaMessage(mask);
+        assertTrue(older.deltaLength > 0);
+        assertEquals(older.deltaLength, newer.deltaLength);
+
+        // Emulate a server that gets updated every frame while the UI thread is busy
+        ScoreboardUpdatesDeltaMerger merger = new ScoreboardUpdatesDeltaMerger();
+        DeltaUpdateMessage merged = older;
+        for (int i = 0; i < 1000; ++i) {
+            merged = merger.tryMergeDeltas(merged, mask, newer, mask, null);
+            assertEquals(newer.deltaLength, merged.deltaLength);
+            assertTrue(merged.deltaChars.length <= 2 * newer.deltaLength);
+        }
+
+        ScoreboardData mergeUpdated = newScoreboardDataForPlayers(3);
+        newDecoder().decodeUpdateDelta(mergeUpdated, merger.fixMergedUpdateMask(merged, mask), merged);
+        assertEquals("A server", mergeUpdated.getServerName().toString());
+        assertEquals(12, mergeUpdated.getPlayerPingValue(2));
+    }
+
+    public void testMergeDeltasWithPlayersCountDecrease() {
+        ByteBuffer byteBuffer = newByteBuffer(7);
+        CharBuffer charBuffer = byteBuffer.asCharBuffer();
+        ScoreboardUpdatesDeltaEncoder encoder = newEncoder(byteBuffer, charBuffer);
+
+        setHasPlayerInfo(charBuffer, true);
+        setNumClients(charBuffer, 7);
+        setDummyUpdatesSizeForPlayersCount(charBuffer, 7);
+        for (int i = 0; i < 7; ++i) {
+            setPlayerPing(i, charBuffer, 10 + i);
+            setPlayerUpdateFlags(i, byteBuffer, PLAYERINFO_UPDATE_FLAG_PING);
+        }
+        int olderMask = UPDATE_FLAG_WERE_PLAYER_INFO_UPDATES;
+        DeltaUpdateMessage older = encoder.tryBuildDeltaMessage(olderMask);
+
+        setNumClients(charBuffer, 5);
+        for (int i = 0; i < 7; ++i) {
+            setPlayerUpdateFlags(i, byteBuffer, 0);
+        }
+        setPlayerScore(1, charBuffer, 3);
+        setPlayerUpdateFlags(1, byteBuffer, PLAYERINFO_UPDATE_FLAG_SCORE);
+        int newerMask = UPDATE_FLAG_NUM_CLIENTS | UPDATE_FLAG_WERE_PLAYER_INFO_UPDATES;
+        DeltaUpdateMessage newer = encoder.tryBuildDeltaMessage(newerMask);
+
+        ScoreboardUpdatesDeltaMerger merger = new ScoreboardUpdatesDeltaMerger();
+        DeltaUpdateMessage merged = merger.tryMergeDeltas(older, olderMask, newer, newerMask, null);
+        int mergedMask = merger.fixMergedUpdateMask(merged, olderMask | newerMask);
+        assertEquals(5, merged.numClients);
+
+        ScoreboardData sequentiallyUpdated = newScoreboardDataForPlayers(7);
+        newDecoder().decodeUpdateDelta(sequentiallyUpdated, olderMask, older);
+        newDecoder().decodeUpdateDelta(sequentiallyUpdated, newerMask, newer);
+
+        ScoreboardData mergeUpdated = newScoreboardDataForPlayers(7);
+        newDecoder().decodeUpdateDelta(mergeUpdated, mergedMask, merged);
+
+        assertEquals(5, mergeUpdated.getNumClientsValue());
+        // Player slots beyond the newer players count are not guaranteed to match
+        assertBuffersPrefixEquals(sequentiallyUpdated, mergeUpdated, 5);
+        assertEquals(3, mergeUpdated.getPlayerScoreValue(1));
+        assertEquals(14, mergeUpdated.getPlayerPingValue(4));
+    }
+
+    public void testMergeDeltasWithPlayerInfoLoss() {
+        ByteBuffer byteBuffer = newByteBuffer(3);
+        CharBuffer charBuffer = byteBuffer.asCharBuffer();
+        ScoreboardUpdatesDeltaEncoder encoder = newEncoder(byteBuffer, charBuffer);
+
+        setHasPlayerInfo(charBuffer, true);
+        setNumClients(charBuffer, 3);
+        setDummyUpdatesSizeForPlayersCount(charBuffer, 3);
+        for (int i = 0; i < 3; ++i) {
+            setPlayerPing(i, charBuffer, 10 + i);
+            setPlayerUpdateFlags(i, byteBuffer, PLAYERINFO_UPDATE_FLAG_PING);
+        }
+        setGametype(charBuffer, "ca");
+        int olderMask = UPDATE_FLAG_GAMETYPE | UPDATE_FLAG_WERE_PLAYER_INFO_UPDATES;
+        DeltaUpdateMessage older = encoder.tryBuildDeltaMessage(olderMask);
+
+        setHasPlayerInfo(charBuffer, false);
+        int newerMask = UPDATE_FLAG_HAS_PLAYER_INFO;
+        DeltaUpdateMessage newer = encoder.tryBuildDeltaMessage(newerMask);
+
+        ScoreboardUpdatesDeltaMerger merger = new ScoreboardUpdatesDeltaMerger();
+        DeltaUpdateMessage merged = merger.tryMergeDeltas(older, olderMask, newer, newerMask, null);
+        int mergedMask = merger.fixMergedUpdateMask(merged, olderMask | newerMask);
+
+        assertFalse(merged.hasPlayerInfo);
+        assertFalse(merged.werePlayerInfoUpdates);
+        assertEquals(0, mergedMask & UPDATE_FLAG_WERE_PLAYER_INFO_UPDATES);
+
+        ScoreboardData mergeUpdated = newScoreboardDataForPlayers(3);
+        newDecoder().decodeUpdateDelta(mergeUpdated, mergedMask, merged);
+        assertFalse(mergeUpdated.hasPlayerInfo());
+        assertEquals("ca", mergeUpdated.getGametype().toString());
+    }
 }
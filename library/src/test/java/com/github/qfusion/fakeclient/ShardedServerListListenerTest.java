@@ -0,0 +1,165 @@
+package com.github.qfusion.fakeclient;
+
+import junit.framework.TestCase;
+
+import static com.github.qfusion.fakeclient.ScoreboardData.*;
+
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ShardedServerListListenerTest extends TestCase {
+
+    /**
+     * A {@link QueueingMessagePipe} that accepts messages from multiple worker threads
+     */
+    private static class SynchronizedQueueingMessagePipe extends QueueingMessagePipe {
+        @Override
+        public synchronized void post(Runnable runnable) {
+            super.post(runnable);
+        }
+
+        @Override
+        synchronized void runAll() {
+            super.runAll();
+        }
+    }
+
+    public void testEventsOfServerKeepOrder() {
+        SynchronizedQueueingMessagePipe pipe = new SynchronizedQueueingMessagePipe();
+        RecordingPipeEndpoint endpoint = new RecordingPipeEndpoint();
+        ShardedServerListListener listener = new ShardedServerListListener(pipe, endpoint, 3);
+        assertEquals(3, listener.getNumShards());
+
+        final int numServers = 16;
+        for (int i = 0; i < numServers; ++i) {
+            listener.onServerAdded(i);
+        }
+        for (int round = 0; round < 100; ++round) {
+            for (int i = 0; i < numServers; ++i) {
+                listener.onServerUpdated(i, 0);
+            }
+        }
+        for (int i = 0; i < numServers; i += 2) {
+            listener.onServerRemoved(i);
+        }
+        listener.shutdown();
+
+        pipe.runAll();
+        assertEquals(numServers / 2, endpoint.scoreboards.size());
+        for (int i = 0; i < numServers; ++i) {
+            List<String> serverEvents = new ArrayList<String>();
+            for (String event: endpoint.events) {
+                if (event.endsWith(" " + i)) {
+                    serverEvents.add(event);
+                }
+            }
+            int expectedSize = 1 + 100 + (i % 2 == 0 ? 1 : 0);
+            assertEquals(expectedSize, serverEvents.size());
+            assertEquals("added " + i, serverEvents.get(0));
+            for (int j = 1; j <= 100; ++j) {
+                assertEquals("updated " + i, serverEvents.get(j));
+            }
+            if (i % 2 == 0) {
+                assertEquals("removed " + i, serverEvents.get(101));
+                assertFalse(endpoint.scoreboards.containsKey(i));
+            } else {
+                assertTrue(endpoint.scoreboards.containsKey(i));
+            }
+        }
+    }
+
+    public void testStalledWorkerBlocksProducer() throws InterruptedException {
+        final CountDownLatch uiThreadLatch = new CountDownLatch(1);
+        // Stalls the worker on the first message to the UI thread
+        MessagePipe stallingPipe = new MessagePipe() {
+            @Override
+            public void post(Runnable runnable) {
+                try {
+                    uiThreadLatch.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        final ShardedServerListListener listener = new ShardedServerListListener(stallingPipe, new RecordingPipeEndpoint(), 1);
+
+        final int numEvents = 1000;
+        final AtomicInteger numPostedEvents = new AtomicInteger();
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < numEvents; ++i) {
+                    listener.onServerRemoved(i);
+                    numPostedEvents.incrementAndGet();
+                }
+            }
+        };
+        producer.start();
+        producer.join(300);
+
+        // The producer must wait for the worker instead of queueing events without limit
+        assertTrue(producer.isAlive());
+        assertTrue(numPostedEvents.get() < numEvents);
+        assertTrue(numPostedEvents.get() <= 256 + 1);
+
+        uiThreadLatch.countDown();
+        producer.join();
+        listener.shutdown();
+        assertEquals(numEvents, numPostedEvents.get());
+    }
+
+    private static void setPlayerTeam(NativeBridgeServerListListener listener, int playerNum, int team) {
+        listener.charIoBuffer.put(PLAYERS_DATA_OFFSET + playerNum * PLAYER_DATA_STRIDE + PLAYER_TEAM_RELATIVE_OFFSET,
+                                  (char)team);
+    }
+
+    public void testOnlyUpdatedPlayersAreCopiedForDelta() {
+        SynchronizedQueueingMessagePipe pipe = new SynchronizedQueueingMessagePipe();
+        RecordingPipeEndpoint endpoint = new RecordingPipeEndpoint();
+        ShardedServerListListener listener = new ShardedServerListListener(pipe, endpoint, 1);
+        final CharBuffer charIoBuffer = listener.charIoBuffer;
+
+        charIoBuffer.put(HAS_PLAYER_INFO_OFFSET, (char)1);
+        charIoBuffer.put(NUM_CLIENTS_OFFSET, (char)4);
+        for (int i = 0; i < 4; ++i) {
+            setPlayerTeam(listener, i, 1);
+        }
+        // A full data is copied for an added server
+        listener.onServerAdded(1);
+
+        // A delta update that changes teams of players #1 and #3
+        charIoBuffer.put(UPDATE_CHARS_WRITTEN_OFFSET + 1, (char)16);
+        for (int i = 0; i < 4; ++i) {
+            setPlayerTeam(listener, i, 2);
+        }
+        listener.byteIoBuffer.put(PLAYERS_UPDATE_MASK_OFFSET * 2 + 1, PLAYERINFO_UPDATE_FLAG_TEAM);
+        listener.byteIoBuffer.put(PLAYERS_UPDATE_MASK_OFFSET * 2 + 3, PLAYERINFO_UPDATE_FLAG_TEAM);
+        listener.onServerUpdated(1, UPDATE_FLAG_WERE_PLAYER_INFO_UPDATES);
+        listener.shutdown();
+
+        pipe.runAll();
+        assertEquals(Arrays.asList("added 1", "updated 1"), endpoint.events);
+        ScoreboardData scoreboardData = endpoint.scoreboards.get(1);
+        assertEquals(1, scoreboardData.getPlayerTeam(0));
+        assertEquals(2, scoreboardData.getPlayerTeam(1));
+        assertEquals(1, scoreboardData.getPlayerTeam(2));
+        assertEquals(2, scoreboardData.getPlayerTeam(3));
+
+        // Records of players that have not been updated have not been transferred to the worker
+        CharBuffer workerCharIoBuffer = listener.shards[0].listener.charIoBuffer;
+        assertEquals(1, workerCharIoBuffer.get(PLAYERS_DATA_OFFSET + PLAYER_TEAM_RELATIVE_OFFSET));
+        assertEquals(2, workerCharIoBuffer.get(PLAYERS_DATA_OFFSET + PLAYER_DATA_STRIDE + PLAYER_TEAM_RELATIVE_OFFSET));
+    }
+
+    public void testIllegalNumberOfShards() {
+        try {
+            new ShardedServerListListener(new QueueingMessagePipe(), new RecordingPipeEndpoint(), 0);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.github.qfusion.fakeclient;
+
+import junit.framework.TestCase;
+
+public class UiThreadProxyTest extends TestCase {
+
+    public void testAnyThreadIsUiThreadByDefault() {
+        assertTrue(UiThreadProxy.isCurrentThreadUiThread());
+        assertTrue(UiThreadProxy.isUiThread(new Thread()));
+    }
+
+    public void testFixedUiThread() {
+        try {
+            UiThreadProxy.setUiThread(Thread.currentThread());
+            assertTrue(UiThreadProxy.isCurrentThreadUiThread());
+            assertFalse(UiThreadProxy.isUiThread(new Thread()));
+        } finally {
+            UiThreadProxy.setBackend(null);
+        }
+        assertTrue(UiThreadProxy.isUiThread(new Thread()));
+    }
+}